@@ -1,33 +1,109 @@
 CREATE TABLE Caregivers (
-    Username varchar(255),
+    CaregiverID int IDENTITY(1, 1),
+    Username varchar(255) UNIQUE,
     Salt BINARY(16),
-    Hash BINARY(16),
-    PRIMARY KEY (Username)
+    Hash VARBINARY(64),
+    HashParams varchar(64),
+    PRIMARY KEY (CaregiverID)
 );
 
 CREATE TABLE Availabilities (
     Time date,
-    Username varchar(255) REFERENCES Caregivers,
-    PRIMARY KEY (Time, Username)
+    CaregiverID int REFERENCES Caregivers,
+    PRIMARY KEY (Time, CaregiverID)
+);
+
+-- Free caregivers per date, adjusted in the same transaction as every change to Availabilities
+CREATE TABLE DailyCapacity (
+    Time date,
+    FreeCaregivers int,
+    PRIMARY KEY (Time)
+);
+
+CREATE TABLE AvailabilityLeases (
+    Time date,
+    CaregiverID int,
+    Owner varchar(64),
+    Token bigint,
+    ExpiresAt datetime2,
+    PRIMARY KEY (Time, CaregiverID)
 );
 
 CREATE TABLE Vaccines (
-    Name varchar(255),
+    VaccineID int IDENTITY(1, 1),
+    Name varchar(255) UNIQUE,
     Doses int,
-    PRIMARY KEY (Name)
+    PRIMARY KEY (VaccineID)
 );
 
 CREATE TABLE Patients (
-    Username varchar(255),
+    PatientID int IDENTITY(1, 1),
+    Username varchar(255) UNIQUE,
     Salt BINARY(16),
-    Hash BINARY(16),
-    PRIMARY KEY (Username)
+    Hash VARBINARY(64),
+    HashParams varchar(64),
+    PRIMARY KEY (PatientID)
 );
 
 CREATE TABLE Appointments (
     AppointmentID int,
-    Caregiver varchar(255) REFERENCES Caregivers,
-    Patient varchar(255) REFERENCES Patients,
-    Vaccine varchar(255) REFERENCES Vaccines,
+    CaregiverID int REFERENCES Caregivers,
+    PatientID int REFERENCES Patients,
+    VaccineID int REFERENCES Vaccines,
+    Time date,
+    PRIMARY KEY (AppointmentID)
+)
+
+CREATE TABLE Cancellations (
+    AppointmentID int,
+    CaregiverID int REFERENCES Caregivers,
+    PatientID int REFERENCES Patients,
+    VaccineID int REFERENCES Vaccines,
+    Time date,
+    CancelledAt datetime2 DEFAULT SYSUTCDATETIME()
+);
+
+-- Results of commands sent with a client request ID, see scheduler.model.RequestLog
+CREATE TABLE RequestResults (
+    Requester varchar(300),
+    RequestID varchar(64),
+    Command varchar(32),
+    Result varchar(400),
+    CreatedAt datetime2 DEFAULT SYSUTCDATETIME(),
+    PRIMARY KEY (Requester, RequestID)
+);
+
+CREATE TABLE ShardRanges (
+    StartDate date,
+    EndDate date,
+    Shard int,
+    PRIMARY KEY (StartDate)
+);
+
+-- appointment IDs of an unsharded setup, see Appointment.allocateIDs
+CREATE SEQUENCE AppointmentSequence AS int START WITH 1;
+
+CREATE INDEX AppointmentsTime ON Appointments (Time);
+-- show_appointments pages through a user's appointments by ID with a seek on these
+CREATE INDEX AppointmentsPatient ON Appointments (PatientID, AppointmentID);
+CREATE INDEX AppointmentsCaregiver ON Appointments (CaregiverID, AppointmentID);
+
+-- Past rows moved out of Availabilities and Appointments by scheduler.model.Archiver. They are written
+-- with OUTPUT INTO, so they cannot have foreign keys.
+CREATE TABLE ArchivedAvailabilities (
+    Time date,
+    CaregiverID int,
+    PRIMARY KEY (Time, CaregiverID)
+);
+
+CREATE TABLE ArchivedAppointments (
+    AppointmentID int,
+    CaregiverID int,
+    PatientID int,
+    VaccineID int,
     Time date,
-)
\ No newline at end of file
+    PRIMARY KEY (AppointmentID)
+);
+
+CREATE INDEX ArchivedAppointmentsPatient ON ArchivedAppointments (PatientID);
+CREATE INDEX ArchivedAppointmentsCaregiver ON ArchivedAppointments (CaregiverID);
@@ -0,0 +1,78 @@
+-- Schema of each shard database, see scheduler.db.ShardRouter. Users and vaccines live on the
+-- primary database, so these tables hold their IDs without foreign keys.
+
+CREATE TABLE Availabilities (
+    Time date,
+    CaregiverID int,
+    PRIMARY KEY (Time, CaregiverID)
+);
+
+-- Free caregivers per date, adjusted in the same transaction as every change to Availabilities
+CREATE TABLE DailyCapacity (
+    Time date,
+    FreeCaregivers int,
+    PRIMARY KEY (Time)
+);
+
+CREATE TABLE AvailabilityLeases (
+    Time date,
+    CaregiverID int,
+    Owner varchar(64),
+    Token bigint,
+    ExpiresAt datetime2,
+    PRIMARY KEY (Time, CaregiverID)
+);
+
+CREATE TABLE Appointments (
+    AppointmentID int,
+    CaregiverID int,
+    PatientID int,
+    VaccineID int,
+    Time date,
+    PRIMARY KEY (AppointmentID)
+);
+
+CREATE TABLE Cancellations (
+    AppointmentID int,
+    CaregiverID int,
+    PatientID int,
+    VaccineID int,
+    Time date,
+    CancelledAt datetime2 DEFAULT SYSUTCDATETIME()
+);
+
+-- appointment IDs of this shard, see Appointment.allocateIDs
+CREATE SEQUENCE AppointmentSequence AS int START WITH 1;
+
+CREATE INDEX AppointmentsTime ON Appointments (Time);
+-- show_appointments pages through a user's appointments by ID with a seek on these
+CREATE INDEX AppointmentsPatient ON Appointments (PatientID, AppointmentID);
+CREATE INDEX AppointmentsCaregiver ON Appointments (CaregiverID, AppointmentID);
+
+-- Dates moved to another shard by ShardRouter.moveRange, writes to them are turned away here
+CREATE TABLE ShardFences (
+    StartDate date,
+    EndDate date,
+    Shard int,
+    PRIMARY KEY (StartDate, EndDate)
+);
+
+-- Past rows moved out of Availabilities and Appointments by scheduler.model.Archiver. They are written
+-- with OUTPUT INTO, so they cannot have foreign keys.
+CREATE TABLE ArchivedAvailabilities (
+    Time date,
+    CaregiverID int,
+    PRIMARY KEY (Time, CaregiverID)
+);
+
+CREATE TABLE ArchivedAppointments (
+    AppointmentID int,
+    CaregiverID int,
+    PatientID int,
+    VaccineID int,
+    Time date,
+    PRIMARY KEY (AppointmentID)
+);
+
+CREATE INDEX ArchivedAppointmentsPatient ON ArchivedAppointments (PatientID);
+CREATE INDEX ArchivedAppointmentsCaregiver ON ArchivedAppointments (CaregiverID);
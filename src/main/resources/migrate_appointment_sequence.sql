@@ -0,0 +1,71 @@
+-- Moves a database to the AppointmentSequence of create.sql / create_shard.sql, a SEQUENCE object, and adds
+-- the primary key on Appointments. Run it with the scheduler stopped. Part 1 is for the primary of an
+-- unsharded setup, which allocated MAX(AppointmentID) + 1 or from an AppointmentSequence table. Part 2 is
+-- for every shard, which allocated from an AppointmentSequence table of its own. Run
+-- migrate_missing_tables.sql first, this one reads ArchivedAppointments.
+
+-- Part 1, the primary of an unsharded setup
+
+-- the IDs two processes allocated at the same time, or that the archive already holds
+SELECT A.* FROM Appointments A
+WHERE (SELECT COUNT(*) FROM Appointments B WHERE B.AppointmentID = A.AppointmentID) > 1
+OR EXISTS (SELECT 1 FROM ArchivedAppointments R WHERE R.AppointmentID = A.AppointmentID)
+ORDER BY A.AppointmentID, A.Time, A.CaregiverID;
+GO
+
+-- every copy but the first, and every appointment whose ID is archived, gets a new ID past the highest one
+DECLARE @next int = (SELECT ISNULL(MAX(ID), 0) FROM (
+    SELECT MAX(AppointmentID) ID FROM Appointments
+    UNION ALL SELECT MAX(AppointmentID) FROM ArchivedAppointments
+) ids);
+WITH Copies AS (
+    SELECT AppointmentID, ROW_NUMBER() OVER (PARTITION BY AppointmentID ORDER BY Time, CaregiverID, PatientID) AS Copy,
+           CASE WHEN EXISTS (SELECT 1 FROM ArchivedAppointments R WHERE R.AppointmentID = Appointments.AppointmentID)
+                THEN 1 ELSE 0 END AS Archived
+    FROM Appointments
+), Renumbered AS (
+    SELECT AppointmentID, ROW_NUMBER() OVER (ORDER BY AppointmentID, Copy) AS N
+    FROM Copies WHERE Copy > 1 OR Archived = 1
+)
+UPDATE Renumbered SET AppointmentID = @next + N;
+GO
+
+-- the sequence starts past every ID in use and every ID an earlier AppointmentSequence table handed out
+DECLARE @start int = (SELECT ISNULL(MAX(ID), 0) + 1 FROM (
+    SELECT MAX(AppointmentID) ID FROM Appointments
+    UNION ALL SELECT MAX(AppointmentID) FROM ArchivedAppointments
+) ids);
+IF OBJECT_ID('AppointmentSequence', 'U') IS NOT NULL
+BEGIN
+    DECLARE @old int;
+    EXEC sp_executesql N'SELECT @old = MAX(NextID) + 1 FROM AppointmentSequence', N'@old int OUTPUT', @old OUTPUT;
+    IF @old > @start SET @start = @old;
+    DROP TABLE AppointmentSequence;
+END
+DECLARE @create nvarchar(200) = N'CREATE SEQUENCE AppointmentSequence AS int START WITH ' + CAST(@start AS nvarchar(20));
+EXEC sp_executesql @create;
+GO
+
+ALTER TABLE Appointments ALTER COLUMN AppointmentID int NOT NULL;
+ALTER TABLE Appointments ADD PRIMARY KEY (AppointmentID);
+GO
+
+-- Part 2, every shard
+
+-- the table holds the last sequence number, not an ID, so the sequence continues right after it
+DECLARE @start int = 1;
+IF OBJECT_ID('AppointmentSequence', 'U') IS NOT NULL
+BEGIN
+    EXEC sp_executesql N'SELECT @start = ISNULL(MAX(NextID), 0) + 1 FROM AppointmentSequence', N'@start int OUTPUT', @start OUTPUT;
+    DROP TABLE AppointmentSequence;
+END
+IF OBJECT_ID('AppointmentSequence', 'SO') IS NULL
+BEGIN
+    DECLARE @create nvarchar(200) = N'CREATE SEQUENCE AppointmentSequence AS int START WITH ' + CAST(@start AS nvarchar(20));
+    EXEC sp_executesql @create;
+END
+GO
+
+IF OBJECTPROPERTY(OBJECT_ID('Appointments'), 'TableHasPrimaryKey') = 0
+    ALTER TABLE Appointments ADD PRIMARY KEY (AppointmentID);
+GO
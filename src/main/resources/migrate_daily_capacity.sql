@@ -0,0 +1,19 @@
+-- Adds the DailyCapacity table of create.sql and create_shard.sql to a database created before it existed
+-- and fills it from Availabilities. A date without a row counts as full, so without this every date of an
+-- existing database is reported as having no free caregivers. Run it with the scheduler stopped, on the
+-- primary of an unsharded setup and on every shard. Dates that already have a row are left alone, so it can
+-- be run again.
+
+IF OBJECT_ID('DailyCapacity', 'U') IS NULL
+CREATE TABLE DailyCapacity (
+    Time date,
+    FreeCaregivers int,
+    PRIMARY KEY (Time)
+);
+GO
+
+INSERT INTO DailyCapacity (Time, FreeCaregivers)
+SELECT A.Time, COUNT(*) FROM Availabilities A
+WHERE NOT EXISTS (SELECT 1 FROM DailyCapacity D WHERE D.Time = A.Time)
+GROUP BY A.Time;
+GO
@@ -0,0 +1,8 @@
+-- Adds the HashParams column of create.sql to a database created before it existed, and widens Hash for the
+-- 256-bit keys of new hashes. Existing rows keep a NULL HashParams, which marks the legacy parameters, and
+-- are rehashed when their users next log in.
+
+ALTER TABLE Patients ALTER COLUMN Hash VARBINARY(64);
+ALTER TABLE Patients ADD HashParams varchar(64);
+ALTER TABLE Caregivers ALTER COLUMN Hash VARBINARY(64);
+ALTER TABLE Caregivers ADD HashParams varchar(64);
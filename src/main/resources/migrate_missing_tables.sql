@@ -0,0 +1,112 @@
+-- Adds the tables of create.sql and create_shard.sql that a database created before them does not have:
+-- AvailabilityLeases, Cancellations, ArchivedAvailabilities and ArchivedAppointments everywhere,
+-- RequestResults and ShardRanges on the primary. Tables that already exist are left alone, so it can be run
+-- again. Run it after migrate_surrogate_keys.sql and before migrate_appointment_sequence.sql, which reads
+-- ArchivedAppointments. DailyCapacity has to be filled as well and comes with migrate_daily_capacity.sql.
+-- Part 1 runs on the primary database, part 2 on every shard.
+
+-- Part 1, primary database
+
+IF OBJECT_ID('AvailabilityLeases', 'U') IS NULL
+CREATE TABLE AvailabilityLeases (
+    Time date,
+    CaregiverID int,
+    Owner varchar(64),
+    Token bigint,
+    ExpiresAt datetime2,
+    PRIMARY KEY (Time, CaregiverID)
+);
+
+IF OBJECT_ID('Cancellations', 'U') IS NULL
+CREATE TABLE Cancellations (
+    AppointmentID int,
+    CaregiverID int REFERENCES Caregivers,
+    PatientID int REFERENCES Patients,
+    VaccineID int REFERENCES Vaccines,
+    Time date,
+    CancelledAt datetime2 DEFAULT SYSUTCDATETIME()
+);
+
+IF OBJECT_ID('RequestResults', 'U') IS NULL
+CREATE TABLE RequestResults (
+    Requester varchar(300),
+    RequestID varchar(64),
+    Command varchar(32),
+    Result varchar(400),
+    CreatedAt datetime2 DEFAULT SYSUTCDATETIME(),
+    PRIMARY KEY (Requester, RequestID)
+);
+
+IF OBJECT_ID('ShardRanges', 'U') IS NULL
+CREATE TABLE ShardRanges (
+    StartDate date,
+    EndDate date,
+    Shard int,
+    PRIMARY KEY (StartDate)
+);
+
+IF OBJECT_ID('ArchivedAvailabilities', 'U') IS NULL
+CREATE TABLE ArchivedAvailabilities (
+    Time date,
+    CaregiverID int,
+    PRIMARY KEY (Time, CaregiverID)
+);
+
+IF OBJECT_ID('ArchivedAppointments', 'U') IS NULL
+BEGIN
+    CREATE TABLE ArchivedAppointments (
+        AppointmentID int,
+        CaregiverID int,
+        PatientID int,
+        VaccineID int,
+        Time date,
+        PRIMARY KEY (AppointmentID)
+    );
+    CREATE INDEX ArchivedAppointmentsPatient ON ArchivedAppointments (PatientID);
+    CREATE INDEX ArchivedAppointmentsCaregiver ON ArchivedAppointments (CaregiverID);
+END
+GO
+
+-- Part 2, every shard
+
+IF OBJECT_ID('AvailabilityLeases', 'U') IS NULL
+CREATE TABLE AvailabilityLeases (
+    Time date,
+    CaregiverID int,
+    Owner varchar(64),
+    Token bigint,
+    ExpiresAt datetime2,
+    PRIMARY KEY (Time, CaregiverID)
+);
+
+IF OBJECT_ID('Cancellations', 'U') IS NULL
+CREATE TABLE Cancellations (
+    AppointmentID int,
+    CaregiverID int,
+    PatientID int,
+    VaccineID int,
+    Time date,
+    CancelledAt datetime2 DEFAULT SYSUTCDATETIME()
+);
+
+IF OBJECT_ID('ArchivedAvailabilities', 'U') IS NULL
+CREATE TABLE ArchivedAvailabilities (
+    Time date,
+    CaregiverID int,
+    PRIMARY KEY (Time, CaregiverID)
+);
+
+IF OBJECT_ID('ArchivedAppointments', 'U') IS NULL
+BEGIN
+    CREATE TABLE ArchivedAppointments (
+        AppointmentID int,
+        CaregiverID int,
+        PatientID int,
+        VaccineID int,
+        Time date,
+        PRIMARY KEY (AppointmentID)
+    );
+    CREATE INDEX ArchivedAppointmentsPatient ON ArchivedAppointments (PatientID);
+    CREATE INDEX ArchivedAppointmentsCaregiver ON ArchivedAppointments (CaregiverID);
+END
+GO
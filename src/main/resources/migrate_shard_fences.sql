@@ -0,0 +1,9 @@
+-- Adds the ShardFences table of create_shard.sql to a shard created before it existed. Run it on every
+-- shard before moving a date range with the rebalance command.
+
+CREATE TABLE ShardFences (
+    StartDate date,
+    EndDate date,
+    Shard int,
+    PRIMARY KEY (StartDate, EndDate)
+);
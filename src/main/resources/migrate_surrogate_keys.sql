@@ -0,0 +1,170 @@
+-- Moves an existing database from name keys to the integer IDs of create.sql: users and vaccines get an
+-- IDENTITY column as primary key and keep their name as a unique column, the hot tables store only IDs.
+-- Run it with the scheduler stopped. Part 1 runs on the primary database. On a sharded setup, first copy
+-- CaregiverIDs, PatientIDs and VaccineIDs as created by part 1 to every shard, then run part 2 on each
+-- shard. Part 2 also runs on the primary, which holds the date-keyed tables when there are no shards.
+-- Tables the database does not have yet are skipped; migrate_missing_tables.sql creates them afterwards.
+
+-- Part 1, primary database: surrogate keys for users and vaccines
+
+DECLARE @sql nvarchar(max) = N'';
+SELECT @sql += N'ALTER TABLE ' + QUOTENAME(OBJECT_NAME(parent_object_id)) + N' DROP CONSTRAINT ' + QUOTENAME(name) + N';'
+FROM sys.foreign_keys
+WHERE referenced_object_id IN (OBJECT_ID('Caregivers'), OBJECT_ID('Patients'), OBJECT_ID('Vaccines'));
+SELECT @sql += N'ALTER TABLE ' + QUOTENAME(OBJECT_NAME(parent_object_id)) + N' DROP CONSTRAINT ' + QUOTENAME(name) + N';'
+FROM sys.key_constraints
+WHERE type = 'PK' AND parent_object_id IN (OBJECT_ID('Caregivers'), OBJECT_ID('Patients'), OBJECT_ID('Vaccines'));
+EXEC sp_executesql @sql;
+GO
+
+ALTER TABLE Caregivers ADD CaregiverID int IDENTITY(1, 1) NOT NULL;
+ALTER TABLE Patients ADD PatientID int IDENTITY(1, 1) NOT NULL;
+ALTER TABLE Vaccines ADD VaccineID int IDENTITY(1, 1) NOT NULL;
+GO
+
+ALTER TABLE Caregivers ADD PRIMARY KEY (CaregiverID), UNIQUE (Username);
+ALTER TABLE Patients ADD PRIMARY KEY (PatientID), UNIQUE (Username);
+ALTER TABLE Vaccines ADD PRIMARY KEY (VaccineID), UNIQUE (Name);
+GO
+
+-- the name to ID mappings part 2 translates with, copy them to the shards
+SELECT Username, CaregiverID INTO CaregiverIDs FROM Caregivers;
+SELECT Username, PatientID INTO PatientIDs FROM Patients;
+SELECT Name, VaccineID INTO VaccineIDs FROM Vaccines;
+GO
+
+-- Part 2, every database holding date-keyed tables: replace the name columns with IDs
+
+-- The copies below join the names to their IDs, so a row naming a caregiver, patient or vaccine without an
+-- ID would be left out. List such rows first and stop before any table is dropped; fix or delete them and
+-- run part 2 again.
+CREATE TABLE #Orphans (TableName sysname, Time date, Caregiver varchar(255), Patient varchar(255), Vaccine varchar(255));
+INSERT INTO #Orphans
+SELECT 'Availabilities', A.Time, A.Username, NULL, NULL
+FROM Availabilities A LEFT JOIN CaregiverIDs C ON C.Username = A.Username
+WHERE C.CaregiverID IS NULL;
+IF OBJECT_ID('AvailabilityLeases', 'U') IS NOT NULL
+    INSERT INTO #Orphans
+    SELECT 'AvailabilityLeases', L.Time, L.Username, NULL, NULL
+    FROM AvailabilityLeases L LEFT JOIN CaregiverIDs C ON C.Username = L.Username
+    WHERE C.CaregiverID IS NULL;
+INSERT INTO #Orphans
+SELECT 'Appointments', A.Time, A.Caregiver, A.Patient, A.Vaccine
+FROM Appointments A
+LEFT JOIN CaregiverIDs C ON C.Username = A.Caregiver
+LEFT JOIN PatientIDs P ON P.Username = A.Patient
+LEFT JOIN VaccineIDs V ON V.Name = A.Vaccine
+WHERE C.CaregiverID IS NULL OR P.PatientID IS NULL OR V.VaccineID IS NULL;
+IF OBJECT_ID('Cancellations', 'U') IS NOT NULL
+    INSERT INTO #Orphans
+    SELECT 'Cancellations', A.Time, A.Caregiver, A.Patient, A.Vaccine
+    FROM Cancellations A
+    LEFT JOIN CaregiverIDs C ON C.Username = A.Caregiver
+    LEFT JOIN PatientIDs P ON P.Username = A.Patient
+    LEFT JOIN VaccineIDs V ON V.Name = A.Vaccine
+    WHERE C.CaregiverID IS NULL OR P.PatientID IS NULL OR V.VaccineID IS NULL;
+IF OBJECT_ID('ArchivedAvailabilities', 'U') IS NOT NULL
+    INSERT INTO #Orphans
+    SELECT 'ArchivedAvailabilities', A.Time, A.Username, NULL, NULL
+    FROM ArchivedAvailabilities A LEFT JOIN CaregiverIDs C ON C.Username = A.Username
+    WHERE C.CaregiverID IS NULL;
+IF OBJECT_ID('ArchivedAppointments', 'U') IS NOT NULL
+    INSERT INTO #Orphans
+    SELECT 'ArchivedAppointments', A.Time, A.Caregiver, A.Patient, A.Vaccine
+    FROM ArchivedAppointments A
+    LEFT JOIN CaregiverIDs C ON C.Username = A.Caregiver
+    LEFT JOIN PatientIDs P ON P.Username = A.Patient
+    LEFT JOIN VaccineIDs V ON V.Name = A.Vaccine
+    WHERE C.CaregiverID IS NULL OR P.PatientID IS NULL OR V.VaccineID IS NULL;
+IF EXISTS (SELECT 1 FROM #Orphans)
+BEGIN
+    SELECT * FROM #Orphans;
+    RAISERROR('Rows without a caregiver, patient or vaccine ID were found, nothing was changed', 16, 1);
+    -- the remaining batches are only compiled, not run, until NOEXEC is switched off at the end
+    SET NOEXEC ON;
+END
+DROP TABLE #Orphans;
+GO
+
+SELECT A.Time, C.CaregiverID INTO Availabilities_IDs
+FROM Availabilities A JOIN CaregiverIDs C ON C.Username = A.Username;
+DROP TABLE Availabilities;
+EXEC sp_rename 'Availabilities_IDs', 'Availabilities';
+ALTER TABLE Availabilities ALTER COLUMN Time date NOT NULL;
+ALTER TABLE Availabilities ADD PRIMARY KEY (Time, CaregiverID);
+GO
+
+IF OBJECT_ID('AvailabilityLeases', 'U') IS NOT NULL
+BEGIN
+    SELECT L.Time, C.CaregiverID, L.Owner, L.Token, L.ExpiresAt INTO AvailabilityLeases_IDs
+    FROM AvailabilityLeases L JOIN CaregiverIDs C ON C.Username = L.Username;
+    DROP TABLE AvailabilityLeases;
+    EXEC sp_rename 'AvailabilityLeases_IDs', 'AvailabilityLeases';
+    ALTER TABLE AvailabilityLeases ALTER COLUMN Time date NOT NULL;
+    ALTER TABLE AvailabilityLeases ADD PRIMARY KEY (Time, CaregiverID);
+END
+GO
+
+SELECT A.AppointmentID, C.CaregiverID, P.PatientID, V.VaccineID, A.Time INTO Appointments_IDs
+FROM Appointments A
+JOIN CaregiverIDs C ON C.Username = A.Caregiver
+JOIN PatientIDs P ON P.Username = A.Patient
+JOIN VaccineIDs V ON V.Name = A.Vaccine;
+DROP TABLE Appointments;
+EXEC sp_rename 'Appointments_IDs', 'Appointments';
+CREATE INDEX AppointmentsTime ON Appointments (Time);
+CREATE INDEX AppointmentsPatient ON Appointments (PatientID, AppointmentID);
+CREATE INDEX AppointmentsCaregiver ON Appointments (CaregiverID, AppointmentID);
+GO
+
+IF OBJECT_ID('Cancellations', 'U') IS NOT NULL
+BEGIN
+    SELECT A.AppointmentID, C.CaregiverID, P.PatientID, V.VaccineID, A.Time, A.CancelledAt INTO Cancellations_IDs
+    FROM Cancellations A
+    JOIN CaregiverIDs C ON C.Username = A.Caregiver
+    JOIN PatientIDs P ON P.Username = A.Patient
+    JOIN VaccineIDs V ON V.Name = A.Vaccine;
+    DROP TABLE Cancellations;
+    EXEC sp_rename 'Cancellations_IDs', 'Cancellations';
+    ALTER TABLE Cancellations ADD DEFAULT SYSUTCDATETIME() FOR CancelledAt;
+END
+GO
+
+IF OBJECT_ID('ArchivedAvailabilities', 'U') IS NOT NULL
+BEGIN
+    SELECT A.Time, C.CaregiverID INTO ArchivedAvailabilities_IDs
+    FROM ArchivedAvailabilities A JOIN CaregiverIDs C ON C.Username = A.Username;
+    DROP TABLE ArchivedAvailabilities;
+    EXEC sp_rename 'ArchivedAvailabilities_IDs', 'ArchivedAvailabilities';
+    ALTER TABLE ArchivedAvailabilities ALTER COLUMN Time date NOT NULL;
+    ALTER TABLE ArchivedAvailabilities ADD PRIMARY KEY (Time, CaregiverID);
+END
+GO
+
+IF OBJECT_ID('ArchivedAppointments', 'U') IS NOT NULL
+BEGIN
+    SELECT A.AppointmentID, C.CaregiverID, P.PatientID, V.VaccineID, A.Time INTO ArchivedAppointments_IDs
+    FROM ArchivedAppointments A
+    JOIN CaregiverIDs C ON C.Username = A.Caregiver
+    JOIN PatientIDs P ON P.Username = A.Patient
+    JOIN VaccineIDs V ON V.Name = A.Vaccine;
+    DROP TABLE ArchivedAppointments;
+    EXEC sp_rename 'ArchivedAppointments_IDs', 'ArchivedAppointments';
+    ALTER TABLE ArchivedAppointments ALTER COLUMN AppointmentID int NOT NULL;
+    ALTER TABLE ArchivedAppointments ADD PRIMARY KEY (AppointmentID);
+    CREATE INDEX ArchivedAppointmentsPatient ON ArchivedAppointments (PatientID);
+    CREATE INDEX ArchivedAppointmentsCaregiver ON ArchivedAppointments (CaregiverID);
+END
+GO
+
+-- on the primary only: the foreign keys create.sql declares
+-- ALTER TABLE Availabilities ADD FOREIGN KEY (CaregiverID) REFERENCES Caregivers;
+-- ALTER TABLE Appointments ADD FOREIGN KEY (CaregiverID) REFERENCES Caregivers, FOREIGN KEY (PatientID) REFERENCES Patients, FOREIGN KEY (VaccineID) REFERENCES Vaccines;
+-- ALTER TABLE Cancellations ADD FOREIGN KEY (CaregiverID) REFERENCES Caregivers, FOREIGN KEY (PatientID) REFERENCES Patients, FOREIGN KEY (VaccineID) REFERENCES Vaccines;
+
+DROP TABLE CaregiverIDs;
+DROP TABLE PatientIDs;
+DROP TABLE VaccineIDs;
+GO
+
+SET NOEXEC OFF;
@@ -1,23 +1,53 @@
 package scheduler;
 
+import scheduler.analytics.ColumnarExporter;
+import scheduler.analytics.UtilizationReport;
+import scheduler.command.ArgType;
+import scheduler.command.Command;
+import scheduler.command.CommandRegistry;
+import scheduler.command.Role;
+import scheduler.db.AdmissionControl;
 import scheduler.db.ConnectionManager;
+import scheduler.db.Retry;
+import scheduler.db.ShardRouter;
+import scheduler.event.ChangeBus;
+import scheduler.event.ChangeEvent;
 import scheduler.model.Appointment;
+import scheduler.model.Archiver;
+import scheduler.model.AppointmentCache;
+import scheduler.model.AvailabilityIndex;
+import scheduler.model.AvailabilityLease;
+import scheduler.model.BulkReservation;
 import scheduler.model.Caregiver;
+import scheduler.model.DailyCapacity;
+import scheduler.model.DayCancellation;
+import scheduler.model.Dictionary;
+import scheduler.model.Hold;
 import scheduler.model.Patient;
+import scheduler.model.Reconciler;
+import scheduler.model.RequestLog;
+import scheduler.model.UsernameFilter;
 import scheduler.model.Vaccine;
+import scheduler.replay.Recorder;
+import scheduler.trace.SlowLog;
+import scheduler.trace.Trace;
+import scheduler.util.HashParams;
 import scheduler.util.Util;
 
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.nio.file.Paths;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Date;
+import java.time.LocalDate;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
-import java.util.Objects;
+import java.util.SortedMap;
 
 public class Scheduler {
 
@@ -27,94 +57,167 @@ public class Scheduler {
     private static Caregiver currentCaregiver = null;
     private static Patient currentPatient = null;
 
+    // every command the application understands, in the order they are listed to the user
+    private static final CommandRegistry registry = new CommandRegistry(Scheduler::currentRole);
+
+    // free caregiver-days fetched per round trip by reserve_earliest
+    private static final int EARLIEST_PAGE_SIZE = 32;
+    private static final int APPOINTMENT_PAGE_SIZE = 20;
+    // slowest traces printed by slowlog, the export writes all of them
+    private static final int SLOWLOG_PRINT_LIMIT = 10;
+
+    static {
+        registry.register(new Command.CommandBuilder("create_patient", Scheduler::createPatient)
+                .usage("create_patient <username> <password>").usageError("Failed to create user.")
+                .args(ArgType.STRING, ArgType.STRING).secretArgs(2).build());
+        registry.register(new Command.CommandBuilder("create_caregiver", Scheduler::createCaregiver)
+                .usage("create_caregiver <username> <password>").usageError("Failed to create user.")
+                .args(ArgType.STRING, ArgType.STRING).secretArgs(2).build());
+        registry.register(new Command.CommandBuilder("login_patient", Scheduler::loginPatient)
+                .usage("login_patient <username> <password>").usageError("Login failed.")
+                .role(Role.LOGGED_OUT).args(ArgType.STRING, ArgType.STRING).secretArgs(2).build());
+        registry.register(new Command.CommandBuilder("login_caregiver", Scheduler::loginCaregiver)
+                .usage("login_caregiver <username> <password>").usageError("Login failed.")
+                .role(Role.LOGGED_OUT).args(ArgType.STRING, ArgType.STRING).secretArgs(2).build());
+        registry.register(new Command.CommandBuilder("search_caregiver_schedule", Scheduler::searchCaregiverSchedule)
+                .usage("search_caregiver_schedule <date>")
+                .role(Role.LOGGED_IN).args(ArgType.DATE).readOnly().build());
+        registry.register(new Command.CommandBuilder("search_range", Scheduler::searchRange)
+                .usage("search_range <start_date> <end_date> <vaccine>")
+                .role(Role.LOGGED_IN).args(ArgType.DATE, ArgType.DATE, ArgType.STRING).readOnly().build());
+        registry.register(new Command.CommandBuilder("reserve", Scheduler::reserve)
+                .usage("reserve <date> <vaccine> [request_id]")
+                .role(Role.PATIENT).args(ArgType.DATE, ArgType.STRING).optionalArgs(ArgType.STRING).build());
+        registry.register(new Command.CommandBuilder("reserve_earliest", Scheduler::reserveEarliest)
+                .usage("reserve_earliest <vaccine> [from_date]")
+                .role(Role.PATIENT).args(ArgType.STRING).optionalArgs(ArgType.DATE).build());
+        registry.register(new Command.CommandBuilder("hold", Scheduler::hold)
+                .usage("hold <date> <vaccine>")
+                .role(Role.PATIENT).args(ArgType.DATE, ArgType.STRING).build());
+        registry.register(new Command.CommandBuilder("confirm", Scheduler::confirm)
+                .usage("confirm <hold_id>")
+                .role(Role.PATIENT).args(ArgType.INT).build());
+        registry.register(new Command.CommandBuilder("release", Scheduler::release)
+                .usage("release <hold_id>")
+                .role(Role.PATIENT).args(ArgType.INT).build());
+        registry.register(new Command.CommandBuilder("bulk_reserve", Scheduler::bulkReserve)
+                .usage("bulk_reserve <date> <vaccine> <patient,patient,...>")
+                .role(Role.CAREGIVER).args(ArgType.DATE, ArgType.STRING, ArgType.STRING).build());
+        registry.register(new Command.CommandBuilder("upload_availability", Scheduler::uploadAvailability)
+                .usage("upload_availability <date>")
+                .role(Role.CAREGIVER).args(ArgType.DATE).build());
+        registry.register(new Command.CommandBuilder("cancel", Scheduler::cancel)
+                .usage("cancel <appointment_id> [request_id]")
+                .role(Role.LOGGED_IN).args(ArgType.INT).optionalArgs(ArgType.STRING).build());
+        registry.register(new Command.CommandBuilder("cancel_day", Scheduler::cancelDay)
+                .usage("cancel_day <date>")
+                .role(Role.CAREGIVER).args(ArgType.DATE).build());
+        registry.register(new Command.CommandBuilder("add_doses", Scheduler::addDoses)
+                .usage("add_doses <vaccine> <number> [request_id]")
+                .role(Role.CAREGIVER).args(ArgType.STRING, ArgType.INT).optionalArgs(ArgType.STRING).build());
+        registry.register(new Command.CommandBuilder("show_appointments", Scheduler::showAppointments)
+                .usage("show_appointments [all] [after_id]")
+                .role(Role.LOGGED_IN).optionalArgs(ArgType.STRING, ArgType.INT).readOnly().build());
+        registry.register(new Command.CommandBuilder("archive", Scheduler::archive)
+                .usage("archive")
+                .role(Role.CAREGIVER).build());
+        registry.register(new Command.CommandBuilder("export", Scheduler::export)
+                .usage("export <file>")
+                .role(Role.CAREGIVER).args(ArgType.STRING).readOnly().build());
+        registry.register(new Command.CommandBuilder("report", Scheduler::report)
+                .usage("report <start_date> <end_date>")
+                .role(Role.CAREGIVER).args(ArgType.DATE, ArgType.DATE).readOnly().build());
+        registry.register(new Command.CommandBuilder("rebalance", Scheduler::rebalance)
+                .usage("rebalance <start_date> <end_date> <shard>")
+                .role(Role.CAREGIVER).args(ArgType.DATE, ArgType.DATE, ArgType.INT).build());
+        registry.register(new Command.CommandBuilder("migrate_shards", Scheduler::migrateShards)
+                .usage("migrate_shards")
+                .role(Role.CAREGIVER).build());
+        registry.register(new Command.CommandBuilder("reconcile", Scheduler::reconcile)
+                .usage("reconcile [fix]")
+                .role(Role.CAREGIVER).optionalArgs(ArgType.STRING).build());
+        registry.register(new Command.CommandBuilder("stats", Scheduler::stats)
+                .usage("stats").readOnly().build());
+        registry.register(new Command.CommandBuilder("slowlog", Scheduler::slowlog)
+                .usage("slowlog [file]")
+                .optionalArgs(ArgType.STRING).readOnly().build());
+        // logout turns away a logged-out user itself, with its own message
+        registry.register(new Command.CommandBuilder("logout", Scheduler::logout)
+                .usage("logout").build());
+        registry.register(new Command.CommandBuilder("quit", Scheduler::quit)
+                .usage("quit").build());
+    }
+
     public static void main(String[] args) {
         // printing greetings text
         System.out.println();
         System.out.println("Welcome to the COVID-19 Vaccine Reservation Scheduling Application!");
         System.out.println("*** Please enter one of the following commands ***");
-        System.out.println("> create_patient <username> <password>");
-        System.out.println("> create_caregiver <username> <password>");
-        System.out.println("> login_patient <username> <password>");
-        System.out.println("> login_caregiver <username> <password>");
-        System.out.println("> search_caregiver_schedule <date>");
-        System.out.println("> reserve <date> <vaccine>");
-        System.out.println("> upload_availability <date>");
-        System.out.println("> cancel <appointment_id>");
-        System.out.println("> add_doses <vaccine> <number>");
-        System.out.println("> show_appointments");
-        System.out.println("> logout");
-        System.out.println("> quit");
+        for (Command command : registry.getCommands()) {
+            System.out.println("> " + command.getUsage());
+        }
+        System.out.println("*** Separate several commands on one line with ';', after a password leave a space before it ***");
         System.out.println();
 
+        // load the username filters so checks for new usernames can skip the database
+        try {
+            UsernameFilter.PATIENTS.load();
+            UsernameFilter.CAREGIVERS.load();
+        } catch (SQLException e) {
+            System.out.println("Could not load usernames, every username check will query the database");
+        }
+
+        // record the commands of this session when RecordDir is set
+        Recorder.start();
+
+        // move past availabilities and appointments to the archive tables in the background
+        Archiver.start();
+
+        // calibrate the password hash cost now rather than in the first create or login
+        HashParams.current();
+
         // read input from user
         BufferedReader r = new BufferedReader(new InputStreamReader(System.in));
-        while (true) {
+        while (!registry.isStopped()) {
             System.out.print("> ");
             String response = "";
             try {
                 response = r.readLine();
             } catch (IOException e) {
                 System.out.println("Please try again!");
-            }
-            // split the user input by spaces
-            String[] tokens = response.split(" ");
-            // check if input exists
-            if (tokens.length == 0) {
-                System.out.println("Please try again!");
                 continue;
             }
-            // determine which operation to perform
-            String operation = tokens[0];
-            if (operation.equals("create_patient")) {
-                createPatient(tokens);
-            } else if (operation.equals("create_caregiver")) {
-                createCaregiver(tokens);
-            } else if (operation.equals("login_patient")) {
-                loginPatient(tokens);
-            } else if (operation.equals("login_caregiver")) {
-                loginCaregiver(tokens);
-            } else if (operation.equals("search_caregiver_schedule")) {
-                searchCaregiverSchedule(tokens);
-            } else if (operation.equals("reserve")) {
-                reserve(tokens);
-            } else if (operation.equals("upload_availability")) {
-                uploadAvailability(tokens);
-            } else if (operation.equals("cancel")) {
-                cancel(tokens);
-            } else if (operation.equals("add_doses")) {
-                addDoses(tokens);
-            } else if (operation.equals("show_appointments")) {
-                showAppointments(tokens);
-            } else if (operation.equals("logout")) {
-                logout(tokens);
-            } else if (operation.equals("quit")) {
-                System.out.println("Bye!");
+            // end of input behaves like quit
+            if (response == null) {
+                quit(new String[]{"quit"});
                 return;
-            } else {
-                System.out.println("Invalid operation name!");
             }
+            registry.execute(response);
         }
     }
 
+    private static Role currentRole() {
+        if (currentPatient != null) {
+            return Role.PATIENT;
+        }
+        return currentCaregiver != null ? Role.CAREGIVER : Role.LOGGED_OUT;
+    }
+
     private static void createPatient(String[] tokens) {
         // create_patient <username> <password>
-        // check 1: the length for tokens need to be exactly 3 to include all information (with the operation name)
-        if (tokens.length != 3) {
-            System.out.println("Failed to create user.");
-            return;
-        }
         String username = tokens[1];
         String password = tokens[2];
-        // check 2: check if the username has been taken already
+        // check if the username has been taken already
         if (usernameExistsPatient(username)) {
             System.out.println("Username taken, try again!");
             return;
         }
         byte[] salt = Util.generateSalt();
-        byte[] hash = Util.generateHash(password, salt);
+        HashParams hashParams = HashParams.current();
+        byte[] hash = Util.generateHash(password, salt, hashParams);
         // create the patient
         try {
-            currentPatient = new Patient.PatientBuilder(username, salt, hash).build();
+            currentPatient = new Patient.PatientBuilder(username, salt, hash, hashParams).build();
             // save to patient information to our database
             currentPatient.saveToDB();
             System.out.println("Created user " + username);
@@ -125,11 +228,15 @@ public class Scheduler {
     }
 
     private static boolean usernameExistsPatient(String username) {
+        // a miss in the filter means nobody has this username yet
+        if (!UsernameFilter.PATIENTS.mightExist(username)) {
+            return false;
+        }
         ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
 
         String selectUsername = "SELECT * FROM Patients WHERE Username = ?";
         try {
+            Connection con = cm.createConnection();
             PreparedStatement statement = con.prepareStatement(selectUsername);
             statement.setString(1, username);
             ResultSet resultSet = statement.executeQuery();
@@ -146,23 +253,19 @@ public class Scheduler {
 
     private static void createCaregiver(String[] tokens) {
         // create_caregiver <username> <password>
-        // check 1: the length for tokens need to be exactly 3 to include all information (with the operation name)
-        if (tokens.length != 3) {
-            System.out.println("Failed to create user.");
-            return;
-        }
         String username = tokens[1];
         String password = tokens[2];
-        // check 2: check if the username has been taken already
+        // check if the username has been taken already
         if (usernameExistsCaregiver(username)) {
             System.out.println("Username taken, try again!");
             return;
         }
         byte[] salt = Util.generateSalt();
-        byte[] hash = Util.generateHash(password, salt);
+        HashParams hashParams = HashParams.current();
+        byte[] hash = Util.generateHash(password, salt, hashParams);
         // create the caregiver
         try {
-            currentCaregiver = new Caregiver.CaregiverBuilder(username, salt, hash).build();
+            currentCaregiver = new Caregiver.CaregiverBuilder(username, salt, hash, hashParams).build();
             // save to caregiver information to our database
             currentCaregiver.saveToDB();
             System.out.println("Created user " + username);
@@ -173,11 +276,15 @@ public class Scheduler {
     }
 
     private static boolean usernameExistsCaregiver(String username) {
+        // a miss in the filter means nobody has this username yet
+        if (!UsernameFilter.CAREGIVERS.mightExist(username)) {
+            return false;
+        }
         ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
 
         String selectUsername = "SELECT * FROM Caregivers WHERE Username = ?";
         try {
+            Connection con = cm.createConnection();
             PreparedStatement statement = con.prepareStatement(selectUsername);
             statement.setString(1, username);
             ResultSet resultSet = statement.executeQuery();
@@ -194,16 +301,6 @@ public class Scheduler {
 
     private static void loginPatient(String[] tokens) {
         // login_patient <username> <password>
-        // check 1: if someone's already logged-in, they need to log out first
-        if (currentCaregiver != null || currentPatient != null) {
-            System.out.println("User already logged in.");
-            return;
-        }
-        // check 2: the length for tokens need to be exactly 3 to include all information (with the operation name)
-        if (tokens.length != 3) {
-            System.out.println("Login failed.");
-            return;
-        }
         String username = tokens[1];
         String password = tokens[2];
 
@@ -225,16 +322,6 @@ public class Scheduler {
 
     private static void loginCaregiver(String[] tokens) {
         // login_caregiver <username> <password>
-        // check 1: if someone's already logged-in, they need to log out first
-        if (currentCaregiver != null || currentPatient != null) {
-            System.out.println("User already logged in.");
-            return;
-        }
-        // check 2: the length for tokens need to be exactly 3 to include all information (with the operation name)
-        if (tokens.length != 3) {
-            System.out.println("Login failed.");
-            return;
-        }
         String username = tokens[1];
         String password = tokens[2];
 
@@ -256,16 +343,6 @@ public class Scheduler {
 
     private static void searchCaregiverSchedule(String[] tokens) {
         // search_caregiver_schedule <date>
-        // check 1: if not logged-in, prompt the user to log in first
-        if (currentCaregiver == null && currentPatient == null) {
-            System.out.println("Please login first!");
-            return;
-        }
-        // check 2: the length for tokens need to be exactly 2 to include all information (with the operation name)
-        if (tokens.length != 2) {
-            System.out.println("Please try again!");
-            return;
-        }
         String date = tokens[1];
         try {
             Date d = Date.valueOf(date);
@@ -282,75 +359,288 @@ public class Scheduler {
         }
     }
 
-    private static void reserve(String[] tokens) {
-        // reserve <date> <vaccine>
-        // check 1: if a caregiver is logged-in, prompt them to log in as patient
-        if (currentCaregiver != null) {
-            System.out.println("Please login as a patient!");
-            return;
-        }
-        // check 2: if not logged-in, prompt the user to log in first
-        if (currentPatient == null) {
-            System.out.println("Please login first!");
+    private static void searchRange(String[] tokens) {
+        // search_range <start_date> <end_date> <vaccine>
+        LocalDate start = Date.valueOf(tokens[1]).toLocalDate();
+        LocalDate end = Date.valueOf(tokens[2]).toLocalDate();
+        String vaccine = tokens[3];
+        if (end.isBefore(start)) {
+            System.out.println("Please enter a valid date range!");
             return;
         }
-        // check 3: the length for tokens need to be exactly 3 to include all information (with the operation name)
-        if (tokens.length != 3) {
-            System.out.println("Please try again!");
-            return;
+        try {
+            Vaccine vac = new Vaccine.VaccineGetter(vaccine).get();
+            if (vac == null || vac.getAvailableDoses() == 0) {
+                System.out.println("Not enough available doses!");
+                return;
+            }
+            SortedMap<LocalDate, Integer> available = AvailabilityIndex.countAvailable(start, end);
+            if (available.isEmpty()) {
+                System.out.println("No Caregiver is available!");
+                return;
+            }
+            System.out.println("Below are bookable dates for " + vaccine + " (" + vac.getAvailableDoses() + " doses left):");
+            for (Map.Entry<LocalDate, Integer> day : available.entrySet()) {
+                System.out.println(day.getKey() + " " + day.getValue() + " caregivers");
+            }
+        } catch (SQLException e) {
+            System.out.println("Error occurred when searching for availability");
+            e.printStackTrace();
         }
+    }
 
+    private static void reserve(String[] tokens) {
+        // reserve <date> <vaccine> [request_id]
         String date = tokens[1];
         String vaccine = tokens[2];
+        String requestID = tokens.length > 3 ? tokens[3] : null;
+        if (replayRequest(requestID, "reserve")) {
+            return;
+        }
 
+        Date d;
         try {
-            Date d = Date.valueOf(date);
-            List<String> availableCaregivers = currentPatient.getAvailableCaregivers(d);
-            Map<String, Integer> availableDoses = currentPatient.getAvailableDoses();
-            if (availableCaregivers.size() == 0) {
-                System.out.println("No Caregiver is available!");
-            } else if (!availableDoses.containsKey(vaccine) || Objects.equals(availableDoses.get(vaccine), 0)) {
-                System.out.println("Not enough available doses!");
-            } else {
-                // create a new appointment
-                String caregiverUsername = availableCaregivers.get(0);
-                int appointmentID = currentPatient.getMaxAppointmentID() + 1;
-                Appointment appointment = new Appointment.AppointmentBuilder(appointmentID, caregiverUsername, currentPatient.getUsername(), vaccine, d).build();
+            d = Date.valueOf(date);
+        } catch (IllegalArgumentException e) {
+            System.out.println("Please enter a valid date!");
+            return;
+        }
 
-                // save to appointment information to our database
-                appointment.saveToDB();
+        RequestLog.Request request = beginRequest(requestID, "reserve");
+        try (request) {
+            if (!hasDoses(vaccine)) {
+                System.out.println("Not enough available doses!");
+                return;
+            }
+            // a full date is turned away on its summary row, before its caregivers are listed
+            if (DailyCapacity.freeCaregivers(d) - Hold.heldCaregivers(d).size() <= 0) {
+                System.out.println("No Caregiver is available!");
+                return;
+            }
+            // caregivers are assigned by name, the first one is usually bookable
+            for (String caregiverUsername : currentPatient.getAvailableCaregivers(d)) {
+                if (book(d, caregiverUsername, vaccine)) {
+                    System.out.println("Reservation made with " + caregiverUsername + " on " + d);
+                    return;
+                }
+            }
+            System.out.println("No Caregiver is available!");
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+        } catch (RequestLog.DuplicateRequestException e) {
+            replayDuplicate(requestID, "reserve", e);
+        } catch (SQLException e) {
+            System.out.println("Error occurred when reserving");
+            e.printStackTrace();
+        }
+    }
 
-                // decrease the dose by 1
-                Vaccine vac = new Vaccine.VaccineGetter(vaccine).get();
-                vac.decreaseAvailableDoses(1);
+    private static void reserveEarliest(String[] tokens) {
+        // reserve_earliest <vaccine> [from_date]
+        String vaccine = tokens[1];
+        Date from = tokens.length > 2 ? Date.valueOf(tokens[2]) : Date.valueOf(LocalDate.now());
 
-                // change availability of the caregiver
-                currentPatient.updateAvailability(d, caregiverUsername);
+        try {
+            if (!hasDoses(vaccine)) {
+                System.out.println("Not enough available doses!");
+                return;
+            }
+            // walk the free caregiver-days in date order, a page at a time, until one can be booked
+            Date afterDate = from;
+            String afterCaregiver = null;
+            while (true) {
+                SortedMap<Date, List<String>> earliest = currentPatient.getEarliestAvailability(afterDate, afterCaregiver, EARLIEST_PAGE_SIZE);
+                if (earliest.isEmpty()) {
+                    System.out.println("No Caregiver is available!");
+                    return;
+                }
+                for (Map.Entry<Date, List<String>> day : earliest.entrySet()) {
+                    for (String caregiverUsername : day.getValue()) {
+                        if (book(day.getKey(), caregiverUsername, vaccine)) {
+                            System.out.println("Reservation made with " + caregiverUsername + " on " + day.getKey());
+                            return;
+                        }
+                    }
+                }
+                afterDate = earliest.lastKey();
+                List<String> lastDay = earliest.get(afterDate);
+                afterCaregiver = lastDay.get(lastDay.size() - 1);
             }
-            System.out.println("Reservation made with " + availableCaregivers.get(0) + " on " + date);
         } catch (IllegalArgumentException e) {
-            System.out.println("Please enter a valid date!");
+            System.out.println(e.getMessage());
         } catch (SQLException e) {
             System.out.println("Error occurred when reserving");
             e.printStackTrace();
         }
     }
 
-    private static void uploadAvailability(String[] tokens) {
-        // upload_availability <date>
-        // check 1: check if the current logged-in user is a caregiver
-        if (currentCaregiver == null) {
-            System.out.println("Please login as a caregiver first!");
+    private static void hold(String[] tokens) {
+        // hold <date> <vaccine>
+        Date d = Date.valueOf(tokens[1]);
+        String vaccine = tokens[2];
+        try {
+            Hold hold = Hold.place(currentPatient, d, vaccine);
+            if (hold == null) {
+                System.out.println("No Caregiver is available!");
+                return;
+            }
+            System.out.println("Hold " + hold.getHoldID() + " placed with " + hold.getCaregiverUsername() + " on " + d
+                    + ", confirm within " + (hold.getExpiresAt() - System.currentTimeMillis()) / 1000 + " seconds");
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+        } catch (SQLException e) {
+            System.out.println("Error occurred when placing hold");
+            e.printStackTrace();
+        }
+    }
+
+    private static void confirm(String[] tokens) {
+        // confirm <hold_id>
+        Hold hold = Hold.take(Integer.parseInt(tokens[1]), currentPatient.getUsername());
+        if (hold == null) {
+            System.out.println("This hold doesn't exist or has expired!");
             return;
         }
-        // check 2: the length for tokens need to be exactly 2 to include all information (with the operation name)
-        if (tokens.length != 2) {
-            System.out.println("Please try again!");
+        try {
+            if (book(hold.getDate(), hold.getCaregiverUsername(), hold.getVaccineName())) {
+                System.out.println("Reservation made with " + hold.getCaregiverUsername() + " on " + hold.getDate());
+            } else {
+                // only possible when another scheduler process booked the caregiver meanwhile
+                System.out.println("The held caregiver is no longer available, please try again!");
+            }
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+        } catch (SQLException e) {
+            System.out.println("Error occurred when reserving");
+            e.printStackTrace();
+        }
+    }
+
+    private static void release(String[] tokens) {
+        // release <hold_id>
+        if (Hold.take(Integer.parseInt(tokens[1]), currentPatient.getUsername()) == null) {
+            System.out.println("This hold doesn't exist or has expired!");
             return;
         }
+        System.out.println("Hold released!");
+    }
+
+    private static void bulkReserve(String[] tokens) {
+        // bulk_reserve <date> <vaccine> <patient,patient,...>
+        Date d = Date.valueOf(tokens[1]);
+        String vaccine = tokens[2];
+        List<String> patients = new ArrayList<>();
+        for (String patient : tokens[3].split(",")) {
+            if (!patient.isEmpty()) {
+                patients.add(patient);
+            }
+        }
+        try {
+            BulkReservation reservation = new BulkReservation(d, vaccine, patients);
+            reservation.run();
+            for (Appointment appointment : reservation.getBooked()) {
+                System.out.println(appointment.getAppointmentID() + " " + appointment.getPatientUsername() + " "
+                        + appointment.getCaregiverUsername());
+            }
+            for (Map.Entry<String, String> patient : reservation.getNotBooked().entrySet()) {
+                System.out.println("Not booked: " + patient.getKey() + " (" + patient.getValue() + ")");
+            }
+            System.out.println("Booked " + reservation.getBooked().size() + " of "
+                    + (reservation.getBooked().size() + reservation.getNotBooked().size()) + " patients on " + d);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+        } catch (SQLException e) {
+            System.out.println("Error occurred when reserving");
+            e.printStackTrace();
+        }
+    }
+
+    // Who sends requests in this session, request IDs only have to be unique per requester
+    private static String requester() {
+        return currentPatient != null ? "patient:" + currentPatient.getUsername()
+                : "caregiver:" + currentCaregiver.getUsername();
+    }
+
+    // Print the stored result if the request ID was seen before, returns false if the command still has to run
+    private static boolean replayRequest(String requestID, String command) {
+        if (requestID == null) {
+            return false;
+        }
+        if (requestID.length() > RequestLog.MAX_ID_LENGTH) {
+            System.out.println("Please enter a request ID of at most " + RequestLog.MAX_ID_LENGTH + " characters!");
+            return true;
+        }
+        try {
+            String result = RequestLog.lookup(requester(), requestID, command);
+            if (result == null) {
+                return false;
+            }
+            System.out.println(result);
+        } catch (SQLException e) {
+            System.out.println("Error occurred when checking the request ID");
+            e.printStackTrace();
+        }
+        return true;
+    }
+
+    // Another attempt with the request ID committed while ours ran, answer with its result now that ours rolled back
+    private static void replayDuplicate(String requestID, String command, RequestLog.DuplicateRequestException e) {
+        if (!replayRequest(requestID, command)) {
+            // the winning result has already expired
+            System.out.println("Error occurred when replaying the request");
+            e.printStackTrace();
+        }
+    }
+
+    // null without a request ID, which try-with-resources skips
+    private static RequestLog.Request beginRequest(String requestID, String command) {
+        return requestID == null ? null : RequestLog.begin(requester(), requestID, command);
+    }
+
+    // Whether a dose of the vaccine is left, reading only its Vaccines row. Doses set aside by holds cannot be booked.
+    private static boolean hasDoses(String vaccine) throws SQLException {
+        Vaccine vac = new Vaccine.VaccineGetter(vaccine).get();
+        return vac != null && vac.getAvailableDoses() - Hold.heldDoses(vaccine) > 0;
+    }
+
+    // Book the caregiver's day for the current patient, returns false if another booking got there first.
+    // Other processes may be booking the same day, so the caregiver is leased before booking.
+    private static boolean book(Date d, String caregiverUsername, String vaccine) throws SQLException {
+        if (Hold.isHeld(d, caregiverUsername)) {
+            return false;
+        }
+        AvailabilityLease lease = AvailabilityLease.claim(d, caregiverUsername);
+        if (lease == null) {
+            return false;
+        }
+        try {
+            // the booking is one transaction, retried as a unit if it loses a deadlock
+            return Retry.transaction(() -> {
+                // fails if our lease expired and was taken over while we were booking
+                if (!lease.consume()) {
+                    return false;
+                }
+                int appointmentID = Appointment.allocateID(d);
+                Appointment appointment = new Appointment.AppointmentBuilder(appointmentID, lease.getCaregiverID(),
+                        Dictionary.PATIENTS.id(currentPatient.getUsername()), Dictionary.VACCINES.id(vaccine), d).build();
+                appointment.saveToDB();
+
+                // decrease the dose by 1, rolls the booking back if the doses ran out meanwhile
+                Vaccine vac = new Vaccine.VaccineGetter(vaccine).get();
+                vac.decreaseAvailableDoses(1);
+                RequestLog.record("Reservation made with " + caregiverUsername + " on " + d);
+                return true;
+            });
+        } finally {
+            lease.release();
+        }
+    }
+
+    private static void uploadAvailability(String[] tokens) {
+        // upload_availability <date>
         String date = tokens[1];
         Date d = Date.valueOf(date);
-        // check 3: check if the availability already exists
+        // check if the availability already exists
         if (availabilityExist(d)) {
             System.out.println("You're already available on this date, try again!");
             return;
@@ -368,13 +658,14 @@ public class Scheduler {
     }
 
     private static boolean availabilityExist(Date date) {
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
-
-        String selectAvailability = "SELECT * FROM Availabilities WHERE Username = ? AND Time = ?";
+        String selectAvailability = "SELECT * FROM Availabilities WHERE CaregiverID = ? AND Time = ?";
+        ConnectionManager cm = null;
         try {
+            int caregiverID = Dictionary.CAREGIVERS.id(currentCaregiver.getUsername());
+            cm = new ConnectionManager(ShardRouter.shardFor(date));
+            Connection con = cm.createConnection();
             PreparedStatement statement = con.prepareStatement(selectAvailability);
-            statement.setString(1, currentCaregiver.getUsername());
+            statement.setInt(1, caregiverID);
             statement.setDate(2, date);
             ResultSet resultSet = statement.executeQuery();
             // returns false if the cursor is not before the first record or if there are no rows in the ResultSet.
@@ -383,151 +674,316 @@ public class Scheduler {
             System.out.println("Error occurred when checking username");
             e.printStackTrace();
         } finally {
-            cm.closeConnection();
+            if (cm != null) {
+                cm.closeConnection();
+            }
         }
         return true;
     }
 
     private static void cancel(String[] tokens) {
-        // cancel <appointment_id>
-        // check 1: if not logged-in, prompt the user to log in first
-        if (currentCaregiver == null && currentPatient == null) {
-            System.out.println("Please login first!");
+        // cancel <appointment_id> [request_id]
+        int appointmentID = Integer.parseInt(tokens[1]);
+        String requestID = tokens.length > 2 ? tokens[2] : null;
+        if (replayRequest(requestID, "cancel")) {
             return;
         }
-        // check 2: the length for tokens need to be exactly 2 to include all information (with the operation name)
-        if (tokens.length != 2) {
-            System.out.println("Please try again!");
-            return;
+        String addAvailability = "INSERT INTO Availabilities (Time, CaregiverID) VALUES (? , ?)";
+        RequestLog.Request request = beginRequest(requestID, "cancel");
+        try (request) {
+            // the whole cancellation is one transaction, retried as a unit if it loses a deadlock
+            String result = Retry.transaction(() -> {
+                // remove the appointment only when it exists and it is the right user
+                Appointment appointment = new Appointment.AppointmentGetter(appointmentID).get();
+                if (appointment == null) {
+                    return "This appointment doesn't exist!";
+                }
+                if ((currentCaregiver != null && Dictionary.CAREGIVERS.id(currentCaregiver.getUsername()) != appointment.getCaregiverID()) ||
+                (currentPatient != null && Dictionary.PATIENTS.id(currentPatient.getUsername()) != appointment.getPatientID())){
+                    return "You don't have access to cancel this appointment";
+                }
+                // the appointment may come from the cache, the delete tells us whether it still existed
+                if (!appointment.removeFromDB()) {
+                    return "This appointment doesn't exist!";
+                }
+
+                // increase the dose by 1
+                String vaccine = appointment.getVaccineName();
+                Vaccine vac = new Vaccine.VaccineGetter(vaccine).get();
+                vac.increaseAvailableDoses(1);
+
+                // change the availability of the caregiver
+                String caregiver = appointment.getCaregiverUsername();
+                Date d = appointment.getDate();
+
+                ConnectionManager cm = new ConnectionManager(ShardRouter.shardFor(d));
+                Connection con = cm.createConnection();
+                try {
+                    PreparedStatement statement = con.prepareStatement(addAvailability);
+                    statement.setDate(1, d);
+                    statement.setInt(2, appointment.getCaregiverID());
+                    statement.executeUpdate();
+                    DailyCapacity.adjust(con, d, 1);
+                } finally {
+                    cm.closeConnection();
+                }
+                ChangeBus.publish(ChangeEvent.availabilityAdded(d, caregiver));
+                String cancelled = "Reservation cancelled successfully with " + caregiver + " on " + d;
+                RequestLog.record(cancelled);
+                return cancelled;
+            });
+            System.out.println(result);
+        } catch (IllegalArgumentException e) {
+            System.out.println("Please enter a valid appointment ID!");
+        } catch (RequestLog.DuplicateRequestException e) {
+            replayDuplicate(requestID, "cancel", e);
+        } catch (SQLException e) {
+            System.out.println("Error occurred when cancelling");
+            e.printStackTrace();
         }
+    }
 
-        int appointmentID = Integer.parseInt(tokens[1]);
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
-        String addAvailability = "INSERT INTO Availabilities VALUES (? , ?)";
+    private static void cancelDay(String[] tokens) {
+        // cancel_day <date>
+        Date d = Date.valueOf(tokens[1]);
         try {
-            // remove the appointment only when it exists and it is the right user
-            Appointment appointment = new Appointment.AppointmentGetter(appointmentID).get();
-            if (appointment == null) {
-                System.out.println("This appointment doesn't exist!");
-                return;
+            DayCancellation cancellation = new DayCancellation(d, currentCaregiver.getUsername());
+            cancellation.run();
+            for (Appointment appointment : cancellation.getReassigned()) {
+                System.out.println(appointment.getAppointmentID() + " " + appointment.getPatientUsername()
+                        + " reassigned to " + appointment.getCaregiverUsername());
             }
-            if ((currentCaregiver != null && !Objects.equals(currentCaregiver.getUsername(), appointment.getCaregiverUsername())) ||
-            (!Objects.equals(currentPatient.getUsername(), appointment.getPatientUsername()))){
-                System.out.println("You don't have access to cancel this appointment");
-                return;
+            for (Appointment appointment : cancellation.getCancelled()) {
+                System.out.println(appointment.getAppointmentID() + " " + appointment.getPatientUsername() + " cancelled");
             }
-            appointment.removeFromDB();
-
-            // increase the dose by 1
-            String vaccine = appointment.getVaccineName();
-            Vaccine vac = new Vaccine.VaccineGetter(vaccine).get();
-            vac.increaseAvailableDoses(1);
-
-            // change the availability of the caregiver
-            String caregiver = appointment.getCaregiverUsername();
-            Date d = appointment.getDate();
-
-            PreparedStatement statement = con.prepareStatement(addAvailability);
-            statement.setDate(1, d);
-            statement.setString(2, caregiver);
-            statement.executeUpdate();
-
-            System.out.println("Reservation cancelled successfully with " + caregiver + " on " + d);
-        } catch (IllegalArgumentException e) {
-            System.out.println("Please enter a valid appointment ID!");
+            System.out.println("Reassigned " + cancellation.getReassigned().size() + " and cancelled "
+                    + cancellation.getCancelled().size() + " appointments on " + d);
         } catch (SQLException e) {
-            System.out.println("Error occurred when searching for availability");
+            System.out.println("Error occurred when cancelling the day");
             e.printStackTrace();
-        } finally {
-            cm.closeConnection();
         }
     }
 
     private static void addDoses(String[] tokens) {
-        // add_doses <vaccine> <number>
-        // check 1: check if the current logged-in user is a caregiver
-        if (currentCaregiver == null) {
-            System.out.println("Please login as a caregiver first!");
+        // add_doses <vaccine> <number> [request_id]
+        String vaccineName = tokens[1];
+        int doses = Integer.parseInt(tokens[2]);
+        String requestID = tokens.length > 3 ? tokens[3] : null;
+        if (replayRequest(requestID, "add_doses")) {
             return;
         }
-        // check 2: the length for tokens need to be exactly 3 to include all information (with the operation name)
-        if (tokens.length != 3) {
+        RequestLog.Request request = beginRequest(requestID, "add_doses");
+        try (request) {
+            // one transaction, so a recorded request ID always comes with its doses
+            String result = Retry.transaction(() -> {
+                Vaccine vaccine = new Vaccine.VaccineGetter(vaccineName).get();
+                // if getter returns null, it means that we need to create the vaccine and insert it into the Vaccines
+                //          table
+                if (vaccine == null) {
+                    vaccine = new Vaccine.VaccineBuilder(vaccineName, doses).build();
+                    vaccine.saveToDB();
+                } else {
+                    // if the vaccine is not null, meaning that the vaccine already exists in our table
+                    vaccine.increaseAvailableDoses(doses);
+                }
+                RequestLog.record("Doses updated!");
+                return "Doses updated!";
+            });
+            System.out.println(result);
+        } catch (RequestLog.DuplicateRequestException e) {
+            replayDuplicate(requestID, "add_doses", e);
+        } catch (SQLException e) {
+            System.out.println("Error occurred when adding doses");
+            e.printStackTrace();
+        }
+    }
+
+    private static void showAppointments(String[] tokens) {
+        // show_appointments [all] [after_id]
+        boolean includeArchived = tokens.length > 1 && tokens[1].equals("all");
+        int next = includeArchived ? 2 : 1;
+        int afterID;
+        try {
+            afterID = tokens.length > next ? Integer.parseInt(tokens[next]) : 0;
+        } catch (NumberFormatException e) {
+            System.out.println("Please try again!");
+            return;
+        }
+        if (tokens.length > next + 1) {
             System.out.println("Please try again!");
             return;
         }
-        String vaccineName = tokens[1];
-        int doses = Integer.parseInt(tokens[2]);
-        Vaccine vaccine = null;
         try {
-            vaccine = new Vaccine.VaccineGetter(vaccineName).get();
+            List<Appointment> appointments = currentPatient != null
+                    ? currentPatient.getAppointments(includeArchived, afterID, APPOINTMENT_PAGE_SIZE)
+                    : currentCaregiver.getAppointments(includeArchived, afterID, APPOINTMENT_PAGE_SIZE);
+            // one more than a page is read only to know whether another page follows
+            List<Appointment> page = appointments.subList(0, Math.min(APPOINTMENT_PAGE_SIZE, appointments.size()));
+            for (Appointment appointment : page) {
+                System.out.println(appointment.getAppointmentID() + " "
+                        + appointment.getVaccineName() + " "
+                        + appointment.getDate() + " "
+                        + (currentPatient != null ? appointment.getCaregiverUsername() : appointment.getPatientUsername()));
+            }
+            if (appointments.size() > page.size()) {
+                System.out.println("More appointments: show_appointments " + (includeArchived ? "all " : "")
+                        + page.get(page.size() - 1).getAppointmentID());
+            }
         } catch (SQLException e) {
-            System.out.println("Error occurred when adding doses");
+            System.out.println("Error occurred when showing appointments");
             e.printStackTrace();
         }
-        // check 3: if getter returns null, it means that we need to create the vaccine and insert it into the Vaccines
-        //          table
-        if (vaccine == null) {
-            try {
-                vaccine = new Vaccine.VaccineBuilder(vaccineName, doses).build();
-                vaccine.saveToDB();
-            } catch (SQLException e) {
-                System.out.println("Error occurred when adding doses");
-                e.printStackTrace();
-            }
-        } else {
-            // if the vaccine is not null, meaning that the vaccine already exists in our table
-            try {
-                vaccine.increaseAvailableDoses(doses);
-            } catch (SQLException e) {
-                System.out.println("Error occurred when adding doses");
-                e.printStackTrace();
-            }
+    }
+
+    private static void archive(String[] tokens) {
+        // archive
+        try {
+            long start = System.nanoTime();
+            long rows = Archiver.archive();
+            long millis = (System.nanoTime() - start) / 1_000_000;
+            System.out.println("Archived " + rows + " rows in " + millis + " ms");
+        } catch (SQLException e) {
+            System.out.println("Error occurred when archiving");
+            e.printStackTrace();
         }
-        System.out.println("Doses updated!");
     }
 
-    private static void showAppointments(String[] tokens) {
-        // show_appointments
-        // check 1: if not logged-in, prompt the user to log in first
-        if (currentCaregiver == null && currentPatient == null) {
-            System.out.println("Please login first!");
-            return;
+    private static void export(String[] tokens) {
+        // export <file>
+        try {
+            long start = System.nanoTime();
+            long rows = new ColumnarExporter(Paths.get(tokens[1])).export();
+            long millis = (System.nanoTime() - start) / 1_000_000;
+            System.out.println("Exported " + rows + " rows to " + tokens[1] + " in " + millis + " ms");
+        } catch (IOException e) {
+            System.out.println("Error occurred when writing export file");
+            e.printStackTrace();
+        } catch (SQLException e) {
+            System.out.println("Error occurred when exporting");
+            e.printStackTrace();
+        }
+    }
+
+    private static void report(String[] tokens) {
+        // report <start_date> <end_date>
+        try {
+            UtilizationReport report = new UtilizationReport(Date.valueOf(tokens[1]).toLocalDate(),
+                    Date.valueOf(tokens[2]).toLocalDate());
+            report.compute();
+            report.print();
+        } catch (IllegalArgumentException e) {
+            System.out.println("Please enter a valid date range!");
+        } catch (SQLException e) {
+            System.out.println("Error occurred when building report");
+            e.printStackTrace();
+        }
+    }
+
+    private static void rebalance(String[] tokens) {
+        // rebalance <start_date> <end_date> <shard>
+        try {
+            long rows = ShardRouter.moveRange(Date.valueOf(tokens[1]).toLocalDate(),
+                    Date.valueOf(tokens[2]).toLocalDate(), Integer.parseInt(tokens[3]));
+            System.out.println("Moved " + rows + " rows to shard " + tokens[3]);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+        } catch (SQLException e) {
+            System.out.println("Error occurred when rebalancing");
+            e.printStackTrace();
         }
-        // check 2: the length for tokens need to be exactly 1 to include all information
-        if (tokens.length != 1) {
+    }
+
+    private static void migrateShards(String[] tokens) {
+        // migrate_shards
+        try {
+            long rows = ShardRouter.migratePrimary();
+            System.out.println("Moved " + rows + " rows from the primary to the shards");
+        } catch (SQLException e) {
+            System.out.println("Error occurred when migrating to shards");
+            e.printStackTrace();
+        }
+    }
+
+    private static void reconcile(String[] tokens) {
+        // reconcile [fix]
+        if (tokens.length > 1 && !tokens[1].equals("fix")) {
             System.out.println("Please try again!");
             return;
         }
-        if (currentPatient != null) {
-            try {
-                currentPatient.getCurrentAppointments();
-            } catch (SQLException e) {
-                System.out.println("Error occurred when adding doses");
-                e.printStackTrace();
+        try {
+            long start = System.nanoTime();
+            Reconciler.Report report = new Reconciler(tokens.length > 1).run();
+            long millis = (System.nanoTime() - start) / 1_000_000;
+            boolean clean = true;
+            for (Reconciler.Violation violation : Reconciler.Violation.values()) {
+                if (report.getCount(violation) > 0) {
+                    clean = false;
+                    System.out.println(report.getCount(violation) + " " + violation.getDescription()
+                            + (violation.isFixable() ? " (fixable)" : ""));
+                }
             }
-        } else {
+            if (clean) {
+                System.out.println("No violations found");
+            }
+            for (String sample : report.getSamples()) {
+                System.out.println("  " + sample);
+            }
+            System.out.println("Checked " + report.getRows() + " rows in " + report.getChunks() + " chunks ("
+                    + report.getFailedChunks() + " failed), fixed " + report.getFixed() + " in " + millis + " ms");
+        } catch (SQLException e) {
+            System.out.println("Error occurred when reconciling");
+            e.printStackTrace();
+        }
+    }
+
+    private static void slowlog(String[] tokens) {
+        // slowlog [file]
+        if (tokens.length > 1) {
             try {
-                currentCaregiver.getCurrentAppointments();
-            } catch (SQLException e) {
-                System.out.println("Error occurred when adding doses");
+                SlowLog.export(Paths.get(tokens[1]));
+                System.out.println("Exported slow log to " + tokens[1]);
+            } catch (IOException e) {
+                System.out.println("Error occurred when exporting slow log");
                 e.printStackTrace();
             }
+            return;
+        }
+        List<Trace> traces = SlowLog.slowest(SLOWLOG_PRINT_LIMIT);
+        if (traces.isEmpty()) {
+            System.out.println("No slow operations recorded");
+            return;
         }
+        for (Trace trace : traces) {
+            System.out.print(trace.format());
+        }
+    }
+
+    private static void stats(String[] tokens) {
+        // stats
+        System.out.println(Retry.stats());
+        System.out.println(AdmissionControl.stats());
+        System.out.println(AppointmentCache.stats());
+        System.out.println(AvailabilityIndex.stats());
+        System.out.println(Hold.stats());
+        System.out.println(ChangeBus.stats());
+        System.out.println(Archiver.stats());
+        System.out.println(RequestLog.stats());
+        System.out.println(Dictionary.stats());
+    }
+
+    private static void quit(String[] tokens) {
+        // quit
+        System.out.println("Bye!");
+        registry.stop();
     }
 
     private static void logout(String[] tokens) {
         // logout
-        // check 1: if no one is already logged-in, no logout can be done
+        // if no one is already logged-in, no logout can be done
         if (currentCaregiver == null && currentPatient == null) {
             System.out.println("Please login first.");
             return;
         }
-        // check 2: the length for tokens need to be exactly 1 to include all information (only operation name is needed)
-        if (tokens.length != 1) {
-            System.out.println("Please try again!");
-            return;
-        }
         currentPatient = null;
         currentCaregiver = null;
         System.out.println("Successfully logged out!");
@@ -0,0 +1,248 @@
+package scheduler.analytics;
+
+import scheduler.db.ConnectionManager;
+import scheduler.db.ShardRouter;
+import scheduler.model.Dictionary;
+import scheduler.util.IntIntMap;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Streams Appointments, Availabilities and Vaccines into a compact columnar file so analytics queries
+ * can run against the file instead of the live database.
+ *
+ * File layout (all numbers little-endian):
+ * <pre>
+ *   header:    magic "VSCX", int version
+ *   row group: byte table, int rowCount, then one int32[rowCount] array per column
+ *   footer:    caregiver, patient and vaccine dictionaries (int count, then int length + UTF-8 bytes each)
+ *   trailer:   long footerOffset, magic "VSCX"
+ * </pre>
+ * Names are stored as indexes into the footer dictionaries and dates as epoch days, {@link #NULL_DATE} for
+ * a row without one. The tables hold the IDs of the names, which are mapped to indexes as rows stream by
+ * and only turned into names when the footer is written. Rows are buffered one row group at a time, so
+ * memory is bounded by the group size and the number of distinct names, not by the size of the tables.
+ */
+public class ColumnarExporter {
+
+    public static final int MAGIC = 0x58435356; // "VSCX" read as a little-endian int
+    public static final int VERSION = 1;
+
+    public static final byte TABLE_APPOINTMENTS = 1;
+    public static final byte TABLE_AVAILABILITIES = 2;
+    public static final byte TABLE_VACCINES = 3;
+
+    // a NULL date column, no real epoch day comes near it
+    public static final int NULL_DATE = Integer.MIN_VALUE;
+
+    private static final int FETCH_SIZE = 10000;
+    private static final int ROW_GROUP_SIZE = 65536;
+
+    private final Path path;
+    private final Encoding caregivers = new Encoding(Dictionary.CAREGIVERS);
+    private final Encoding patients = new Encoding(Dictionary.PATIENTS);
+    private final Encoding vaccines = new Encoding(Dictionary.VACCINES);
+
+    private FileChannel channel;
+    private ByteBuffer buffer;
+
+    public ColumnarExporter(Path path) {
+        this.path = path;
+    }
+
+    // Export all three tables, returns the number of rows written
+    public long export() throws SQLException, IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            this.channel = channel;
+            this.buffer = ByteBuffer.allocateDirect(ROW_GROUP_SIZE * Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+
+            buffer.putInt(MAGIC);
+            buffer.putInt(VERSION);
+            flush();
+
+            long rows = 0;
+            // the date-keyed tables may be spread over several shards, vaccines live on the primary database
+            for (int target : ShardRouter.targets()) {
+                ConnectionManager cm = new ConnectionManager(target);
+                try {
+                    Connection con = cm.createConnection();
+                    rows += exportAppointments(con);
+                    rows += exportAvailabilities(con);
+                } finally {
+                    cm.closeConnection();
+                }
+            }
+            ConnectionManager cm = new ConnectionManager();
+            try {
+                rows += exportVaccines(cm.createConnection());
+            } finally {
+                cm.closeConnection();
+            }
+
+            long footerOffset = channel.position();
+            writeDictionary(caregivers);
+            writeDictionary(patients);
+            writeDictionary(vaccines);
+            buffer.putLong(footerOffset);
+            buffer.putInt(MAGIC);
+            flush();
+            return rows;
+        }
+    }
+
+    private long exportAppointments(Connection con) throws SQLException, IOException {
+        String getAppointments = "SELECT AppointmentID, CaregiverID, PatientID, VaccineID, Time FROM Appointments";
+        try (PreparedStatement statement = streamingStatement(con, getAppointments);
+             ResultSet res = statement.executeQuery()) {
+            int[][] columns = new int[5][ROW_GROUP_SIZE];
+            int n = 0;
+            long total = 0;
+            while (res.next()) {
+                columns[0][n] = res.getInt(1);
+                columns[1][n] = caregivers.encode(res.getInt(2));
+                columns[2][n] = patients.encode(res.getInt(3));
+                columns[3][n] = vaccines.encode(res.getInt(4));
+                columns[4][n] = epochDay(res, 5);
+                if (++n == ROW_GROUP_SIZE) {
+                    writeRowGroup(TABLE_APPOINTMENTS, columns, n);
+                    total += n;
+                    n = 0;
+                }
+            }
+            writeRowGroup(TABLE_APPOINTMENTS, columns, n);
+            return total + n;
+        }
+    }
+
+    private long exportAvailabilities(Connection con) throws SQLException, IOException {
+        String getAvailabilities = "SELECT Time, CaregiverID FROM Availabilities";
+        try (PreparedStatement statement = streamingStatement(con, getAvailabilities);
+             ResultSet res = statement.executeQuery()) {
+            int[][] columns = new int[2][ROW_GROUP_SIZE];
+            int n = 0;
+            long total = 0;
+            while (res.next()) {
+                columns[0][n] = epochDay(res, 1);
+                columns[1][n] = caregivers.encode(res.getInt(2));
+                if (++n == ROW_GROUP_SIZE) {
+                    writeRowGroup(TABLE_AVAILABILITIES, columns, n);
+                    total += n;
+                    n = 0;
+                }
+            }
+            writeRowGroup(TABLE_AVAILABILITIES, columns, n);
+            return total + n;
+        }
+    }
+
+    private long exportVaccines(Connection con) throws SQLException, IOException {
+        String getVaccines = "SELECT VaccineID, Doses FROM Vaccines";
+        try (PreparedStatement statement = streamingStatement(con, getVaccines);
+             ResultSet res = statement.executeQuery()) {
+            int[][] columns = new int[2][ROW_GROUP_SIZE];
+            int n = 0;
+            long total = 0;
+            while (res.next()) {
+                columns[0][n] = vaccines.encode(res.getInt(1));
+                columns[1][n] = res.getInt(2);
+                if (++n == ROW_GROUP_SIZE) {
+                    writeRowGroup(TABLE_VACCINES, columns, n);
+                    total += n;
+                    n = 0;
+                }
+            }
+            writeRowGroup(TABLE_VACCINES, columns, n);
+            return total + n;
+        }
+    }
+
+    private static PreparedStatement streamingStatement(Connection con, String sql) throws SQLException {
+        // forward-only, read-only cursor with a large fetch size so rows are pulled from the server in batches
+        PreparedStatement statement = con.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+        statement.setFetchSize(FETCH_SIZE);
+        return statement;
+    }
+
+    private static int epochDay(ResultSet res, int column) throws SQLException {
+        Date d = res.getDate(column);
+        return d == null ? NULL_DATE : (int) d.toLocalDate().toEpochDay();
+    }
+
+    private void writeRowGroup(byte table, int[][] columns, int rows) throws IOException {
+        if (rows == 0) {
+            return;
+        }
+        buffer.put(table);
+        buffer.putInt(rows);
+        flush();
+        for (int[] column : columns) {
+            buffer.asIntBuffer().put(column, 0, rows);
+            buffer.position(rows * Integer.BYTES);
+            flush();
+        }
+    }
+
+    private void writeDictionary(Encoding encoding) throws SQLException, IOException {
+        List<Integer> ids = new ArrayList<>(encoding.size);
+        for (int i = 0; i < encoding.size; i++) {
+            ids.add(encoding.ids[i]);
+        }
+        encoding.names.resolve(ids);
+        buffer.putInt(encoding.size);
+        for (int id : ids) {
+            String name = encoding.names.name(id);
+            // a user deleted since the row was read still needs an entry to keep the indexes in line
+            byte[] bytes = (name == null ? "#" + id : name).getBytes(StandardCharsets.UTF_8);
+            if (buffer.remaining() < Integer.BYTES + bytes.length) {
+                flush();
+            }
+            buffer.putInt(bytes.length);
+            buffer.put(bytes);
+        }
+        flush();
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    // Assigns dense indexes to the IDs of one dictionary in order of first appearance
+    private static class Encoding {
+        private final Dictionary names;
+        private final IntIntMap indexes = new IntIntMap();
+        private int[] ids = new int[64];
+        private int size = 0;
+
+        Encoding(Dictionary names) {
+            this.names = names;
+        }
+
+        int encode(int id) {
+            int index = indexes.get(id, -1);
+            if (index < 0) {
+                index = size++;
+                indexes.put(id, index);
+                if (index == ids.length) {
+                    ids = Arrays.copyOf(ids, ids.length * 2);
+                }
+                ids[index] = id;
+            }
+            return index;
+        }
+    }
+}
@@ -0,0 +1,313 @@
+package scheduler.analytics;
+
+import scheduler.db.ConnectionManager;
+import scheduler.db.ShardRouter;
+import scheduler.util.IntIntMap;
+
+import java.sql.*;
+import java.sql.Date;
+import java.time.LocalDate;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Per-date and per-vaccine utilization between two dates (inclusive): free caregivers, booked caregivers,
+ * doses consumed and cancellations.
+ *
+ * The aggregates are computed with GROUP BY queries. Archived availabilities and appointments are counted
+ * with the live ones. A database created before the archive or Cancellations tables existed rejects those
+ * queries with an invalid object name (error 208); the report then streams the raw rows of the tables that
+ * do exist, skipping the missing ones, and counts them with a fork-join aggregation. Any other error fails
+ * the report. Either way every count lives in a dense int array indexed by day offset (and vaccine index),
+ * so no per-row map entries are created. Rows name their vaccine by VaccineID, which is mapped to the index
+ * without boxing.
+ */
+public class UtilizationReport {
+
+    private static final int FETCH_SIZE = 10000;
+    // rows counted sequentially by a single fork-join leaf
+    private static final int LEAF_SIZE = 8192;
+    // SQL Server error for a table or view that does not exist
+    private static final int INVALID_OBJECT_NAME = 208;
+
+    private final LocalDate start;
+    private final int days;
+
+    private final List<String> vaccineNames = new ArrayList<>();
+    // VaccineID -> position in vaccineNames
+    private final IntIntMap vaccineIndexes = new IntIntMap();
+    private int[] remainingDoses;
+
+    // free[day], booked[day * vaccines + vaccine], cancelled[day * vaccines + vaccine]
+    private int[] free;
+    private int[] booked;
+    private int[] cancelled;
+
+    public UtilizationReport(LocalDate start, LocalDate end) {
+        if (end.isBefore(start)) {
+            throw new IllegalArgumentException("End date must not be before start date!");
+        }
+        this.start = start;
+        this.days = (int) (end.toEpochDay() - start.toEpochDay()) + 1;
+    }
+
+    public void compute() throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        try {
+            loadVaccines(cm.createConnection());
+        } finally {
+            cm.closeConnection();
+        }
+
+        // counts are additive, so each shard is aggregated on its own and the results summed
+        resetCounts();
+        try {
+            for (int target : ShardRouter.targets()) {
+                ConnectionManager shard = new ConnectionManager(target);
+                try {
+                    aggregateGrouped(shard.createConnection());
+                } finally {
+                    shard.closeConnection();
+                }
+            }
+        } catch (SQLException e) {
+            if (e.getErrorCode() != INVALID_OBJECT_NAME) {
+                throw e;
+            }
+            // the backend could not run the grouped queries, count the raw rows ourselves
+            resetCounts();
+            IntList freeKeys = new IntList();
+            IntList bookedKeys = new IntList();
+            IntList cancelledKeys = new IntList();
+            for (int target : ShardRouter.targets()) {
+                ConnectionManager shard = new ConnectionManager(target);
+                try {
+                    collectStreamed(shard.createConnection(), freeKeys, bookedKeys, cancelledKeys);
+                } finally {
+                    shard.closeConnection();
+                }
+            }
+            free = count(freeKeys, free.length);
+            booked = count(bookedKeys, booked.length);
+            cancelled = count(cancelledKeys, cancelled.length);
+        }
+    }
+
+    private void loadVaccines(Connection con) throws SQLException {
+        String getVaccines = "SELECT VaccineID, Name, Doses FROM Vaccines ORDER BY Name";
+        List<Integer> doses = new ArrayList<>();
+        try (PreparedStatement statement = con.prepareStatement(getVaccines);
+             ResultSet res = statement.executeQuery()) {
+            while (res.next()) {
+                vaccineIndexes.put(res.getInt(1), vaccineNames.size());
+                vaccineNames.add(res.getString(2));
+                doses.add(res.getInt(3));
+            }
+        }
+        remainingDoses = new int[doses.size()];
+        for (int i = 0; i < remainingDoses.length; i++) {
+            remainingDoses[i] = doses.get(i);
+        }
+    }
+
+    private void aggregateGrouped(Connection con) throws SQLException {
+        // past dates may have been moved to the archive tables, see Archiver
+        String getFree = "SELECT Time, COUNT(*) FROM (SELECT Time FROM Availabilities UNION ALL SELECT Time FROM ArchivedAvailabilities) a"
+                + " WHERE Time BETWEEN ? AND ? GROUP BY Time";
+        String getBooked = "SELECT Time, VaccineID, COUNT(*) FROM (SELECT Time, VaccineID FROM Appointments UNION ALL SELECT Time, VaccineID FROM ArchivedAppointments) a"
+                + " WHERE Time BETWEEN ? AND ? GROUP BY Time, VaccineID";
+        String getCancelled = "SELECT Time, VaccineID, COUNT(*) FROM Cancellations WHERE Time BETWEEN ? AND ? GROUP BY Time, VaccineID";
+
+        try (PreparedStatement statement = rangeQuery(con, getFree);
+             ResultSet res = statement.executeQuery()) {
+            while (res.next()) {
+                free[dayOffset(res.getDate(1))] += res.getInt(2);
+            }
+        }
+        try (PreparedStatement statement = rangeQuery(con, getBooked);
+             ResultSet res = statement.executeQuery()) {
+            while (res.next()) {
+                int key = key(dayOffset(res.getDate(1)), res.getInt(2));
+                if (key >= 0) {
+                    booked[key] += res.getInt(3);
+                }
+            }
+        }
+        try (PreparedStatement statement = rangeQuery(con, getCancelled);
+             ResultSet res = statement.executeQuery()) {
+            while (res.next()) {
+                int key = key(dayOffset(res.getDate(1)), res.getInt(2));
+                if (key >= 0) {
+                    cancelled[key] += res.getInt(3);
+                }
+            }
+        }
+    }
+
+    private void collectStreamed(Connection con, IntList freeKeys, IntList bookedKeys, IntList cancelledKeys)
+            throws SQLException {
+        // only Availabilities and Appointments are sure to exist, the other tables came later
+        String getFree = "SELECT Time FROM (SELECT Time FROM Availabilities"
+                + (exists(con, "ArchivedAvailabilities") ? " UNION ALL SELECT Time FROM ArchivedAvailabilities" : "")
+                + ") a WHERE Time BETWEEN ? AND ?";
+        String getBooked = "SELECT Time, VaccineID FROM (SELECT Time, VaccineID FROM Appointments"
+                + (exists(con, "ArchivedAppointments") ? " UNION ALL SELECT Time, VaccineID FROM ArchivedAppointments" : "")
+                + ") a WHERE Time BETWEEN ? AND ?";
+        String getCancelled = "SELECT Time, VaccineID FROM Cancellations WHERE Time BETWEEN ? AND ?";
+
+        try (PreparedStatement statement = rangeQuery(con, getFree);
+             ResultSet res = statement.executeQuery()) {
+            while (res.next()) {
+                freeKeys.add(dayOffset(res.getDate(1)));
+            }
+        }
+        try (PreparedStatement statement = rangeQuery(con, getBooked);
+             ResultSet res = statement.executeQuery()) {
+            while (res.next()) {
+                int key = key(dayOffset(res.getDate(1)), res.getInt(2));
+                if (key >= 0) {
+                    bookedKeys.add(key);
+                }
+            }
+        }
+        if (!exists(con, "Cancellations")) {
+            return;
+        }
+        try (PreparedStatement statement = rangeQuery(con, getCancelled);
+             ResultSet res = statement.executeQuery()) {
+            while (res.next()) {
+                int key = key(dayOffset(res.getDate(1)), res.getInt(2));
+                if (key >= 0) {
+                    cancelledKeys.add(key);
+                }
+            }
+        }
+    }
+
+    private static boolean exists(Connection con, String table) throws SQLException {
+        try (PreparedStatement statement = con.prepareStatement("SELECT OBJECT_ID(?, 'U')")) {
+            statement.setString(1, table);
+            try (ResultSet res = statement.executeQuery()) {
+                if (res.next() && res.getObject(1) != null) {
+                    return true;
+                }
+            }
+        }
+        System.out.println("Counting without " + table + ", the table does not exist");
+        return false;
+    }
+
+    // A statement over the report's date range, closed by the caller
+    private PreparedStatement rangeQuery(Connection con, String sql) throws SQLException {
+        PreparedStatement statement = con.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+        try {
+            statement.setFetchSize(FETCH_SIZE);
+            statement.setDate(1, Date.valueOf(start));
+            statement.setDate(2, Date.valueOf(start.plusDays(days - 1)));
+            return statement;
+        } catch (SQLException e) {
+            statement.close();
+            throw e;
+        }
+    }
+
+    private void resetCounts() {
+        free = new int[days];
+        booked = new int[days * vaccineNames.size()];
+        cancelled = new int[days * vaccineNames.size()];
+    }
+
+    private int dayOffset(Date d) {
+        return (int) (d.toLocalDate().toEpochDay() - start.toEpochDay());
+    }
+
+    // returns -1 for vaccines that are no longer in the Vaccines table
+    private int key(int dayOffset, int vaccineID) {
+        int index = vaccineIndexes.get(vaccineID, -1);
+        return index < 0 ? -1 : dayOffset * vaccineNames.size() + index;
+    }
+
+    private static int[] count(IntList keys, int size) {
+        return ForkJoinPool.commonPool().invoke(new CountTask(keys.values, 0, keys.size, size));
+    }
+
+    public void print() {
+        int v = vaccineNames.size();
+        System.out.println(String.format("%-12s %8s %8s %10s", "Date", "Free", "Booked", "Cancelled"));
+        for (int day = 0; day < days; day++) {
+            int bookedTotal = 0;
+            int cancelledTotal = 0;
+            for (int i = day * v; i < (day + 1) * v; i++) {
+                bookedTotal += booked[i];
+                cancelledTotal += cancelled[i];
+            }
+            // every appointment uses one caregiver-day and one dose, the doses per vaccine are listed below
+            System.out.println(String.format("%-12s %8d %8d %10d",
+                    start.plusDays(day), free[day], bookedTotal, cancelledTotal));
+        }
+
+        System.out.println();
+        System.out.println(String.format("%-20s %8s %10s %10s", "Vaccine", "Doses", "Cancelled", "Remaining"));
+        for (int id = 0; id < v; id++) {
+            int bookedTotal = 0;
+            int cancelledTotal = 0;
+            for (int i = id; i < booked.length; i += v) {
+                bookedTotal += booked[i];
+                cancelledTotal += cancelled[i];
+            }
+            System.out.println(String.format("%-20s %8d %10d %10d",
+                    vaccineNames.get(id), bookedTotal, cancelledTotal, remainingDoses[id]));
+        }
+    }
+
+    // Counts occurrences of each key in [lo, hi) by splitting the range and summing the partial counts
+    private static class CountTask extends RecursiveTask<int[]> {
+        private static final long serialVersionUID = 1L;
+
+        private final int[] keys;
+        private final int lo;
+        private final int hi;
+        private final int size;
+
+        CountTask(int[] keys, int lo, int hi, int size) {
+            this.keys = keys;
+            this.lo = lo;
+            this.hi = hi;
+            this.size = size;
+        }
+
+        @Override
+        protected int[] compute() {
+            if (hi - lo <= LEAF_SIZE) {
+                int[] counts = new int[size];
+                for (int i = lo; i < hi; i++) {
+                    counts[keys[i]]++;
+                }
+                return counts;
+            }
+            int mid = (lo + hi) >>> 1;
+            CountTask left = new CountTask(keys, lo, mid, size);
+            left.fork();
+            int[] counts = new CountTask(keys, mid, hi, size).compute();
+            int[] other = left.join();
+            for (int i = 0; i < size; i++) {
+                counts[i] += other[i];
+            }
+            return counts;
+        }
+    }
+
+    // Growable int array, avoids boxing one Integer per streamed row
+    private static class IntList {
+        private int[] values = new int[1024];
+        private int size;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+    }
+}
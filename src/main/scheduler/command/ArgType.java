@@ -0,0 +1,29 @@
+package scheduler.command;
+
+import java.sql.Date;
+
+public enum ArgType {
+    STRING(null),
+    DATE("Please enter a valid date!"),
+    INT("Please enter a valid number!");
+
+    private final String error;
+
+    ArgType(String error) {
+        this.error = error;
+    }
+
+    // Returns the message to show when the token cannot be parsed as this type, or null if it is valid
+    public String check(String token) {
+        try {
+            if (this == DATE) {
+                Date.valueOf(token);
+            } else if (this == INT) {
+                Integer.parseInt(token);
+            }
+            return null;
+        } catch (IllegalArgumentException e) {
+            return error;
+        }
+    }
+}
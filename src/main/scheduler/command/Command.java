@@ -0,0 +1,144 @@
+package scheduler.command;
+
+public class Command {
+
+    public interface Handler {
+        void handle(String[] tokens);
+    }
+
+    private final String name;
+    private final String usage;
+    private final String usageError;
+    private final Role role;
+    private final ArgType[] args;
+    private final ArgType[] optionalArgs;
+    private final boolean readOnly;
+    private final int[] secretArgs;
+    private final Handler handler;
+
+    private Command(CommandBuilder builder) {
+        this.name = builder.name;
+        this.usage = builder.usage;
+        this.usageError = builder.usageError;
+        this.role = builder.role;
+        this.args = builder.args;
+        this.optionalArgs = builder.optionalArgs;
+        this.readOnly = builder.readOnly;
+        this.secretArgs = builder.secretArgs;
+        this.handler = builder.handler;
+    }
+
+    // Getters
+    public String getName() {
+        return name;
+    }
+
+    public String getUsage() {
+        return usage;
+    }
+
+    public Role getRole() {
+        return role;
+    }
+
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    // Whether the token at this index, counting the operation name, must never be logged
+    public boolean isSecretArg(int index) {
+        for (int secret : secretArgs) {
+            if (secret == index) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public Handler getHandler() {
+        return handler;
+    }
+
+    // Returns the message to show when the command cannot run with these tokens, or null if it can.
+    // This never touches the database, so bad input is rejected before any connection is opened.
+    public String validate(String[] tokens, Role current) {
+        String roleError = role.check(current);
+        if (roleError != null) {
+            return roleError;
+        }
+        // the tokens include the operation name
+        int given = tokens.length - 1;
+        if (given < args.length || given > args.length + optionalArgs.length) {
+            return usageError;
+        }
+        for (int i = 1; i < tokens.length; i++) {
+            ArgType type = i <= args.length ? args[i - 1] : optionalArgs[i - 1 - args.length];
+            String argError = type.check(tokens[i]);
+            if (argError != null) {
+                return argError;
+            }
+        }
+        return null;
+    }
+
+    public static class CommandBuilder {
+        private final String name;
+        private final Handler handler;
+        private String usage;
+        private String usageError = "Please try again!";
+        private Role role = Role.ANYONE;
+        private ArgType[] args = new ArgType[0];
+        private ArgType[] optionalArgs = new ArgType[0];
+        private boolean readOnly = false;
+        private int[] secretArgs = new int[0];
+
+        public CommandBuilder(String name, Handler handler) {
+            this.name = name;
+            this.handler = handler;
+            this.usage = name;
+        }
+
+        public CommandBuilder usage(String usage) {
+            this.usage = usage;
+            return this;
+        }
+
+        // message shown when the number of arguments is wrong
+        public CommandBuilder usageError(String usageError) {
+            this.usageError = usageError;
+            return this;
+        }
+
+        public CommandBuilder role(Role role) {
+            this.role = role;
+            return this;
+        }
+
+        public CommandBuilder args(ArgType... args) {
+            this.args = args;
+            return this;
+        }
+
+        public CommandBuilder optionalArgs(ArgType... optionalArgs) {
+            this.optionalArgs = optionalArgs;
+            return this;
+        }
+
+        // read-only commands in the same pipeline share one database connection
+        public CommandBuilder readOnly() {
+            this.readOnly = true;
+            return this;
+        }
+
+        // token indexes, counting the operation name, that hold passwords: they are redacted from recordings,
+        // and a ';' in them does not end the command
+        public CommandBuilder secretArgs(int... secretArgs) {
+            this.secretArgs = secretArgs;
+            return this;
+        }
+
+        public Command build() {
+            return new Command(this);
+        }
+    }
+}
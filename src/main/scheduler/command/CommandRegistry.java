@@ -0,0 +1,146 @@
+package scheduler.command;
+
+import scheduler.db.ConnectionManager;
+import scheduler.replay.Recorder;
+import scheduler.trace.CommandEvent;
+import scheduler.trace.Trace;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Maps command names to their handlers and metadata. A request line may hold several commands separated
+ * by ';', except inside a password or other secret argument. They run in order, and consecutive read-only
+ * commands are pipelined over one shared database connection instead of each command opening its own.
+ */
+public class CommandRegistry {
+
+    private final Map<String, Command> commands = new LinkedHashMap<>();
+    private final Supplier<Role> currentRole;
+    private boolean stopped = false;
+
+    // currentRole returns LOGGED_OUT, PATIENT or CAREGIVER for the current session
+    public CommandRegistry(Supplier<Role> currentRole) {
+        this.currentRole = currentRole;
+    }
+
+    public void register(Command command) {
+        commands.put(command.getName(), command);
+    }
+
+    public Command get(String name) {
+        return commands.get(name);
+    }
+
+    public Collection<Command> getCommands() {
+        return commands.values();
+    }
+
+    // Stop running commands, including the rest of the current pipeline
+    public void stop() {
+        stopped = true;
+    }
+
+    public boolean isStopped() {
+        return stopped;
+    }
+
+    // Split a request line into the token arrays of its commands, skipping empty ones. A ';' inside a secret
+    // argument such as a password is part of it, so that argument always runs to the next whitespace.
+    public List<String[]> parse(String line) {
+        List<String[]> pipeline = new ArrayList<>();
+        List<String> tokens = new ArrayList<>();
+        for (String word : line.trim().split("\\s+")) {
+            Command command = tokens.isEmpty() ? null : commands.get(tokens.get(0));
+            if (command != null && command.isSecretArg(tokens.size())) {
+                tokens.add(word);
+                continue;
+            }
+            String[] parts = word.split(";", -1);
+            for (int i = 0; i < parts.length; i++) {
+                if (i > 0) {
+                    finish(tokens, pipeline);
+                }
+                if (!parts[i].isEmpty()) {
+                    tokens.add(parts[i]);
+                }
+            }
+        }
+        finish(tokens, pipeline);
+        return pipeline;
+    }
+
+    private static void finish(List<String> tokens, List<String[]> pipeline) {
+        if (!tokens.isEmpty()) {
+            pipeline.add(tokens.toArray(new String[0]));
+            tokens.clear();
+        }
+    }
+
+    public void execute(String line) {
+        List<String[]> pipeline = parse(line);
+        int i = 0;
+        while (i < pipeline.size() && !stopped) {
+            // group the run of read-only commands starting here, a write always runs on its own
+            int end = i + 1;
+            if (isReadOnly(pipeline.get(i))) {
+                while (end < pipeline.size() && isReadOnly(pipeline.get(end))) {
+                    end++;
+                }
+            }
+            ConnectionManager.Scope scope = ConnectionManager.openScope();
+            try (scope) {
+                for (int j = i; j < end && !stopped; j++) {
+                    run(pipeline.get(j));
+                }
+            }
+            i = end;
+        }
+    }
+
+    private boolean isReadOnly(String[] tokens) {
+        Command command = commands.get(tokens[0]);
+        return command != null && command.isReadOnly();
+    }
+
+    private void run(String[] tokens) {
+        CommandEvent event = new CommandEvent();
+        event.begin();
+        event.command = tokens[0];
+        event.role = currentRole.get().name();
+        event.outcome = CommandEvent.REJECTED;
+        Command command = commands.get(tokens[0]);
+        long startMillis = System.currentTimeMillis();
+        long startNanos = System.nanoTime();
+        Recorder.begin();
+        try {
+            if (command == null) {
+                System.out.println("Invalid operation name!");
+                return;
+            }
+            String error = command.validate(tokens, currentRole.get());
+            if (error != null) {
+                System.out.println(error);
+                return;
+            }
+            // only the name goes into the trace, the arguments may hold a password
+            Trace trace = Trace.start(command.getName());
+            try {
+                command.getHandler().handle(tokens);
+            } finally {
+                trace.finish();
+            }
+            event.outcome = CommandEvent.COMPLETED;
+        } catch (RuntimeException e) {
+            event.outcome = CommandEvent.FAILED;
+            throw e;
+        } finally {
+            event.commit();
+            Recorder.record(command, tokens, startMillis, System.nanoTime() - startNanos, event.outcome);
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package scheduler.command;
+
+public enum Role {
+    // no login state required
+    ANYONE,
+    // nobody may be logged in, e.g. the login commands
+    LOGGED_OUT,
+    // either a patient or a caregiver must be logged in
+    LOGGED_IN,
+    PATIENT,
+    CAREGIVER;
+
+    // Returns the message to show when a user in the current role may not run the command, or null if allowed.
+    // current is always one of LOGGED_OUT, PATIENT or CAREGIVER.
+    public String check(Role current) {
+        switch (this) {
+            case LOGGED_OUT:
+                return current == LOGGED_OUT ? null : "User already logged in.";
+            case LOGGED_IN:
+                return current == LOGGED_OUT ? "Please login first!" : null;
+            case PATIENT:
+                if (current == CAREGIVER) {
+                    return "Please login as a patient!";
+                }
+                return current == PATIENT ? null : "Please login first!";
+            case CAREGIVER:
+                return current == CAREGIVER ? null : "Please login as a caregiver first!";
+            default:
+                return null;
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package scheduler.db;
+
+import scheduler.util.Config;
+
+import java.sql.SQLTransientConnectionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Admission control in front of the database: an AIMD concurrency limit on open connections and a circuit
+ * breaker that fails fast while the backend is unhealthy.
+ *
+ * The limit grows by one per limit's worth of fast statements and is cut by a constant factor whenever a
+ * statement took longer than the latency target or a connection failed, so it settles near the concurrency
+ * the backend can serve at the target latency. Latency is measured per statement, not per connection, so a
+ * connection held open while a cursor is read or a command thinks does not count as a slow backend.
+ *
+ * After a run of consecutive failures the breaker opens and every acquire is rejected until the cooldown has
+ * passed; then a single probe connection decides whether it closes again. Connections are counted when they
+ * are released: one whose statements all succeeded is a success and one that could not be opened or broke is
+ * a failure, so traffic that does not go through Retry moves the breaker as well.
+ *
+ * Only a command's first connection waits for the limit. A command that already holds a connection and
+ * needs one to another database gets it at once, otherwise commands holding the whole limit would wait on
+ * each other, or a single one on itself at the minimum limit.
+ */
+public class AdmissionControl {
+
+    // thrown instead of queueing when the database is overloaded or the breaker is open
+    public static class RejectedException extends SQLTransientConnectionException {
+        private static final long serialVersionUID = 1L;
+
+        RejectedException(String reason) {
+            super(reason);
+        }
+    }
+
+    // An admitted connection, handed back to release when the connection is closed
+    public static class Permit {
+        // the one connection let through while the breaker is half open
+        private final boolean probe;
+        private int statements = 0;
+        private boolean statementFailed = false;
+
+        private Permit(boolean probe) {
+            this.probe = probe;
+        }
+    }
+
+    private enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private static final int MIN_LIMIT = 1;
+    private static final int MAX_LIMIT = Config.getInt("AdmissionMaxLimit", 64);
+    private static final long LATENCY_TARGET_NANOS = TimeUnit.MILLISECONDS.toNanos(
+            Config.getLong("AdmissionLatencyTargetMillis", 500));
+    private static final long MAX_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(
+            Config.getLong("AdmissionMaxWaitMillis", 2000));
+    private static final double BACKOFF_RATIO = 0.9;
+    private static final int FAILURE_THRESHOLD = Config.getInt("BreakerFailureThreshold", 5);
+    private static final long COOLDOWN_NANOS = TimeUnit.MILLISECONDS.toNanos(
+            Config.getLong("BreakerCooldownMillis", 10000));
+
+    private static final Object lock = new Object();
+    private static double limit = Config.getInt("AdmissionInitialLimit", 8);
+    private static int inFlight = 0;
+    private static State state = State.CLOSED;
+    private static int consecutiveFailures = 0;
+    private static long openedAt = 0;
+    private static boolean probeInFlight = false;
+
+    private static long admitted = 0;
+    private static long rejected = 0;
+    private static long breakerTrips = 0;
+
+    // additional when the caller already holds a permit for the same command
+    public static Permit acquire(boolean additional) throws RejectedException {
+        synchronized (lock) {
+            long now = System.nanoTime();
+            boolean probe = false;
+            if (state == State.OPEN) {
+                if (now - openedAt < COOLDOWN_NANOS) {
+                    rejected++;
+                    throw new RejectedException("Database is unavailable, please try again later");
+                }
+                state = State.HALF_OPEN;
+            }
+            if (state == State.HALF_OPEN) {
+                // only one probe at a time while we find out whether the backend recovered
+                if (probeInFlight) {
+                    rejected++;
+                    throw new RejectedException("Database is unavailable, please try again later");
+                }
+                probeInFlight = true;
+                probe = true;
+            } else if (!additional) {
+                long deadline = now + MAX_WAIT_NANOS;
+                while (inFlight >= (int) limit) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        rejected++;
+                        throw new RejectedException("Database is overloaded, please try again later");
+                    }
+                    try {
+                        TimeUnit.NANOSECONDS.timedWait(lock, remaining);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        rejected++;
+                        throw new RejectedException("Interrupted while waiting for the database");
+                    }
+                }
+            }
+            inFlight++;
+            admitted++;
+            return new Permit(probe);
+        }
+    }
+
+    // Adjust the limit by how long one statement on the permit's connection took to execute
+    public static void executed(Permit permit, long latencyNanos, boolean failed) {
+        synchronized (lock) {
+            permit.statements++;
+            permit.statementFailed |= failed;
+            if (latencyNanos > LATENCY_TARGET_NANOS) {
+                limit = Math.max(MIN_LIMIT, limit * BACKOFF_RATIO);
+            } else if (inFlight >= (int) limit / 2) {
+                // only grow while the limit is actually being used
+                limit = Math.min(MAX_LIMIT, limit + 1.0 / limit);
+            }
+        }
+    }
+
+    // failed when the connection could not be opened or broke
+    public static void release(Permit permit, boolean failed) {
+        synchronized (lock) {
+            inFlight--;
+            if (permit.probe) {
+                probeInFlight = false;
+            }
+            if (failed) {
+                limit = Math.max(MIN_LIMIT, limit * BACKOFF_RATIO);
+                countFailure(permit.probe);
+            } else if (permit.statements > 0 && !permit.statementFailed) {
+                succeeded();
+            }
+            lock.notifyAll();
+        }
+    }
+
+    public static void recordSuccess() {
+        synchronized (lock) {
+            succeeded();
+        }
+    }
+
+    private static void succeeded() {
+        consecutiveFailures = 0;
+        if (state == State.HALF_OPEN) {
+            state = State.CLOSED;
+        }
+    }
+
+    public static void recordFailure() {
+        synchronized (lock) {
+            countFailure(false);
+        }
+    }
+
+    // a failed probe reopens the breaker even if another success closed it in the meantime
+    private static void countFailure(boolean probe) {
+        consecutiveFailures++;
+        if (probe || state == State.HALF_OPEN
+                || (state == State.CLOSED && consecutiveFailures >= FAILURE_THRESHOLD)) {
+            if (state != State.OPEN) {
+                breakerTrips++;
+            }
+            state = State.OPEN;
+            openedAt = System.nanoTime();
+        }
+    }
+
+    public static String stats() {
+        synchronized (lock) {
+            return "admission: limit=" + (int) limit
+                    + " inFlight=" + inFlight
+                    + " admitted=" + admitted
+                    + " rejected=" + rejected
+                    + " breaker=" + state
+                    + " trips=" + breakerTrips;
+        }
+    }
+}
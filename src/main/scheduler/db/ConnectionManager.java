@@ -1,20 +1,47 @@
 package scheduler.db;
 
+import scheduler.trace.Trace;
+import scheduler.trace.TracingProxy;
+import scheduler.util.Config;
+
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Consumer;
 
 public class ConnectionManager {
 
+    // target of the primary database, which holds users and vaccines; shards are numbered from 0
+    public static final int PRIMARY = -1;
+
     private final String driverName = "com.microsoft.sqlserver.jdbc.SQLServerDriver";
+    // login and query timeouts in seconds, so a slow backend cannot block a command forever
     private final String connectionUrl = "jdbc:sqlserver://" + System.getenv("Server") +
-            ".database.windows.net:1433;database=" + System.getenv("DBName");
+            ".database.windows.net:1433;database=" + System.getenv("DBName") +
+            ";loginTimeout=" + Config.getInt("DBLoginTimeoutSeconds", 15) +
+            ";queryTimeout=" + Config.getInt("DBQueryTimeoutSeconds", 30);
     private final String userName = System.getenv("UserID");
     private final String userPass = System.getenv("Password");
 
+    // while a scope is open, every ConnectionManager on the thread hands out the scope's connections
+    private static final ThreadLocal<Scope> currentScope = new ThreadLocal<>();
+
+    private final int target;
     private Connection con = null;
+    private boolean shared = false;
+    private AdmissionControl.Permit permit;
 
     public ConnectionManager() {
+        this(PRIMARY);
+    }
+
+    // Connect to one shard of the date-partitioned tables, see ShardRouter
+    public ConnectionManager(int target) {
+        this.target = target;
         try {
             Class.forName(driverName);
         } catch (ClassNotFoundException e) {
@@ -22,20 +49,247 @@ public class ConnectionManager {
         }
     }
 
-    public Connection createConnection() {
+    public Connection createConnection() throws SQLException {
+        Scope scope = currentScope.get();
+        if (scope != null) {
+            Slot slot = scope.slots.computeIfAbsent(target, t -> new Slot());
+            if (slot.con == null || slot.con.isClosed()) {
+                // a connection closed under us was broken by a failure
+                slot.release(true);
+                boolean additional = scope.holdsConnection();
+                try (Trace.Span span = Trace.span("connect", targetName())) {
+                    try {
+                        slot.permit = AdmissionControl.acquire(additional);
+                        slot.con = open(slot.permit);
+                    } catch (SQLException e) {
+                        span.fail(e);
+                        throw e;
+                    }
+                }
+                if (scope.transaction != null) {
+                    slot.con.setAutoCommit(false);
+                }
+            }
+            con = slot.con;
+            shared = true;
+            return con;
+        }
+        try (Trace.Span span = Trace.span("connect", targetName())) {
+            try {
+                permit = AdmissionControl.acquire(false);
+                con = open(permit);
+            } catch (SQLException e) {
+                span.fail(e);
+                throw e;
+            }
+        }
+        return con;
+    }
+
+    private String targetName() {
+        return target == PRIMARY ? "primary" : "shard " + target;
+    }
+
+    // Open a physical connection under an admission permit, the permit is released if that fails
+    private Connection open(AdmissionControl.Permit permit) throws SQLException {
+        // statements on the connection are timed as spans of the running command's trace, and by admission control
+        TracingProxy.Listener listener = (nanos, failed) -> AdmissionControl.executed(permit, nanos, failed);
         try {
-            con = DriverManager.getConnection(connectionUrl, userName, userPass);
+            if (target == PRIMARY) {
+                return TracingProxy.wrap(DriverManager.getConnection(connectionUrl, userName, userPass), listener);
+            }
+            return TracingProxy.wrap(DriverManager.getConnection(ShardRouter.url(target),
+                    ShardRouter.user(target, userName), ShardRouter.password(target, userPass)), listener);
         } catch (SQLException e) {
-            e.printStackTrace();
+            AdmissionControl.release(permit, true);
+            throw e;
         }
-        return con;
     }
 
     public void closeConnection() {
+        // a shared connection stays open until its scope is closed
+        if (shared || con == null) {
+            return;
+        }
+        boolean broken = isBroken(con);
         try {
             this.con.close();
         } catch (SQLException e) {
             e.printStackTrace();
+        } finally {
+            AdmissionControl.release(permit, broken);
+            con = null;
+        }
+    }
+
+    // The driver closes a connection by itself when it fails, so one that is closed before we close it broke
+    private static boolean isBroken(Connection con) {
+        try {
+            return con.isClosed();
+        } catch (SQLException e) {
+            return true;
+        }
+    }
+
+    // Open a scope on this thread, scopes nest and the connections are closed when the outermost one closes
+    public static Scope openScope() {
+        Scope scope = currentScope.get();
+        if (scope == null) {
+            scope = new Scope();
+            currentScope.set(scope);
+        } else {
+            scope.depth++;
+        }
+        return scope;
+    }
+
+    // Open a transaction on this thread's scope. Every ConnectionManager on the thread takes part in it until
+    // it is committed or closed, closing without a commit rolls back. Nested transactions join the outer one.
+    // A transaction that touches several shards commits them one after the other, not atomically.
+    public static Transaction openTransaction() throws SQLException {
+        Scope scope = openScope();
+        if (scope.transaction != null) {
+            return new Transaction(scope, false);
+        }
+        for (Slot slot : scope.slots.values()) {
+            if (slot.con != null && !slot.con.isClosed()) {
+                slot.con.setAutoCommit(false);
+            }
+        }
+        scope.transaction = new Transaction(scope, true);
+        return scope.transaction;
+    }
+
+    public static boolean inTransaction() {
+        Scope scope = currentScope.get();
+        return scope != null && scope.transaction != null;
+    }
+
+    // Run the action when the thread's transaction ends, with whether it committed. Outside a transaction every
+    // statement commits on its own, so the action runs at once.
+    public static void afterCompletion(Consumer<Boolean> action) {
+        Scope scope = currentScope.get();
+        if (scope == null || scope.transaction == null) {
+            action.accept(true);
+            return;
+        }
+        scope.transaction.completions.add(action);
+    }
+
+    // A connection held by a scope for one target
+    private static class Slot {
+        // opened lazily, so a scope whose commands never reach the database costs nothing
+        private Connection con = null;
+        private AdmissionControl.Permit permit;
+
+        private void release(boolean failed) {
+            if (con != null) {
+                AdmissionControl.release(permit, failed);
+                con = null;
+            }
+        }
+
+        private void discard() {
+            try {
+                con.close();
+            } catch (SQLException e) {
+                // already broken, nothing left to release
+            }
+            release(true);
+        }
+    }
+
+    public static class Scope implements AutoCloseable {
+        // ordered by target so multi-shard commits always happen in the same order
+        private final Map<Integer, Slot> slots = new TreeMap<>();
+        private int depth = 1;
+        private Transaction transaction = null;
+
+        private Scope() {
+        }
+
+        private boolean holdsConnection() throws SQLException {
+            for (Slot slot : slots.values()) {
+                if (slot.con != null && !slot.con.isClosed()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public void close() {
+            if (--depth > 0) {
+                return;
+            }
+            currentScope.remove();
+            for (Slot slot : slots.values()) {
+                if (slot.con != null) {
+                    boolean broken = isBroken(slot.con);
+                    try {
+                        slot.con.close();
+                    } catch (SQLException e) {
+                        e.printStackTrace();
+                    } finally {
+                        slot.release(broken);
+                    }
+                }
+            }
+        }
+    }
+
+    public static class Transaction implements AutoCloseable {
+        private final Scope scope;
+        // only the outermost transaction commits or rolls back
+        private final boolean outermost;
+        private boolean committed = false;
+        private final List<Consumer<Boolean>> completions = new ArrayList<>();
+
+        private Transaction(Scope scope, boolean outermost) {
+            this.scope = scope;
+            this.outermost = outermost;
+        }
+
+        public void commit() throws SQLException {
+            if (outermost) {
+                for (Slot slot : scope.slots.values()) {
+                    if (slot.con != null) {
+                        slot.con.commit();
+                    }
+                }
+            }
+            // only set once every commit went through, so a failed commit is rolled back and reported as such
+            committed = true;
+        }
+
+        @Override
+        public void close() throws SQLException {
+            try {
+                if (outermost) {
+                    scope.transaction = null;
+                    for (Slot slot : scope.slots.values()) {
+                        if (slot.con == null || slot.con.isClosed()) {
+                            continue;
+                        }
+                        try {
+                            if (!committed) {
+                                slot.con.rollback();
+                            }
+                            slot.con.setAutoCommit(true);
+                        } catch (SQLException e) {
+                            // the connection is broken, drop it so the next attempt opens a fresh one
+                            slot.discard();
+                        }
+                    }
+                    for (Consumer<Boolean> completion : completions) {
+                        completion.accept(committed);
+                    }
+                } else if (!committed) {
+                    throw new SQLException("Nested transaction was not committed");
+                }
+            } finally {
+                scope.close();
+            }
         }
     }
 }
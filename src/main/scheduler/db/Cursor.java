@@ -0,0 +1,187 @@
+package scheduler.db;
+
+import scheduler.util.Config;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * A forward-only, read-only query whose rows are mapped one at a time as they are read, so a caller that
+ * stops early never fetches, maps or holds the rest. The driver fetches FetchSize rows per round trip and a
+ * limit is passed to the server as well, so it stops producing rows once the limit is reached.
+ *
+ * The cursor owns its connection, statement and result set until it is closed; use it in a
+ * try-with-resources block, or close the stream it hands out. Running the query is retried like any other
+ * idempotent read, but a failure while iterating is not, the rows already handed out cannot be taken back.
+ * Such a failure surfaces as a {@link CursorException} because Iterator and Stream cannot throw SQLException.
+ */
+public class Cursor<T> implements Iterator<T>, AutoCloseable {
+
+    private static final int DEFAULT_FETCH_SIZE = Config.getInt("CursorFetchSize", 500);
+
+    public interface RowMapper<T> {
+        T map(ResultSet res) throws SQLException;
+    }
+
+    // An SQLException thrown while iterating, unwrap it with getCause
+    public static class CursorException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        private CursorException(SQLException cause) {
+            super(cause);
+        }
+
+        @Override
+        public synchronized SQLException getCause() {
+            return (SQLException) super.getCause();
+        }
+    }
+
+    private final RowMapper<T> mapper;
+    private final int limit;
+    // closes the connection the result set came from
+    private Runnable release;
+    private ResultSet res;
+    private int returned = 0;
+    // whether res is on a row that has not been handed out yet
+    private boolean ready = false;
+    private boolean done = false;
+
+    private Cursor(CursorBuilder<T> builder) throws SQLException {
+        this.mapper = builder.mapper;
+        this.limit = builder.limit;
+        Retry.idempotent(() -> {
+            ConnectionManager cm = new ConnectionManager(builder.target);
+            Connection con = cm.createConnection();
+            try {
+                PreparedStatement statement = con.prepareStatement(builder.sql,
+                        ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+                statement.setFetchSize(builder.limit > 0 ? Math.min(builder.fetchSize, builder.limit) : builder.fetchSize);
+                if (builder.limit > 0) {
+                    statement.setMaxRows(builder.limit);
+                }
+                for (int i = 0; i < builder.params.length; i++) {
+                    statement.setObject(i + 1, builder.params[i]);
+                }
+                this.res = statement.executeQuery();
+                this.release = cm::closeConnection;
+            } catch (SQLException e) {
+                cm.closeConnection();
+                throw e;
+            }
+        });
+    }
+
+    // A cursor over a result set that is already open, release runs once the cursor is closed
+    Cursor(ResultSet res, RowMapper<T> mapper, int limit, Runnable release) {
+        this.mapper = mapper;
+        this.limit = limit;
+        this.res = res;
+        this.release = release;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (ready) {
+            return true;
+        }
+        if (done) {
+            return false;
+        }
+        if (limit > 0 && returned >= limit) {
+            close();
+            return false;
+        }
+        try {
+            ready = res.next();
+        } catch (SQLException e) {
+            close();
+            throw new CursorException(e);
+        }
+        if (!ready) {
+            close();
+        }
+        return ready;
+    }
+
+    @Override
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        ready = false;
+        returned++;
+        try {
+            return mapper.map(res);
+        } catch (SQLException e) {
+            close();
+            throw new CursorException(e);
+        }
+    }
+
+    // The remaining rows as a sequential stream that closes the cursor when it is closed
+    public Stream<T> stream() {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(this,
+                Spliterator.ORDERED | Spliterator.NONNULL), false).onClose(this::close);
+    }
+
+    // Idempotent, closing the connection also closes its statement and result set
+    @Override
+    public void close() {
+        if (done) {
+            return;
+        }
+        done = true;
+        ready = false;
+        try {
+            res.close();
+        } catch (SQLException e) {
+            // the connection is closed next, which releases the result set anyway
+        }
+        release.run();
+    }
+
+    public static class CursorBuilder<T> {
+        private final int target;
+        private final String sql;
+        private final RowMapper<T> mapper;
+        private Object[] params = new Object[0];
+        private int fetchSize = DEFAULT_FETCH_SIZE;
+        private int limit = 0;
+
+        // target as in ConnectionManager, the primary or a shard
+        public CursorBuilder(int target, String sql, RowMapper<T> mapper) {
+            this.target = target;
+            this.sql = sql;
+            this.mapper = mapper;
+        }
+
+        public CursorBuilder<T> params(Object... params) {
+            this.params = params;
+            return this;
+        }
+
+        public CursorBuilder<T> fetchSize(int fetchSize) {
+            this.fetchSize = fetchSize;
+            return this;
+        }
+
+        // at most limit rows, 0 for no limit
+        public CursorBuilder<T> limit(int limit) {
+            this.limit = limit;
+            return this;
+        }
+
+        public Cursor<T> open() throws SQLException {
+            return new Cursor<>(this);
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package scheduler.db;
+
+import scheduler.util.Config;
+
+import java.sql.SQLException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Retries database work that failed with a transient SQL Server error, using exponential backoff with full
+ * jitter under an overall deadline. The original exception is rethrown once attempts or time run out.
+ *
+ * Inside a transaction a single statement is never retried on its own, because the server has already
+ * rolled back the whole transaction; the enclosing {@link #transaction} retries the complete unit instead.
+ */
+public class Retry {
+
+    public interface SqlOperation<T> {
+        T run() throws SQLException;
+    }
+
+    public interface SqlAction {
+        void run() throws SQLException;
+    }
+
+    // A commit that failed after it was sent, it may have been applied on some or all of the databases
+    public static class OutcomeUnknownException extends SQLException {
+        private static final long serialVersionUID = 1L;
+
+        private OutcomeUnknownException(SQLException cause) {
+            super("Commit failed, the changes may or may not have been applied: " + cause.getMessage(),
+                    cause.getSQLState(), cause.getErrorCode(), cause);
+        }
+    }
+
+    private static final int MAX_ATTEMPTS = Config.getInt("RetryMaxAttempts", 5);
+    private static final long BASE_DELAY_MILLIS = Config.getLong("RetryBaseDelayMillis", 20);
+    private static final long MAX_DELAY_MILLIS = Config.getLong("RetryMaxDelayMillis", 1000);
+    private static final long DEADLINE_MILLIS = Config.getLong("RetryDeadlineMillis", 5000);
+
+    private static final AtomicLong operations = new AtomicLong();
+    private static final AtomicLong retries = new AtomicLong();
+    private static final AtomicLong recovered = new AtomicLong();
+    private static final AtomicLong exhausted = new AtomicLong();
+    private static final AtomicLong deadlocks = new AtomicLong();
+
+    // Safe to repeat after any transient failure, e.g. reads or updates that set an absolute value
+    public static <T> T idempotent(SqlOperation<T> operation) throws SQLException {
+        return execute(operation, false);
+    }
+
+    public static void idempotent(SqlAction action) throws SQLException {
+        execute(asOperation(action), false);
+    }
+
+    // Only repeated when the server guarantees the failed statement had no effect, e.g. a deadlock victim.
+    // After a dropped connection we cannot know whether an insert went through, so it is not retried.
+    public static <T> T nonIdempotent(SqlOperation<T> operation) throws SQLException {
+        return execute(operation, true);
+    }
+
+    public static void nonIdempotent(SqlAction action) throws SQLException {
+        execute(asOperation(action), true);
+    }
+
+    // Runs the unit in a transaction that is committed at the end and retried as a whole on transient errors.
+    // A failing commit is not retried, the server may have applied it, see OutcomeUnknownException.
+    public static <T> T transaction(SqlOperation<T> operation) throws SQLException {
+        if (ConnectionManager.inTransaction()) {
+            // join the enclosing transaction, it owns commit and retry
+            return operation.run();
+        }
+        return execute(() -> {
+            try (ConnectionManager.Transaction tx = ConnectionManager.openTransaction()) {
+                T result = operation.run();
+                try {
+                    tx.commit();
+                } catch (SQLException e) {
+                    throw new OutcomeUnknownException(e);
+                }
+                return result;
+            }
+        }, false);
+    }
+
+    private static <T> T execute(SqlOperation<T> operation, boolean onlyIfNotApplied) throws SQLException {
+        if (ConnectionManager.inTransaction()) {
+            return operation.run();
+        }
+        operations.incrementAndGet();
+        long deadline = System.currentTimeMillis() + DEADLINE_MILLIS;
+        for (int attempt = 1; ; attempt++) {
+            try {
+                T result = operation.run();
+                if (attempt > 1) {
+                    recovered.incrementAndGet();
+                }
+                AdmissionControl.recordSuccess();
+                return result;
+            } catch (SQLException e) {
+                Transience transience = classify(e);
+                if (transience == Transience.THROTTLED || transience == Transience.TIMEOUT) {
+                    // signs of an unhealthy backend, a deadlock only means we lost a race. Connection failures
+                    // were already counted when the broken connection was released
+                    AdmissionControl.recordFailure();
+                }
+                if (transience == Transience.DEADLOCK) {
+                    deadlocks.incrementAndGet();
+                }
+                boolean retryable = transience == Transience.DEADLOCK || transience == Transience.THROTTLED
+                        || transience == Transience.MOVED
+                        || (transience == Transience.CONNECTION && !onlyIfNotApplied);
+                long delay = backoff(attempt);
+                if (!retryable || attempt >= MAX_ATTEMPTS || System.currentTimeMillis() + delay > deadline) {
+                    if (retryable) {
+                        exhausted.incrementAndGet();
+                    }
+                    throw e;
+                }
+                retries.incrementAndGet();
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    // full jitter: uniform between zero and the capped exponential delay
+    private static long backoff(int attempt) {
+        long cap = Math.min(MAX_DELAY_MILLIS, BASE_DELAY_MILLIS << Math.min(attempt - 1, 20));
+        return ThreadLocalRandom.current().nextLong(cap + 1);
+    }
+
+    private enum Transience {
+        // the statement was chosen as deadlock victim and rolled back
+        DEADLOCK,
+        // rejected by resource governance before it ran
+        THROTTLED,
+        // the connection broke, the statement may or may not have been applied
+        CONNECTION,
+        // the write reached a shard its date has moved away from, the routes were reloaded
+        MOVED,
+        // the query timeout expired, retrying would only add load to a slow backend
+        TIMEOUT,
+        PERMANENT
+    }
+
+    private static Transience classify(SQLException e) {
+        // admission control already decided to fail fast, retrying would only add load
+        if (e instanceof AdmissionControl.RejectedException) {
+            return Transience.PERMANENT;
+        }
+        // repeating a commit that went through would apply the changes twice
+        if (e instanceof OutcomeUnknownException) {
+            return Transience.PERMANENT;
+        }
+        if (e instanceof ShardRouter.RangeMovedException) {
+            return Transience.MOVED;
+        }
+        for (SQLException cur = e; cur != null; cur = cur.getNextException()) {
+            switch (cur.getErrorCode()) {
+                case 1205:  // deadlock victim
+                    return Transience.DEADLOCK;
+                case 1222:  // lock request timeout
+                case 40501: // service is busy
+                case 10928: // resource limit reached
+                case 10929: // minimum resources not guaranteed
+                case 49918: // not enough resources to process request
+                case 49919: // too many create or update operations
+                case 49920: // too many operations in progress
+                    return Transience.THROTTLED;
+                case 4060:  // cannot open database
+                case 40197: // service error processing the request, e.g. during failover
+                case 40613: // database is not currently available
+                case 40143: // connection could not be initialized
+                case 233:   // no process on the other end of the pipe
+                case 64:    // the specified network name is no longer available
+                case 10053: // connection aborted
+                case 10054: // connection reset by peer
+                case 10060: // connection timed out
+                    return Transience.CONNECTION;
+                default:
+                    break;
+            }
+            // SQLState class 08 covers connection exceptions, e.g. 08S01 communication link failure
+            if (cur.getSQLState() != null && cur.getSQLState().startsWith("08")) {
+                return Transience.CONNECTION;
+            }
+            if ("HY008".equals(cur.getSQLState())) {
+                return Transience.TIMEOUT;
+            }
+            if (cur.getCause() instanceof SQLException && cur.getCause() != cur.getNextException()) {
+                Transience cause = classify((SQLException) cur.getCause());
+                if (cause != Transience.PERMANENT) {
+                    return cause;
+                }
+            }
+        }
+        return Transience.PERMANENT;
+    }
+
+    private static SqlOperation<Void> asOperation(SqlAction action) {
+        return () -> {
+            action.run();
+            return null;
+        };
+    }
+
+    public static String stats() {
+        return "retry: operations=" + operations.get()
+                + " retries=" + retries.get()
+                + " recovered=" + recovered.get()
+                + " exhausted=" + exhausted.get()
+                + " deadlocks=" + deadlocks.get();
+    }
+}
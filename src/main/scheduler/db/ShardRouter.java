@@ -0,0 +1,547 @@
+package scheduler.db;
+
+import scheduler.util.Config;
+
+import java.sql.*;
+import java.sql.Date;
+import java.time.LocalDate;
+import java.util.*;
+
+/**
+ * Routes the date-partitioned tables (Availabilities, DailyCapacity, Appointments, Cancellations) to one of
+ * several shard databases. Users, vaccines and the routing table itself stay on the primary database.
+ *
+ * Sharding is enabled by setting ShardCount to 2 or more and ShardUrl0 .. ShardUrl{n-1} to full JDBC URLs
+ * (ShardUser{i} / ShardPassword{i} default to UserID / Password), so the shards can just as well be several
+ * local database instances. Each shard is created with create_shard.sql. Days are spread round-robin over
+ * the shards, so the busy upcoming dates do not all land on one database, unless a date range has been
+ * moved explicitly with {@link #moveRange}; those placements are kept in the ShardRanges table.
+ *
+ * Appointment IDs are allocated per shard from its AppointmentSequence and end in the allocating
+ * shard's number (id = sequence * ID_STRIDE + shard). They stay unique when rows move between shards, and
+ * the suffix is the first place a lookup by ID searches.
+ *
+ * Processes cache the routes for ShardRoutesRefreshMillis, so after a move some of them still send writes
+ * to the old shard for a while. A moved range is therefore fenced on the shard it left: every write to a
+ * date checks the ShardFences of its shard inside its transaction ({@link #checkOwner}) and fails with
+ * RangeMovedException if the date has moved away, which reloads the routes and lets Retry run the write
+ * again on the new shard. Reads from a stale route may miss the moved rows until the routes are reloaded.
+ */
+public class ShardRouter {
+
+    public static final int ID_STRIDE = 64;
+
+    private static final int SHARD_COUNT = Math.min(Config.getInt("ShardCount", 0), ID_STRIDE);
+    private static final long ROUTES_REFRESH_MILLIS = Config.getLong("ShardRoutesRefreshMillis", 30000);
+    private static final int FETCH_SIZE = 10000;
+    private static final int BATCH_SIZE = 1000;
+
+    // date-keyed tables, their columns and the columns a copied row is matched on, copied as-is when a range
+    // moves; DailyCapacity is recounted from the copied availabilities instead
+    private static final String[][] TABLES = {
+            {"Availabilities", "Time, CaregiverID", "Time, CaregiverID"},
+            {"Appointments", "AppointmentID, CaregiverID, PatientID, VaccineID, Time", "AppointmentID"},
+            {"Cancellations", "AppointmentID, CaregiverID, PatientID, VaccineID, Time, CancelledAt", "AppointmentID, Time, CancelledAt"}
+    };
+    // the primary's archives have to move too when sharding is turned on, see migratePrimary
+    private static final String[][] ARCHIVES = {
+            {"ArchivedAvailabilities", "Time, CaregiverID", "Time, CaregiverID"},
+            {"ArchivedAppointments", "AppointmentID, CaregiverID, PatientID, VaccineID, Time", "AppointmentID"}
+    };
+
+    // A write reached a shard that no longer owns the date, run it again with the reloaded routes
+    public static class RangeMovedException extends SQLException {
+        private static final long serialVersionUID = 1L;
+
+        private RangeMovedException(Date d, int shard) {
+            super(d + " has moved to shard " + shard + " or is being moved");
+        }
+    }
+
+    // explicit placements, first epoch day -> {last epoch day, shard}; ranges never overlap
+    private static volatile TreeMap<Long, long[]> routes = null;
+    private static volatile long routesLoadedAt = 0;
+
+    public static boolean isSharded() {
+        return SHARD_COUNT > 1;
+    }
+
+    public static int shardCount() {
+        return isSharded() ? SHARD_COUNT : 1;
+    }
+
+    // Every database that holds date-keyed rows, for queries that span dates
+    public static List<Integer> targets() {
+        List<Integer> targets = new ArrayList<>();
+        if (!isSharded()) {
+            targets.add(ConnectionManager.PRIMARY);
+            return targets;
+        }
+        for (int shard = 0; shard < SHARD_COUNT; shard++) {
+            targets.add(shard);
+        }
+        return targets;
+    }
+
+    public static int shardFor(Date d) throws SQLException {
+        if (!isSharded()) {
+            return ConnectionManager.PRIMARY;
+        }
+        return shardFor(d.toLocalDate().toEpochDay());
+    }
+
+    private static int shardFor(long day) throws SQLException {
+        Map.Entry<Long, long[]> route = routes().floorEntry(day);
+        if (route != null && day <= route.getValue()[0]) {
+            return (int) route.getValue()[1];
+        }
+        return (int) Math.floorMod(day, (long) SHARD_COUNT);
+    }
+
+    /**
+     * Fail with RangeMovedException if the date is fenced on the connection's shard, see moveRange. Call it on
+     * the connection and in the transaction of every write to a date's rows: the fence row is read under a
+     * range lock held until commit, so a move cannot fence the date between this check and the commit.
+     */
+    public static void checkOwner(Connection con, Date d) throws SQLException {
+        if (!isSharded()) {
+            return;
+        }
+        String getFence = "SELECT TOP 1 Shard FROM ShardFences WITH (HOLDLOCK) WHERE StartDate <= ? AND EndDate >= ?";
+        PreparedStatement statement = con.prepareStatement(getFence);
+        statement.setDate(1, d);
+        statement.setDate(2, d);
+        ResultSet res = statement.executeQuery();
+        if (res.next()) {
+            int shard = res.getInt(1);
+            // the cached routes sent us here, so they are out of date
+            routes = null;
+            throw new RangeMovedException(d, shard);
+        }
+    }
+
+    // Targets to search for an appointment, starting with the shard that allocated the ID
+    public static List<Integer> lookupOrder(int appointmentID) {
+        List<Integer> targets = targets();
+        if (isSharded()) {
+            Integer home = Math.floorMod(appointmentID, ID_STRIDE);
+            if (targets.remove(home)) {
+                targets.add(0, home);
+            }
+        }
+        return targets;
+    }
+
+    public static int appointmentID(int sequence, int shard) {
+        return sequence * ID_STRIDE + shard;
+    }
+
+    static String url(int shard) throws SQLException {
+        String url = Config.getString("ShardUrl" + shard, null);
+        if (url == null) {
+            throw new SQLException("No URL configured for shard " + shard);
+        }
+        return url;
+    }
+
+    static String user(int shard, String defaultUser) {
+        return Config.getString("ShardUser" + shard, defaultUser);
+    }
+
+    static String password(int shard, String defaultPassword) {
+        return Config.getString("ShardPassword" + shard, defaultPassword);
+    }
+
+    private static TreeMap<Long, long[]> routes() throws SQLException {
+        TreeMap<Long, long[]> current = routes;
+        if (current != null && System.currentTimeMillis() - routesLoadedAt < ROUTES_REFRESH_MILLIS) {
+            return current;
+        }
+        current = Retry.idempotent(() -> {
+            ConnectionManager cm = new ConnectionManager();
+            Connection con = cm.createConnection();
+
+            String getRoutes = "SELECT StartDate, EndDate, Shard FROM ShardRanges";
+            try {
+                PreparedStatement statement = con.prepareStatement(getRoutes);
+                ResultSet res = statement.executeQuery();
+                TreeMap<Long, long[]> loaded = new TreeMap<>();
+                while (res.next()) {
+                    long first = res.getDate(1).toLocalDate().toEpochDay();
+                    long last = res.getDate(2).toLocalDate().toEpochDay();
+                    loaded.put(first, new long[]{last, res.getInt(3)});
+                }
+                return loaded;
+            } finally {
+                cm.closeConnection();
+            }
+        });
+        routes = current;
+        routesLoadedAt = System.currentTimeMillis();
+        return current;
+    }
+
+    /**
+     * Move every row dated between start and end (inclusive) to the given shard and route the range there.
+     * The days are first fenced on the shards they leave, which waits for the writes already running there
+     * and turns away later ones until they follow the new route. Then the rows are copied, the range is
+     * unfenced on the new shard, the route is switched and the old copies are deleted, so readers always find
+     * the rows on one shard or the other. Copying skips rows the new shard already has, so a move that failed
+     * part way can simply be run again. Writes to the range fail while it moves.
+     */
+    public static long moveRange(LocalDate start, LocalDate end, int shard) throws SQLException {
+        if (!isSharded()) {
+            throw new SQLException("Sharding is not enabled");
+        }
+        if (shard < 0 || shard >= SHARD_COUNT) {
+            throw new IllegalArgumentException("Shard must be between 0 and " + (SHARD_COUNT - 1));
+        }
+        long first = start.toEpochDay();
+        long last = end.toEpochDay();
+        if (last < first) {
+            throw new IllegalArgumentException("End date must not be before start date!");
+        }
+
+        // group the days that live on another shard into runs of {first, last, source}
+        List<long[]> runs = new ArrayList<>();
+        for (long day = first; day <= last; day++) {
+            int source = shardFor(day);
+            if (source == shard) {
+                continue;
+            }
+            long[] run = runs.isEmpty() ? null : runs.get(runs.size() - 1);
+            if (run != null && run[1] == day - 1 && run[2] == source) {
+                run[1] = day;
+            } else {
+                runs.add(new long[]{day, day, source});
+            }
+        }
+
+        for (long[] run : runs) {
+            fence((int) run[2], run[0], run[1], shard);
+        }
+        long rows = 0;
+        for (long[] run : runs) {
+            rows += copyRun(TABLES, run[0], run[1], (int) run[2], shard);
+        }
+        unfence(shard, first, last);
+        saveRoute(first, last, shard);
+        for (long[] run : runs) {
+            deleteRun(TABLES, run[0], run[1], (int) run[2]);
+        }
+        return rows;
+    }
+
+    /**
+     * Move the date-keyed rows and archives of an unsharded database from the primary to the shards that own
+     * their dates, once, right after ShardCount is raised and before bookings are taken again: stop every
+     * process still running without shards first. The shards' sequences are moved past the primary's
+     * appointment IDs, so new IDs cannot collide with moved ones. Rows the shards already have are skipped,
+     * so it can be run again after a failure.
+     */
+    public static long migratePrimary() throws SQLException {
+        if (!isSharded()) {
+            throw new SQLException("Sharding is not enabled");
+        }
+        int maxID = Retry.idempotent(() -> {
+            ConnectionManager cm = new ConnectionManager();
+            Connection con = cm.createConnection();
+
+            String getMaxID = "SELECT ISNULL(MAX(ID), 0) FROM (SELECT MAX(AppointmentID) ID FROM Appointments"
+                    + " UNION ALL SELECT MAX(AppointmentID) FROM ArchivedAppointments"
+                    + " UNION ALL SELECT MAX(AppointmentID) FROM Cancellations) ids";
+            try {
+                ResultSet res = con.prepareStatement(getMaxID).executeQuery();
+                res.next();
+                return res.getInt(1);
+            } finally {
+                cm.closeConnection();
+            }
+        });
+        for (int shard = 0; shard < SHARD_COUNT; shard++) {
+            int target = shard;
+            Retry.idempotent(() -> {
+                ConnectionManager cm = new ConnectionManager(target);
+                Connection con = cm.createConnection();
+
+                // ALTER SEQUENCE takes no parameters, and restarting only ever moves the sequence forward
+                String skipIDs = "DECLARE @next int = ?;"
+                        + " IF (SELECT CAST(current_value AS int) FROM sys.sequences"
+                        + " WHERE object_id = OBJECT_ID('AppointmentSequence')) < @next"
+                        + " BEGIN"
+                        + " DECLARE @restart nvarchar(100) = N'ALTER SEQUENCE AppointmentSequence RESTART WITH '"
+                        + " + CAST(@next AS nvarchar(20));"
+                        + " EXEC sp_executesql @restart;"
+                        + " END";
+                try {
+                    PreparedStatement statement = con.prepareStatement(skipIDs);
+                    statement.setInt(1, maxID / ID_STRIDE + 1);
+                    statement.execute();
+                } finally {
+                    cm.closeConnection();
+                }
+            });
+        }
+
+        long[] range = Retry.idempotent(() -> {
+            ConnectionManager cm = new ConnectionManager();
+            Connection con = cm.createConnection();
+
+            StringJoiner times = new StringJoiner(" UNION ALL ");
+            for (String[][] tables : new String[][][]{TABLES, ARCHIVES}) {
+                for (String[] table : tables) {
+                    times.add("SELECT MIN(Time) First, MAX(Time) Last FROM " + table[0]);
+                }
+            }
+            String getRange = "SELECT MIN(First), MAX(Last) FROM (" + times + ") t";
+            try {
+                ResultSet res = con.prepareStatement(getRange).executeQuery();
+                if (!res.next() || res.getDate(1) == null) {
+                    return null;
+                }
+                return new long[]{res.getDate(1).toLocalDate().toEpochDay(), res.getDate(2).toLocalDate().toEpochDay()};
+            } finally {
+                cm.closeConnection();
+            }
+        });
+        if (range == null) {
+            return 0;
+        }
+        String[][] tables = new String[TABLES.length + ARCHIVES.length][];
+        System.arraycopy(TABLES, 0, tables, 0, TABLES.length);
+        System.arraycopy(ARCHIVES, 0, tables, TABLES.length, ARCHIVES.length);
+        long rows = 0;
+        for (long day = range[0]; day <= range[1]; day++) {
+            int shard = shardFor(day);
+            rows += copyRun(tables, day, day, ConnectionManager.PRIMARY, shard);
+            deleteRun(tables, day, day, ConnectionManager.PRIMARY);
+        }
+        Retry.idempotent(() -> {
+            ConnectionManager cm = new ConnectionManager();
+            Connection con = cm.createConnection();
+            try {
+                con.prepareStatement("DELETE FROM DailyCapacity").executeUpdate();
+            } finally {
+                cm.closeConnection();
+            }
+        });
+        return rows;
+    }
+
+    // Copy the run's rows of every table and recount the run's days on the target
+    private static long copyRun(String[][] tables, long first, long last, int source, int target) throws SQLException {
+        long rows = 0;
+        for (String[] table : tables) {
+            rows += copy(table[0], table[1], table[2], first, last, source, target);
+        }
+        Retry.idempotent(() -> {
+            ConnectionManager cm = new ConnectionManager(target);
+            Connection con = cm.createConnection();
+
+            String recountCapacity = "MERGE DailyCapacity WITH (HOLDLOCK) AS C "
+                    + "USING (SELECT Time, COUNT(*) AS Free FROM Availabilities WHERE Time BETWEEN ? AND ? GROUP BY Time) AS S "
+                    + "ON C.Time = S.Time "
+                    + "WHEN MATCHED THEN UPDATE SET FreeCaregivers = S.Free "
+                    + "WHEN NOT MATCHED BY TARGET THEN INSERT (Time, FreeCaregivers) VALUES (S.Time, S.Free) "
+                    + "WHEN NOT MATCHED BY SOURCE AND C.Time BETWEEN ? AND ? THEN UPDATE SET FreeCaregivers = 0;";
+            try {
+                PreparedStatement statement = con.prepareStatement(recountCapacity);
+                statement.setDate(1, Date.valueOf(LocalDate.ofEpochDay(first)));
+                statement.setDate(2, Date.valueOf(LocalDate.ofEpochDay(last)));
+                statement.setDate(3, Date.valueOf(LocalDate.ofEpochDay(first)));
+                statement.setDate(4, Date.valueOf(LocalDate.ofEpochDay(last)));
+                statement.executeUpdate();
+            } finally {
+                cm.closeConnection();
+            }
+        });
+        return rows;
+    }
+
+    // Copy the rows the target does not have yet, matched on the key columns, returns the rows read
+    private static long copy(String table, String columns, String key, long first, long last, int source, int target)
+            throws SQLException {
+        ConnectionManager from = new ConnectionManager(source);
+        ConnectionManager to = new ConnectionManager(target);
+        Connection sourceCon = from.createConnection();
+        try {
+            Connection targetCon = to.createConnection();
+            int columnCount = columns.split(",").length;
+            StringJoiner matching = new StringJoiner(" AND ");
+            for (String column : key.split(",\\s*")) {
+                matching.add("T." + column + " = V." + column);
+            }
+            String select = "SELECT " + columns + " FROM " + table + " WHERE Time BETWEEN ? AND ?";
+            String insert = "INSERT INTO " + table + " (" + columns + ") SELECT * FROM (VALUES ("
+                    + String.join(", ", Collections.nCopies(columnCount, "?")) + ")) AS V (" + columns + ") "
+                    + "WHERE NOT EXISTS (SELECT 1 FROM " + table + " T WHERE " + matching + ")";
+
+            PreparedStatement read = sourceCon.prepareStatement(select,
+                    ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            read.setFetchSize(FETCH_SIZE);
+            read.setDate(1, Date.valueOf(LocalDate.ofEpochDay(first)));
+            read.setDate(2, Date.valueOf(LocalDate.ofEpochDay(last)));
+            ResultSet res = read.executeQuery();
+            PreparedStatement write = targetCon.prepareStatement(insert);
+            long rows = 0;
+            while (res.next()) {
+                for (int i = 1; i <= columnCount; i++) {
+                    write.setObject(i, res.getObject(i));
+                }
+                write.addBatch();
+                if (++rows % BATCH_SIZE == 0) {
+                    write.executeBatch();
+                }
+            }
+            write.executeBatch();
+            return rows;
+        } finally {
+            to.closeConnection();
+            from.closeConnection();
+        }
+    }
+
+    // Delete the run's rows of every table, and its counts, in one transaction so a failure keeps them all
+    private static void deleteRun(String[][] tables, long first, long last, int source) throws SQLException {
+        Retry.transaction(() -> {
+            ConnectionManager cm = new ConnectionManager(source);
+            Connection con = cm.createConnection();
+            try {
+                List<String> names = new ArrayList<>();
+                for (String[] table : tables) {
+                    names.add(table[0]);
+                }
+                names.add("DailyCapacity");
+                for (String table : names) {
+                    String deleteRange = "DELETE FROM " + table + " WHERE Time BETWEEN ? AND ?";
+                    PreparedStatement statement = con.prepareStatement(deleteRange);
+                    statement.setDate(1, Date.valueOf(LocalDate.ofEpochDay(first)));
+                    statement.setDate(2, Date.valueOf(LocalDate.ofEpochDay(last)));
+                    statement.executeUpdate();
+                }
+                return null;
+            } finally {
+                cm.closeConnection();
+            }
+        });
+    }
+
+    // Turn away writes to [first, last] on the source. The insert waits for the range locks of running writes.
+    private static void fence(int source, long first, long last, int shard) throws SQLException {
+        Retry.transaction(() -> {
+            ConnectionManager cm = new ConnectionManager(source);
+            Connection con = cm.createConnection();
+
+            String addFence = "INSERT INTO ShardFences (StartDate, EndDate, Shard) SELECT ?, ?, ? "
+                    + "WHERE NOT EXISTS (SELECT 1 FROM ShardFences WHERE StartDate = ? AND EndDate = ?)";
+            try {
+                PreparedStatement statement = con.prepareStatement(addFence);
+                statement.setDate(1, Date.valueOf(LocalDate.ofEpochDay(first)));
+                statement.setDate(2, Date.valueOf(LocalDate.ofEpochDay(last)));
+                statement.setInt(3, shard);
+                statement.setDate(4, Date.valueOf(LocalDate.ofEpochDay(first)));
+                statement.setDate(5, Date.valueOf(LocalDate.ofEpochDay(last)));
+                statement.executeUpdate();
+                return null;
+            } finally {
+                cm.closeConnection();
+            }
+        });
+    }
+
+    // Lift the fences on [first, last] from the shard the range moves to, keeping the parts outside it
+    private static void unfence(int shard, long first, long last) throws SQLException {
+        Retry.transaction(() -> {
+            ConnectionManager cm = new ConnectionManager(shard);
+            Connection con = cm.createConnection();
+
+            String getFences = "SELECT StartDate, EndDate, Shard FROM ShardFences WITH (UPDLOCK) WHERE StartDate <= ? AND EndDate >= ?";
+            String removeFence = "DELETE FROM ShardFences WHERE StartDate = ? AND EndDate = ?";
+            String addFence = "INSERT INTO ShardFences (StartDate, EndDate, Shard) VALUES (?, ?, ?)";
+            try {
+                PreparedStatement statement = con.prepareStatement(getFences);
+                statement.setDate(1, Date.valueOf(LocalDate.ofEpochDay(last)));
+                statement.setDate(2, Date.valueOf(LocalDate.ofEpochDay(first)));
+                ResultSet res = statement.executeQuery();
+                List<long[]> fences = new ArrayList<>();
+                while (res.next()) {
+                    fences.add(new long[]{res.getDate(1).toLocalDate().toEpochDay(),
+                            res.getDate(2).toLocalDate().toEpochDay(), res.getInt(3)});
+                }
+                for (long[] fence : fences) {
+                    statement = con.prepareStatement(removeFence);
+                    statement.setDate(1, Date.valueOf(LocalDate.ofEpochDay(fence[0])));
+                    statement.setDate(2, Date.valueOf(LocalDate.ofEpochDay(fence[1])));
+                    statement.executeUpdate();
+                    // keep the parts sticking out on either side
+                    for (long[] part : new long[][]{{fence[0], first - 1}, {last + 1, fence[1]}}) {
+                        if (part[0] > part[1]) {
+                            continue;
+                        }
+                        statement = con.prepareStatement(addFence);
+                        statement.setDate(1, Date.valueOf(LocalDate.ofEpochDay(part[0])));
+                        statement.setDate(2, Date.valueOf(LocalDate.ofEpochDay(part[1])));
+                        statement.setInt(3, (int) fence[2]);
+                        statement.executeUpdate();
+                    }
+                }
+                return null;
+            } finally {
+                cm.closeConnection();
+            }
+        });
+    }
+
+    // Replace the placements overlapping [first, last] with one that sends the whole range to shard. Only the
+    // overlapping rows are read and rewritten, under locks held to the commit, so rebalances of other ranges
+    // running at the same time keep their placements and two of the same range apply one after the other.
+    private static void saveRoute(long first, long last, int shard) throws SQLException {
+        Retry.transaction(() -> {
+            ConnectionManager cm = new ConnectionManager();
+            Connection con = cm.createConnection();
+
+            String getOverlapping = "SELECT StartDate, EndDate, Shard FROM ShardRanges WITH (UPDLOCK, SERIALIZABLE)"
+                    + " WHERE EndDate >= ? AND StartDate <= ?";
+            String removeOverlapping = "DELETE FROM ShardRanges WHERE EndDate >= ? AND StartDate <= ?";
+            String addRoute = "INSERT INTO ShardRanges VALUES (?, ?, ?)";
+            try {
+                PreparedStatement statement = con.prepareStatement(getOverlapping);
+                statement.setDate(1, Date.valueOf(LocalDate.ofEpochDay(first)));
+                statement.setDate(2, Date.valueOf(LocalDate.ofEpochDay(last)));
+                ResultSet res = statement.executeQuery();
+                TreeMap<Long, long[]> added = new TreeMap<>();
+                while (res.next()) {
+                    long routeFirst = res.getDate(1).toLocalDate().toEpochDay();
+                    long routeLast = res.getDate(2).toLocalDate().toEpochDay();
+                    int routeShard = res.getInt(3);
+                    // keep the parts sticking out on either side
+                    if (routeFirst < first) {
+                        added.put(routeFirst, new long[]{first - 1, routeShard});
+                    }
+                    if (routeLast > last) {
+                        added.put(last + 1, new long[]{routeLast, routeShard});
+                    }
+                }
+                added.put(first, new long[]{last, shard});
+
+                statement = con.prepareStatement(removeOverlapping);
+                statement.setDate(1, Date.valueOf(LocalDate.ofEpochDay(first)));
+                statement.setDate(2, Date.valueOf(LocalDate.ofEpochDay(last)));
+                statement.executeUpdate();
+                statement = con.prepareStatement(addRoute);
+                for (Map.Entry<Long, long[]> route : added.entrySet()) {
+                    statement.setDate(1, Date.valueOf(LocalDate.ofEpochDay(route.getKey())));
+                    statement.setDate(2, Date.valueOf(LocalDate.ofEpochDay(route.getValue()[0])));
+                    statement.setInt(3, (int) route.getValue()[1]);
+                    statement.addBatch();
+                }
+                statement.executeBatch();
+                return null;
+            } finally {
+                cm.closeConnection();
+            }
+        });
+        // reload, the table may hold moves this process has not seen yet
+        routes = null;
+    }
+}
@@ -0,0 +1,145 @@
+package scheduler.event;
+
+import scheduler.db.ConnectionManager;
+import scheduler.util.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Publish/subscribe bus for changes made by the model's write paths, so caches and indexes can follow the
+ * data without querying the database.
+ *
+ * Events go through a fixed-size ring buffer. Publishers claim a slot with one atomic increment and never
+ * take a lock; a slot is readable once its sequence number is set. Delivery drains every readable slot in
+ * order and hands the whole run to each listener as one batch, on the publishing thread, so a listener has
+ * seen a change before the command that made it returns. A publisher that finds the ring full delivers the
+ * pending events itself.
+ *
+ * Events published inside a transaction are held back until it commits and dropped if it rolls back, so
+ * listeners only ever see committed changes, one batch per transaction.
+ */
+public class ChangeBus {
+
+    private static final int CAPACITY = Integer.highestOneBit(Math.max(Config.getInt("ChangeBusCapacity", 4096), 2));
+    private static final int MASK = CAPACITY - 1;
+
+    private static final AtomicReferenceArray<ChangeEvent> slots = new AtomicReferenceArray<>(CAPACITY);
+    // sequence number of the event in each slot, the slot is readable once it matches
+    private static final AtomicLongArray sequences = new AtomicLongArray(CAPACITY);
+    private static final AtomicLong claimed = new AtomicLong();
+    private static volatile long consumed = 0;
+    // one consumer at a time, so batches are delivered in order
+    private static final ReentrantLock consumer = new ReentrantLock();
+
+    private static final List<ChangeListener> listeners = new CopyOnWriteArrayList<>();
+    // events published by the thread's open transaction
+    private static final ThreadLocal<List<ChangeEvent>> transactionEvents = new ThreadLocal<>();
+
+    private static final AtomicLongArray deliveredByType = new AtomicLongArray(ChangeEvent.Type.values().length);
+    private static long batches = 0;
+    private static long listenerErrors = 0;
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            sequences.set(i, -1);
+        }
+    }
+
+    public static void subscribe(ChangeListener listener) {
+        listeners.add(listener);
+    }
+
+    public static void publish(ChangeEvent event) {
+        if (!ConnectionManager.inTransaction()) {
+            offer(event);
+            drain();
+            return;
+        }
+        List<ChangeEvent> events = transactionEvents.get();
+        if (events == null) {
+            List<ChangeEvent> pending = new ArrayList<>();
+            transactionEvents.set(pending);
+            ConnectionManager.afterCompletion(committed -> {
+                transactionEvents.remove();
+                if (committed) {
+                    for (ChangeEvent e : pending) {
+                        offer(e);
+                    }
+                    drain();
+                }
+            });
+            events = pending;
+        }
+        events.add(event);
+    }
+
+    private static void offer(ChangeEvent event) {
+        long sequence = claimed.getAndIncrement();
+        while (sequence - consumed >= CAPACITY) {
+            // full, deliver what is there to free the slot
+            drain();
+            Thread.onSpinWait();
+        }
+        int slot = (int) (sequence & MASK);
+        slots.set(slot, event);
+        sequences.set(slot, sequence);
+    }
+
+    // Deliver every event that is ready, in publishing order
+    public static void drain() {
+        consumer.lock();
+        try {
+            List<ChangeEvent> batch = new ArrayList<>();
+            long next = consumed;
+            while (sequences.get((int) (next & MASK)) == next) {
+                int slot = (int) (next & MASK);
+                batch.add(slots.get(slot));
+                slots.set(slot, null);
+                next++;
+            }
+            consumed = next;
+            if (batch.isEmpty()) {
+                return;
+            }
+            batches++;
+            for (ChangeEvent event : batch) {
+                deliveredByType.incrementAndGet(event.getType().ordinal());
+            }
+            List<ChangeEvent> events = List.copyOf(batch);
+            for (ChangeListener listener : listeners) {
+                try {
+                    listener.onChanges(events);
+                } catch (RuntimeException e) {
+                    // one broken listener must not keep the others from their updates
+                    listenerErrors++;
+                    e.printStackTrace();
+                }
+            }
+        } finally {
+            consumer.unlock();
+        }
+    }
+
+    public static String stats() {
+        consumer.lock();
+        try {
+            StringBuilder stats = new StringBuilder("events: published=" + claimed.get()
+                    + " delivered=" + consumed
+                    + " batches=" + batches
+                    + " listenerErrors=" + listenerErrors);
+            for (ChangeEvent.Type type : ChangeEvent.Type.values()) {
+                stats.append(' ').append(type.name().toLowerCase()).append('=')
+                        .append(deliveredByType.get(type.ordinal()));
+            }
+            return stats.toString();
+        } finally {
+            consumer.unlock();
+        }
+    }
+}
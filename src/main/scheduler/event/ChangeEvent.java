@@ -0,0 +1,90 @@
+package scheduler.event;
+
+import scheduler.model.Appointment;
+
+import java.sql.Date;
+
+/**
+ * A committed change to the scheduler's data, published on the {@link ChangeBus}. Only the fields that
+ * belong to the event's type are set.
+ */
+public class ChangeEvent {
+
+    public enum Type {
+        AVAILABILITY_ADDED,
+        AVAILABILITY_REMOVED,
+        DOSES_CHANGED,
+        APPOINTMENT_CREATED,
+        APPOINTMENT_REMOVED,
+        // every availability and appointment dated before the event's date moved to the archive tables
+        ARCHIVED
+    }
+
+    private final Type type;
+    private final Date date;
+    private final String caregiverUsername;
+    private final String vaccineName;
+    private final int doseDelta;
+    private final Appointment appointment;
+
+    private ChangeEvent(Type type, Date date, String caregiverUsername, String vaccineName, int doseDelta,
+                        Appointment appointment) {
+        this.type = type;
+        this.date = date;
+        this.caregiverUsername = caregiverUsername;
+        this.vaccineName = vaccineName;
+        this.doseDelta = doseDelta;
+        this.appointment = appointment;
+    }
+
+    public static ChangeEvent availabilityAdded(Date d, String caregiverUsername) {
+        return new ChangeEvent(Type.AVAILABILITY_ADDED, d, caregiverUsername, null, 0, null);
+    }
+
+    public static ChangeEvent availabilityRemoved(Date d, String caregiverUsername) {
+        return new ChangeEvent(Type.AVAILABILITY_REMOVED, d, caregiverUsername, null, 0, null);
+    }
+
+    public static ChangeEvent dosesChanged(String vaccineName, int doseDelta) {
+        return new ChangeEvent(Type.DOSES_CHANGED, null, null, vaccineName, doseDelta, null);
+    }
+
+    public static ChangeEvent appointmentCreated(Appointment appointment) {
+        return new ChangeEvent(Type.APPOINTMENT_CREATED, appointment.getDate(),
+                appointment.getCaregiverUsername(), appointment.getVaccineName(), 0, appointment);
+    }
+
+    public static ChangeEvent appointmentRemoved(Appointment appointment) {
+        return new ChangeEvent(Type.APPOINTMENT_REMOVED, appointment.getDate(),
+                appointment.getCaregiverUsername(), appointment.getVaccineName(), 0, appointment);
+    }
+
+    public static ChangeEvent archived(Date cutoff) {
+        return new ChangeEvent(Type.ARCHIVED, cutoff, null, null, 0, null);
+    }
+
+    // Getters
+    public Type getType() {
+        return type;
+    }
+
+    public Date getDate() {
+        return date;
+    }
+
+    public String getCaregiverUsername() {
+        return caregiverUsername;
+    }
+
+    public String getVaccineName() {
+        return vaccineName;
+    }
+
+    public int getDoseDelta() {
+        return doseDelta;
+    }
+
+    public Appointment getAppointment() {
+        return appointment;
+    }
+}
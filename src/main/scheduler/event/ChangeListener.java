@@ -0,0 +1,8 @@
+package scheduler.event;
+
+import java.util.List;
+
+public interface ChangeListener {
+    // Called with the events published since the last delivery, in publishing order
+    void onChanges(List<ChangeEvent> events);
+}
@@ -1,11 +1,25 @@
 package scheduler.model;
 
 import scheduler.db.ConnectionManager;
+import scheduler.db.Cursor;
+import scheduler.db.Retry;
+import scheduler.db.ShardRouter;
+import scheduler.event.ChangeBus;
+import scheduler.event.ChangeEvent;
 
 import java.sql.*;
+import java.sql.Date;
+import java.util.*;
 
+/**
+ * An appointment as stored: caregiver, patient and vaccine by their IDs, see {@link Dictionary}. The names
+ * are looked up once when the appointment is built, the dictionary hands out one shared copy of each.
+ */
 public class Appointment {
     private final int appointmentID;
+    private final int caregiverID;
+    private final int patientID;
+    private final int vaccineID;
     private final String caregiverUsername;
     private final String patientUsername;
     private final String vaccineName;
@@ -13,6 +27,9 @@ public class Appointment {
 
     private Appointment(AppointmentBuilder builder) {
         this.appointmentID = builder.appointmentID;
+        this.caregiverID = builder.caregiverID;
+        this.patientID = builder.patientID;
+        this.vaccineID = builder.vaccineID;
         this.caregiverUsername = builder.caregiverUsername;
         this.patientUsername = builder.patientUsername;
         this.vaccineName = builder.vaccineName;
@@ -21,6 +38,9 @@ public class Appointment {
 
     private Appointment(AppointmentGetter getter) {
         this.appointmentID = getter.appointmentID;
+        this.caregiverID = getter.caregiverID;
+        this.patientID = getter.patientID;
+        this.vaccineID = getter.vaccineID;
         this.caregiverUsername = getter.caregiverUsername;
         this.patientUsername = getter.patientUsername;
         this.vaccineName = getter.vaccineName;
@@ -32,6 +52,18 @@ public class Appointment {
         return appointmentID;
     }
 
+    public int getCaregiverID() {
+        return caregiverID;
+    }
+
+    public int getPatientID() {
+        return patientID;
+    }
+
+    public int getVaccineID() {
+        return vaccineID;
+    }
+
     public String getCaregiverUsername() {
         return caregiverUsername;
     }
@@ -48,68 +80,267 @@ public class Appointment {
         return date;
     }
 
+    // Allocate the ID for a new appointment on the given date, from the sequence of the shard that will store it
+    public static int allocateID(Date d) throws SQLException {
+        return allocateIDs(d, 1)[0];
+    }
+
+    // Allocate count consecutive IDs with one call. AppointmentSequence is a SEQUENCE object, which hands out
+    // values outside the caller's transaction: nothing stays locked until the booking commits, and a rolled
+    // back booking only leaves a gap in the IDs
+    public static int[] allocateIDs(Date d, int count) throws SQLException {
+        int[] ids = new int[count];
+        if (count == 0) {
+            return ids;
+        }
+        // without shards the primary holds the sequence
+        int shard = ShardRouter.shardFor(d);
+        // a retry after a lost reply only skips the range the first attempt took
+        int first = Retry.idempotent(() -> {
+            ConnectionManager cm = new ConnectionManager(shard);
+            Connection con = cm.createConnection();
+
+            String nextIDs = "SET NOCOUNT ON; DECLARE @first sql_variant;"
+                    + " EXEC sp_sequence_get_range @sequence_name = N'AppointmentSequence', @range_size = ?,"
+                    + " @range_first_value = @first OUTPUT;"
+                    + " SELECT CAST(@first AS int)";
+            try {
+                PreparedStatement statement = con.prepareStatement(nextIDs);
+                statement.setInt(1, count);
+                ResultSet res = statement.executeQuery();
+                res.next();
+                return res.getInt(1);
+            } finally {
+                cm.closeConnection();
+            }
+        });
+        for (int i = 0; i < count; i++) {
+            int sequence = first + i;
+            ids[i] = ShardRouter.isSharded() ? ShardRouter.appointmentID(sequence, shard) : sequence;
+        }
+        return ids;
+    }
+
     public void saveToDB() throws SQLException {
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
+        // a transaction of its own when the caller has none, so the owner check holds until the insert commits
+        Retry.transaction(() -> {
+            ConnectionManager cm = new ConnectionManager(ShardRouter.shardFor(this.date));
+            Connection con = cm.createConnection();
+
+            String addAppointment = "INSERT INTO Appointments (AppointmentID, CaregiverID, PatientID, VaccineID, Time) VALUES (?, ?, ?, ?, ?)";
+            try {
+                PreparedStatement statement = con.prepareStatement(addAppointment);
+                statement.setInt(1, this.appointmentID);
+                statement.setInt(2, this.caregiverID);
+                statement.setInt(3, this.patientID);
+                statement.setInt(4, this.vaccineID);
+                statement.setDate(5, this.date);
+                statement.executeUpdate();
+                ShardRouter.checkOwner(con, this.date);
+                return null;
+            } finally {
+                cm.closeConnection();
+            }
+        });
+        ChangeBus.publish(ChangeEvent.appointmentCreated(this));
+    }
+
+    // Insert appointments that share a date with one batched statement
+    public static void saveAllToDB(List<Appointment> appointments) throws SQLException {
+        if (appointments.isEmpty()) {
+            return;
+        }
+        Date d = appointments.get(0).date;
+        Retry.transaction(() -> {
+            ConnectionManager cm = new ConnectionManager(ShardRouter.shardFor(d));
+            Connection con = cm.createConnection();
+
+            String addAppointment = "INSERT INTO Appointments (AppointmentID, CaregiverID, PatientID, VaccineID, Time) VALUES (?, ?, ?, ?, ?)";
+            try {
+                PreparedStatement statement = con.prepareStatement(addAppointment);
+                for (Appointment appointment : appointments) {
+                    statement.setInt(1, appointment.appointmentID);
+                    statement.setInt(2, appointment.caregiverID);
+                    statement.setInt(3, appointment.patientID);
+                    statement.setInt(4, appointment.vaccineID);
+                    statement.setDate(5, appointment.date);
+                    statement.addBatch();
+                }
+                statement.executeBatch();
+                ShardRouter.checkOwner(con, d);
+                return null;
+            } finally {
+                cm.closeConnection();
+            }
+        });
+        for (Appointment appointment : appointments) {
+            ChangeBus.publish(ChangeEvent.appointmentCreated(appointment));
+        }
+    }
+
+    // Returns false if the appointment was already gone, e.g. cancelled by another process after it was cached
+    public boolean removeFromDB() throws SQLException {
+        boolean removed = Retry.transaction(() -> {
+            ConnectionManager cm = new ConnectionManager(ShardRouter.shardFor(this.date));
+            Connection con = cm.createConnection();
+
+            String removeAppointment = "DELETE FROM Appointments WHERE AppointmentID = ?";
+            String addCancellation = "INSERT INTO Cancellations (AppointmentID, CaregiverID, PatientID, VaccineID, Time) VALUES (?, ?, ?, ?, ?)";
+            try {
+                PreparedStatement statement = con.prepareStatement(removeAppointment);
+                statement.setInt(1, this.appointmentID);
+                if (statement.executeUpdate() == 0) {
+                    return false;
+                }
+
+                // keep a record of the cancellation for utilization reports
+                statement = con.prepareStatement(addCancellation);
+                statement.setInt(1, this.appointmentID);
+                statement.setInt(2, this.caregiverID);
+                statement.setInt(3, this.patientID);
+                statement.setInt(4, this.vaccineID);
+                statement.setDate(5, this.date);
+                statement.executeUpdate();
+                ShardRouter.checkOwner(con, this.date);
+                return true;
+            } finally {
+                cm.closeConnection();
+            }
+        });
+        if (removed) {
+            ChangeBus.publish(ChangeEvent.appointmentRemoved(this));
+        }
+        return removed;
+    }
+
+    /**
+     * One page of a user's appointments in ID order: those with an ID above afterID, from every shard, and
+     * with includeArchived from the archive as well. column is PatientID or CaregiverID. Returns up to
+     * limit + 1 appointments, an extra one only says that there is another page.
+     *
+     * Every table is read with a seek on its user index that stops after limit + 1 rows, so a page costs the
+     * same however many appointments the user has. A first page that turns out to hold all of the current
+     * appointments is kept as the user's list in the AppointmentCache, which then serves the later reads.
+     */
+    static List<Appointment> getPage(String column, String username, boolean includeArchived, int afterID, int limit)
+            throws SQLException {
+        boolean patient = column.equals("PatientID");
+        int userID = (patient ? Dictionary.PATIENTS : Dictionary.CAREGIVERS).id(username);
+        List<Appointment> cached = patient ? AppointmentCache.getForPatient(userID) : AppointmentCache.getForCaregiver(userID);
+        Map<Integer, AppointmentBuilder> current = new TreeMap<>();
+        Map<Integer, AppointmentBuilder> archived = new TreeMap<>();
+        for (int target : ShardRouter.targets()) {
+            if (cached == null) {
+                readPage(target, "Appointments", column, userID, afterID, limit + 1, current);
+            }
+            if (includeArchived) {
+                readPage(target, "ArchivedAppointments", column, userID, afterID, limit + 1, archived);
+            }
+        }
 
-        String addAppointment = "INSERT INTO appointments VALUES (? , ?, ? , ? , ?)";
-        try {
-            PreparedStatement statement = con.prepareStatement(addAppointment);
-            statement.setInt(1, this.appointmentID);
-            statement.setString(2, this.caregiverUsername);
-            statement.setString(3, this.patientUsername);
-            statement.setString(4, this.vaccineName);
-            statement.setDate(5, this.date);
-            statement.executeUpdate();
-        } catch (SQLException e) {
-            throw new SQLException();
-        } finally {
-            cm.closeConnection();
+        // archived appointments are older, but IDs from several shards interleave, so merge by ID
+        Map<Integer, Appointment> page = new TreeMap<>();
+        if (cached == null) {
+            List<Appointment> appointments = buildAll(current.values());
+            for (Appointment appointment : appointments) {
+                AppointmentCache.put(appointment);
+                page.put(appointment.appointmentID, appointment);
+            }
+            // no table reached its limit, so this is the whole list
+            if (afterID == 0 && appointments.size() <= limit) {
+                if (patient) {
+                    AppointmentCache.putForPatient(userID, appointments);
+                } else {
+                    AppointmentCache.putForCaregiver(userID, appointments);
+                }
+            }
+        } else {
+            for (Appointment appointment : cached) {
+                if (appointment.appointmentID > afterID && page.size() <= limit) {
+                    page.put(appointment.appointmentID, appointment);
+                }
+            }
+        }
+        for (Appointment appointment : buildAll(archived.values())) {
+            page.put(appointment.appointmentID, appointment);
         }
+        List<Appointment> appointments = new ArrayList<>(page.values());
+        return appointments.subList(0, Math.min(limit + 1, appointments.size()));
     }
 
-    public void removeFromDB() throws SQLException {
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
+    private static void readPage(int target, String table, String column, int userID, int afterID, int limit,
+                                 Map<Integer, AppointmentBuilder> builders) throws SQLException {
+        String getPage = "SELECT AppointmentID, CaregiverID, PatientID, VaccineID, Time FROM " + table
+                + " WHERE " + column + " = ? AND AppointmentID > ? ORDER BY AppointmentID";
+        try (Cursor<AppointmentBuilder> cursor = new Cursor.CursorBuilder<>(target, getPage,
+                res -> new AppointmentBuilder(res.getInt("AppointmentID"), res.getInt("CaregiverID"),
+                        res.getInt("PatientID"), res.getInt("VaccineID"), res.getDate("Time")))
+                .params(userID, afterID).limit(limit).open()) {
+            while (cursor.hasNext()) {
+                AppointmentBuilder builder = cursor.next();
+                builders.put(builder.appointmentID, builder);
+            }
+        } catch (Cursor.CursorException e) {
+            throw e.getCause();
+        }
+    }
 
-        String removeAppointment = "DELETE FROM Appointments WHERE AppointmentID = ?";
-        try {
-            PreparedStatement statement = con.prepareStatement(removeAppointment);
-            statement.setInt(1, this.appointmentID);
-            statement.executeUpdate();
-        } catch (SQLException e) {
-            throw new SQLException();
-        } finally {
-            cm.closeConnection();
+    // Build many appointments, looking up the names that are not cached yet with one query per table
+    public static List<Appointment> buildAll(Collection<AppointmentBuilder> builders) throws SQLException {
+        Set<Integer> caregivers = new HashSet<>();
+        Set<Integer> patients = new HashSet<>();
+        Set<Integer> vaccines = new HashSet<>();
+        for (AppointmentBuilder builder : builders) {
+            caregivers.add(builder.caregiverID);
+            patients.add(builder.patientID);
+            vaccines.add(builder.vaccineID);
         }
+        Dictionary.CAREGIVERS.resolve(caregivers);
+        Dictionary.PATIENTS.resolve(patients);
+        Dictionary.VACCINES.resolve(vaccines);
+        List<Appointment> appointments = new ArrayList<>(builders.size());
+        for (AppointmentBuilder builder : builders) {
+            appointments.add(builder.build());
+        }
+        return appointments;
     }
 
     public static class AppointmentBuilder {
         private final int appointmentID;
-        private final String caregiverUsername;
-        private final String patientUsername;
-        private final String vaccineName;
+        private final int caregiverID;
+        private final int patientID;
+        private final int vaccineID;
+        private String caregiverUsername;
+        private String patientUsername;
+        private String vaccineName;
         private final Date date;
 
         public AppointmentBuilder(int appointmentID,
-                                  String caregiverUsername,
-                                  String patientUsername,
-                                  String vaccineName,
+                                  int caregiverID,
+                                  int patientID,
+                                  int vaccineID,
                                   Date date) {
             this.appointmentID = appointmentID;
-            this.caregiverUsername = caregiverUsername;
-            this.patientUsername = patientUsername;
-            this.vaccineName = vaccineName;
+            this.caregiverID = caregiverID;
+            this.patientID = patientID;
+            this.vaccineID = vaccineID;
             this.date = date;
         }
 
-        public Appointment build() {
+        // Looks up the names, resolve the IDs of many appointments with Dictionary.resolve first
+        public Appointment build() throws SQLException {
+            this.caregiverUsername = Dictionary.CAREGIVERS.name(this.caregiverID);
+            this.patientUsername = Dictionary.PATIENTS.name(this.patientID);
+            this.vaccineName = Dictionary.VACCINES.name(this.vaccineID);
             return new Appointment(this);
         }
     }
 
     public static class AppointmentGetter {
         private final int appointmentID;
+        private int caregiverID;
+        private int patientID;
+        private int vaccineID;
         private String caregiverUsername;
         private String patientUsername;
         private String vaccineName;
@@ -120,27 +351,51 @@ public class Appointment {
         }
 
         public Appointment get() throws SQLException {
-            ConnectionManager cm = new ConnectionManager();
-            Connection con = cm.createConnection();
+            Appointment cached = AppointmentCache.get(this.appointmentID);
+            if (cached != null) {
+                return cached;
+            }
+            // the shard that allocated the ID is the most likely home, the others are searched after a rebalance
+            for (int target : ShardRouter.lookupOrder(this.appointmentID)) {
+                Appointment appointment = get(target);
+                if (appointment != null) {
+                    AppointmentCache.put(appointment);
+                    return appointment;
+                }
+            }
+            return null;
+        }
 
-            String getAppointment = "SELECT * FROM Appointments WHERE AppointmentID = ?";
-            try {
-                PreparedStatement statement = con.prepareStatement(getAppointment);
-                statement.setInt(1, this.appointmentID);
-                ResultSet resultSet = statement.executeQuery();
-                while (resultSet.next()) {
-                    this.caregiverUsername = resultSet.getString("Caregiver");
-                    this.patientUsername = resultSet.getString("Patient");
-                    this.vaccineName = resultSet.getString("Vaccine");
-                    this.date = resultSet.getDate("Time");
-                    return new Appointment(this);
+        private Appointment get(int target) throws SQLException {
+            boolean found = Retry.idempotent(() -> {
+                ConnectionManager cm = new ConnectionManager(target);
+                Connection con = cm.createConnection();
+
+                String getAppointment = "SELECT CaregiverID, PatientID, VaccineID, Time FROM Appointments WHERE AppointmentID = ?";
+                try {
+                    PreparedStatement statement = con.prepareStatement(getAppointment);
+                    statement.setInt(1, this.appointmentID);
+                    ResultSet resultSet = statement.executeQuery();
+                    while (resultSet.next()) {
+                        this.caregiverID = resultSet.getInt("CaregiverID");
+                        this.patientID = resultSet.getInt("PatientID");
+                        this.vaccineID = resultSet.getInt("VaccineID");
+                        this.date = resultSet.getDate("Time");
+                        return true;
+                    }
+                    return false;
+                } finally {
+                    cm.closeConnection();
                 }
+            });
+            if (!found) {
                 return null;
-            } catch (SQLException e) {
-                throw new SQLException();
-            } finally {
-                cm.closeConnection();
             }
+            // the names come from the primary, so look them up after the shard's connection is closed
+            this.caregiverUsername = Dictionary.CAREGIVERS.name(this.caregiverID);
+            this.patientUsername = Dictionary.PATIENTS.name(this.patientID);
+            this.vaccineName = Dictionary.VACCINES.name(this.vaccineID);
+            return new Appointment(this);
         }
     }
 }
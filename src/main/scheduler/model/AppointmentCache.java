@@ -0,0 +1,107 @@
+package scheduler.model;
+
+import scheduler.event.ChangeBus;
+import scheduler.event.ChangeEvent;
+import scheduler.util.Config;
+import scheduler.util.LruCache;
+
+import java.util.List;
+
+/**
+ * In-memory copies of recently used appointments, by ID and as each user's list of appointments sorted by
+ * ID. Both are bounded and evict the least recently used entries. Lists are keyed by the user's ID, which
+ * does not depend on how the name was spelled at login.
+ *
+ * Every committed appointment change published on the ChangeBus invalidates the entries the appointment
+ * appears in, so this process never serves an appointment list it has changed since. Changes made by other
+ * scheduler processes are not published here, so a user's list is only served for AppointmentListTtlMillis
+ * after it was read. Writes based on a cached appointment are fenced by the database (see
+ * Appointment.removeFromDB).
+ */
+public class AppointmentCache {
+
+    private static final LruCache<Integer, Appointment> byId =
+            new LruCache<>(Config.getInt("AppointmentCacheSize", 10000));
+    private static final LruCache<Integer, CachedList> byPatient =
+            new LruCache<>(Config.getInt("AppointmentListCacheSize", 1000));
+    private static final LruCache<Integer, CachedList> byCaregiver =
+            new LruCache<>(Config.getInt("AppointmentListCacheSize", 1000));
+    private static final long LIST_TTL_MILLIS = Config.getLong("AppointmentListTtlMillis", 5000);
+
+    private static class CachedList {
+        private final List<Appointment> appointments;
+        private final long expiresAt;
+
+        private CachedList(List<Appointment> appointments) {
+            this.appointments = List.copyOf(appointments);
+            this.expiresAt = System.currentTimeMillis() + LIST_TTL_MILLIS;
+        }
+    }
+
+    static {
+        ChangeBus.subscribe(events -> {
+            for (ChangeEvent event : events) {
+                if (event.getType() == ChangeEvent.Type.APPOINTMENT_CREATED
+                        || event.getType() == ChangeEvent.Type.APPOINTMENT_REMOVED) {
+                    invalidate(event.getAppointment());
+                } else if (event.getType() == ChangeEvent.Type.ARCHIVED) {
+                    // archival is rare and moves many appointments at once
+                    byId.clear();
+                    byPatient.clear();
+                    byCaregiver.clear();
+                }
+            }
+        });
+    }
+
+    static Appointment get(int appointmentID) {
+        return byId.get(appointmentID);
+    }
+
+    static void put(Appointment appointment) {
+        byId.put(appointment.getAppointmentID(), appointment);
+    }
+
+    static List<Appointment> getForPatient(int patientID) {
+        return current(byPatient, patientID);
+    }
+
+    static List<Appointment> getForCaregiver(int caregiverID) {
+        return current(byCaregiver, caregiverID);
+    }
+
+    // appointments must be sorted by ID
+    static void putForPatient(int patientID, List<Appointment> appointments) {
+        byPatient.put(patientID, new CachedList(appointments));
+    }
+
+    static void putForCaregiver(int caregiverID, List<Appointment> appointments) {
+        byCaregiver.put(caregiverID, new CachedList(appointments));
+    }
+
+    // The cached list, or null once it is older than the TTL and may miss other processes' bookings
+    private static List<Appointment> current(LruCache<Integer, CachedList> lists, int userID) {
+        CachedList list = lists.get(userID);
+        if (list == null) {
+            return null;
+        }
+        if (list.expiresAt < System.currentTimeMillis()) {
+            lists.remove(userID);
+            return null;
+        }
+        return list.appointments;
+    }
+
+    // Drop every entry the appointment appears in
+    private static void invalidate(Appointment appointment) {
+        byId.remove(appointment.getAppointmentID());
+        byPatient.remove(appointment.getPatientID());
+        byCaregiver.remove(appointment.getCaregiverID());
+    }
+
+    public static String stats() {
+        return "appointment cache: ids[" + byId.stats() + "]"
+                + " patients[" + byPatient.stats() + "]"
+                + " caregivers[" + byCaregiver.stats() + "]";
+    }
+}
@@ -0,0 +1,209 @@
+package scheduler.model;
+
+import scheduler.db.ConnectionManager;
+import scheduler.db.Retry;
+import scheduler.db.ShardRouter;
+import scheduler.event.ChangeBus;
+import scheduler.event.ChangeEvent;
+import scheduler.util.Config;
+
+import java.sql.*;
+import java.sql.Date;
+import java.time.LocalDate;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Moves availabilities and appointments dated more than ArchiveHorizonDays ago out of the hot tables into
+ * ArchivedAvailabilities and ArchivedAppointments on the same database, so the hot tables stay sized to the
+ * live booking window. Expired leases and the DailyCapacity counts of those days are deleted, nothing can
+ * book them any more. Request results past their TTL (see RequestLog) are purged on the same schedule.
+ *
+ * Rows move in batches of ArchiveBatchSize with one DELETE ... OUTPUT INTO statement each, so every batch
+ * is atomic and holds its locks only for that statement, with a pause of ArchivePauseMillis between batches.
+ * The job runs in the background every ArchiveIntervalMillis (0 turns it off) and on demand with archive.
+ * Several scheduler processes may run it at once, each batch only moves rows that are still there.
+ *
+ * A row whose key is already archived, e.g. availability uploaded again for an archived day, is never
+ * moved, as the archive's primary key would fail the batch on every run. If the row is the archived one
+ * over again it is deleted, otherwise it stays in the hot table to be looked at.
+ */
+public class Archiver {
+
+    private static final int HORIZON_DAYS = Config.getInt("ArchiveHorizonDays", 30);
+    private static final int BATCH_SIZE = Math.max(Config.getInt("ArchiveBatchSize", 1000), 1);
+    private static final long PAUSE_MILLIS = Config.getLong("ArchivePauseMillis", 100);
+    private static final long INTERVAL_MILLIS = Config.getLong("ArchiveIntervalMillis", 3600000);
+
+    // table, archive, columns, key columns of the archive
+    private static final String[][] TABLES = {
+            {"Availabilities", "ArchivedAvailabilities", "Time, CaregiverID", "Time, CaregiverID"},
+            {"Appointments", "ArchivedAppointments", "AppointmentID, CaregiverID, PatientID, VaccineID, Time", "AppointmentID"}
+    };
+
+    private static ScheduledExecutorService executor = null;
+    private static long runs = 0;
+    private static long archived = 0;
+    private static long failures = 0;
+    private static Date lastCutoff = null;
+
+    // Start the background job, unless ArchiveIntervalMillis is 0
+    public static synchronized void start() {
+        if (executor != null || INTERVAL_MILLIS <= 0) {
+            return;
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "archiver");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(() -> {
+            try {
+                archive();
+            } catch (SQLException e) {
+                // already counted, the next run tries again
+            }
+        }, INTERVAL_MILLIS, INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    // Archive everything dated before the horizon, returns the number of rows moved
+    public static long archive() throws SQLException {
+        Date cutoff = Date.valueOf(LocalDate.now().minusDays(HORIZON_DAYS));
+        long moved = 0;
+        try {
+            for (int target : ShardRouter.targets()) {
+                for (String[] table : TABLES) {
+                    moved += archive(target, table[0], table[1], table[2], table[3], cutoff);
+                }
+                deleteExpiredLeases(target, cutoff);
+                DailyCapacity.removeBefore(target, cutoff);
+            }
+            RequestLog.purge();
+        } catch (SQLException e) {
+            synchronized (Archiver.class) {
+                failures++;
+                archived += moved;
+            }
+            throw e;
+        }
+        synchronized (Archiver.class) {
+            runs++;
+            archived += moved;
+            lastCutoff = cutoff;
+        }
+        return moved;
+    }
+
+    private static long archive(int target, String table, String archive, String columns, String key, Date cutoff)
+            throws SQLException {
+        String archived = "EXISTS (SELECT 1 FROM " + archive + " A WHERE " + matching("A.", table + ".", key) + ")";
+        if (key.equals(columns)
+                && removeBatches(target, "DELETE TOP (?) FROM " + table + " WHERE Time < ? AND " + archived, cutoff) > 0) {
+            ChangeBus.publish(ChangeEvent.archived(cutoff));
+        }
+        long moved = 0;
+        while (true) {
+            int batch = Retry.idempotent(() -> {
+                ConnectionManager cm = new ConnectionManager(target);
+                Connection con = cm.createConnection();
+
+                // a repeated batch after a lost reply just moves the next rows, so retrying is safe
+                String moveBatch = "DELETE TOP (?) FROM " + table
+                        + " OUTPUT " + prefixed("DELETED.", columns) + " INTO " + archive + " (" + columns + ")"
+                        + " WHERE Time < ? AND NOT " + archived;
+                try {
+                    PreparedStatement statement = con.prepareStatement(moveBatch);
+                    statement.setInt(1, BATCH_SIZE);
+                    statement.setDate(2, cutoff);
+                    return statement.executeUpdate();
+                } finally {
+                    cm.closeConnection();
+                }
+            });
+            moved += batch;
+            if (batch > 0) {
+                // cached appointment lists and indexed days may include the rows that just moved
+                ChangeBus.publish(ChangeEvent.archived(cutoff));
+            }
+            if (batch < BATCH_SIZE) {
+                return moved;
+            }
+            pause();
+        }
+    }
+
+    // Run a DELETE TOP (?) ... WHERE Time < ? until it deletes less than a batch, returns the rows deleted
+    private static long removeBatches(int target, String removeBatch, Date cutoff) throws SQLException {
+        long removed = 0;
+        while (true) {
+            int batch = Retry.idempotent(() -> {
+                ConnectionManager cm = new ConnectionManager(target);
+                Connection con = cm.createConnection();
+                try {
+                    PreparedStatement statement = con.prepareStatement(removeBatch);
+                    statement.setInt(1, BATCH_SIZE);
+                    statement.setDate(2, cutoff);
+                    return statement.executeUpdate();
+                } finally {
+                    cm.closeConnection();
+                }
+            });
+            removed += batch;
+            if (batch < BATCH_SIZE) {
+                return removed;
+            }
+            pause();
+        }
+    }
+
+    private static void deleteExpiredLeases(int target, Date cutoff) throws SQLException {
+        Retry.idempotent(() -> {
+            ConnectionManager cm = new ConnectionManager(target);
+            Connection con = cm.createConnection();
+
+            String deleteLeases = "DELETE FROM AvailabilityLeases WHERE Time < ? AND ExpiresAt < SYSUTCDATETIME()";
+            try {
+                PreparedStatement statement = con.prepareStatement(deleteLeases);
+                statement.setDate(1, cutoff);
+                return statement.executeUpdate();
+            } finally {
+                cm.closeConnection();
+            }
+        });
+    }
+
+    // e.g. "A.Time = T.Time AND A.CaregiverID = T.CaregiverID"
+    private static String matching(String left, String right, String columns) {
+        StringJoiner joined = new StringJoiner(" AND ");
+        for (String column : columns.split(",\\s*")) {
+            joined.add(left + column + " = " + right + column);
+        }
+        return joined.toString();
+    }
+
+    private static String prefixed(String prefix, String columns) {
+        StringJoiner joined = new StringJoiner(", ");
+        for (String column : columns.split(",\\s*")) {
+            joined.add(prefix + column);
+        }
+        return joined.toString();
+    }
+
+    private static void pause() {
+        if (PAUSE_MILLIS <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(PAUSE_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public static synchronized String stats() {
+        return "archiver: runs=" + runs + " archived=" + archived + " failures=" + failures
+                + " cutoff=" + (lastCutoff == null ? "none" : lastCutoff);
+    }
+}
@@ -0,0 +1,141 @@
+package scheduler.model;
+
+import scheduler.db.ConnectionManager;
+import scheduler.db.Retry;
+import scheduler.db.ShardRouter;
+import scheduler.event.ChangeBus;
+import scheduler.event.ChangeEvent;
+import scheduler.util.Config;
+import scheduler.util.RoaringBitmap;
+
+import java.sql.*;
+import java.sql.Date;
+import java.time.LocalDate;
+import java.util.*;
+
+/**
+ * In-memory index of caregiver availability: for every day, a compressed bitmap of the caregivers that are
+ * free on it, by caregiver ID. The IDs are dense, so a day with a few dozen free caregivers takes a few
+ * dozen bytes and years of days fit in a few megabytes.
+ *
+ * The index is loaded with one streamed scan per shard on first use and reloaded when it is older than
+ * AvailabilityIndexRefreshMillis, which picks up bookings made by other scheduler processes. Uploads,
+ * bookings and cancellations in this process reach it through the ChangeBus as soon as they commit. It only answers searches, reservations
+ * still check the database, so a stale entry can at worst show a day that turns out to be taken.
+ */
+public class AvailabilityIndex {
+
+    private static final long REFRESH_MILLIS = Config.getLong("AvailabilityIndexRefreshMillis", 60000);
+    private static final int FETCH_SIZE = 10000;
+
+    // epoch day -> ids of the caregivers available that day
+    private static TreeMap<Long, RoaringBitmap> days = null;
+    private static long loadedAt = 0;
+
+    static {
+        ChangeBus.subscribe(events -> {
+            for (ChangeEvent event : events) {
+                if (event.getType() == ChangeEvent.Type.AVAILABILITY_ADDED) {
+                    add(event.getDate(), event.getCaregiverUsername());
+                } else if (event.getType() == ChangeEvent.Type.AVAILABILITY_REMOVED) {
+                    remove(event.getDate(), event.getCaregiverUsername());
+                } else if (event.getType() == ChangeEvent.Type.ARCHIVED) {
+                    removeBefore(event.getDate());
+                }
+            }
+        });
+    }
+
+    // Number of available caregivers on every day between start and end (inclusive) that has at least one
+    public static synchronized SortedMap<LocalDate, Integer> countAvailable(LocalDate start, LocalDate end)
+            throws SQLException {
+        if (days == null || System.currentTimeMillis() - loadedAt > REFRESH_MILLIS) {
+            load();
+        }
+        SortedMap<LocalDate, Integer> counts = new TreeMap<>();
+        for (Map.Entry<Long, RoaringBitmap> day : days.subMap(start.toEpochDay(), true, end.toEpochDay(), true).entrySet()) {
+            counts.put(LocalDate.ofEpochDay(day.getKey()), day.getValue().cardinality());
+        }
+        return counts;
+    }
+
+    private static synchronized void add(Date d, String caregiverUsername) {
+        if (days == null) {
+            return;
+        }
+        int id = cachedID(caregiverUsername);
+        if (id != 0) {
+            days.computeIfAbsent(d.toLocalDate().toEpochDay(), day -> new RoaringBitmap()).add(id);
+        }
+    }
+
+    private static synchronized void remove(Date d, String caregiverUsername) {
+        if (days == null) {
+            return;
+        }
+        long day = d.toLocalDate().toEpochDay();
+        RoaringBitmap caregivers = days.get(day);
+        int id = cachedID(caregiverUsername);
+        if (caregivers != null && id != 0) {
+            caregivers.remove(id);
+            if (caregivers.isEmpty()) {
+                days.remove(day);
+            }
+        }
+    }
+
+    // The publisher of the event has just used the ID, so it is cached. If not, the index cannot apply the
+    // event without the database and is reloaded at its next use instead.
+    private static int cachedID(String caregiverUsername) {
+        int id = Dictionary.CAREGIVERS.cachedID(caregiverUsername);
+        if (id == 0) {
+            loadedAt = 0;
+        }
+        return id;
+    }
+
+    private static synchronized void removeBefore(Date cutoff) {
+        if (days == null) {
+            return;
+        }
+        days.headMap(cutoff.toLocalDate().toEpochDay()).clear();
+    }
+
+    private static void load() throws SQLException {
+        TreeMap<Long, RoaringBitmap> loaded = new TreeMap<>();
+        for (int target : ShardRouter.targets()) {
+            Retry.idempotent(() -> {
+                ConnectionManager cm = new ConnectionManager(target);
+                Connection con = cm.createConnection();
+
+                String getAvailabilities = "SELECT Time, CaregiverID FROM Availabilities";
+                try {
+                    PreparedStatement statement = con.prepareStatement(getAvailabilities,
+                            ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+                    statement.setFetchSize(FETCH_SIZE);
+                    ResultSet res = statement.executeQuery();
+                    while (res.next()) {
+                        long day = res.getDate(1).toLocalDate().toEpochDay();
+                        loaded.computeIfAbsent(day, d -> new RoaringBitmap()).add(res.getInt(2));
+                    }
+                } finally {
+                    cm.closeConnection();
+                }
+            });
+        }
+        days = loaded;
+        loadedAt = System.currentTimeMillis();
+    }
+
+    public static synchronized String stats() {
+        if (days == null) {
+            return "availability index: not loaded";
+        }
+        long bytes = 0;
+        for (RoaringBitmap caregivers : days.values()) {
+            bytes += caregivers.sizeInBytes();
+        }
+        return "availability index: days=" + days.size()
+                + " bitmapBytes=" + bytes;
+    }
+}
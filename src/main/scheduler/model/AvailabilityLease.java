@@ -0,0 +1,146 @@
+package scheduler.model;
+
+import scheduler.db.ConnectionManager;
+import scheduler.db.Retry;
+import scheduler.db.ShardRouter;
+import scheduler.event.ChangeBus;
+import scheduler.event.ChangeEvent;
+import scheduler.util.Config;
+
+import java.sql.*;
+import java.util.UUID;
+
+/**
+ * A short-lived claim on one caregiver's availability for one day, stored in the AvailabilityLeases table
+ * next to the Availabilities row it protects. Several Scheduler processes can book against the same
+ * database: each claims a lease before booking, and a lease that is still live cannot be claimed by anyone
+ * else. Every successful claim increases the row's fencing token, and the availability is only consumed
+ * when the lease still carries our owner and token, so a process whose lease expired mid-booking cannot
+ * double-book the caregiver.
+ */
+public class AvailabilityLease {
+
+    // identifies this process as the owner of its leases
+    private static final String OWNER = Config.getString("InstanceId", UUID.randomUUID().toString());
+    private static final int TTL_MILLIS = Config.getInt("LeaseTtlMillis", 10000);
+
+    private final Date date;
+    private final int caregiverID;
+    private final String caregiverUsername;
+    private final long token;
+
+    private AvailabilityLease(Date date, int caregiverID, String caregiverUsername, long token) {
+        this.date = date;
+        this.caregiverID = caregiverID;
+        this.caregiverUsername = caregiverUsername;
+        this.token = token;
+    }
+
+    // Getters
+    public Date getDate() {
+        return date;
+    }
+
+    public int getCaregiverID() {
+        return caregiverID;
+    }
+
+    public String getCaregiverUsername() {
+        return caregiverUsername;
+    }
+
+    public long getToken() {
+        return token;
+    }
+
+    // Claim the caregiver's day, returns null if another process holds a live lease on it
+    public static AvailabilityLease claim(Date d, String caregiverUsername) throws SQLException {
+        int caregiverID = Dictionary.CAREGIVERS.id(caregiverUsername);
+        return Retry.nonIdempotent(() -> {
+            ConnectionManager cm = new ConnectionManager(ShardRouter.shardFor(d));
+            Connection con = cm.createConnection();
+
+            // insert a new lease or take over an expired one, in one atomic statement
+            String claimLease = "MERGE AvailabilityLeases WITH (HOLDLOCK) AS L "
+                    + "USING (SELECT ? AS Time, ? AS CaregiverID) AS S "
+                    + "ON L.Time = S.Time AND L.CaregiverID = S.CaregiverID "
+                    + "WHEN MATCHED AND L.ExpiresAt < SYSUTCDATETIME() THEN "
+                    + "UPDATE SET Owner = ?, Token = L.Token + 1, ExpiresAt = DATEADD(millisecond, ?, SYSUTCDATETIME()) "
+                    + "WHEN NOT MATCHED THEN "
+                    + "INSERT (Time, CaregiverID, Owner, Token, ExpiresAt) "
+                    + "VALUES (S.Time, S.CaregiverID, ?, 1, DATEADD(millisecond, ?, SYSUTCDATETIME())) "
+                    + "OUTPUT INSERTED.Token;";
+            try {
+                PreparedStatement statement = con.prepareStatement(claimLease);
+                statement.setDate(1, d);
+                statement.setInt(2, caregiverID);
+                statement.setString(3, OWNER);
+                statement.setInt(4, TTL_MILLIS);
+                statement.setString(5, OWNER);
+                statement.setInt(6, TTL_MILLIS);
+                ResultSet res = statement.executeQuery();
+                if (res.next()) {
+                    return new AvailabilityLease(d, caregiverID, caregiverUsername, res.getLong(1));
+                }
+                return null;
+            } finally {
+                cm.closeConnection();
+            }
+        });
+    }
+
+    // Remove the availability this lease protects, returns false if the lease was lost or the day is gone
+    public boolean consume() throws SQLException {
+        // the availability and the date's capacity change together
+        boolean consumed = Retry.transaction(() -> {
+            ConnectionManager cm = new ConnectionManager(ShardRouter.shardFor(this.date));
+            Connection con = cm.createConnection();
+
+            String removeAvailability = "DELETE FROM Availabilities WHERE Time = ? AND CaregiverID = ? "
+                    + "AND EXISTS (SELECT 1 FROM AvailabilityLeases WHERE Time = ? AND CaregiverID = ? "
+                    + "AND Owner = ? AND Token = ? AND ExpiresAt >= SYSUTCDATETIME())";
+            try {
+                PreparedStatement statement = con.prepareStatement(removeAvailability);
+                statement.setDate(1, this.date);
+                statement.setInt(2, this.caregiverID);
+                statement.setDate(3, this.date);
+                statement.setInt(4, this.caregiverID);
+                statement.setString(5, OWNER);
+                statement.setLong(6, this.token);
+                if (statement.executeUpdate() == 0) {
+                    return false;
+                }
+                DailyCapacity.adjust(con, this.date, -1);
+                return true;
+            } finally {
+                cm.closeConnection();
+            }
+        });
+        if (consumed) {
+            ChangeBus.publish(ChangeEvent.availabilityRemoved(this.date, this.caregiverUsername));
+        }
+        return consumed;
+    }
+
+    // Give up the lease early, a lease that was already taken over is left alone. The row is expired rather
+    // than deleted so the next claim continues the token sequence.
+    public void release() throws SQLException {
+        Retry.idempotent(() -> {
+            ConnectionManager cm = new ConnectionManager(ShardRouter.shardFor(this.date));
+            Connection con = cm.createConnection();
+
+            String expireLease = "UPDATE AvailabilityLeases SET ExpiresAt = DATEADD(millisecond, -1, SYSUTCDATETIME()) "
+                    + "WHERE Time = ? AND CaregiverID = ? AND Owner = ? AND Token = ?";
+            try {
+                PreparedStatement statement = con.prepareStatement(expireLease);
+                statement.setDate(1, this.date);
+                statement.setInt(2, this.caregiverID);
+                statement.setString(3, OWNER);
+                statement.setLong(4, this.token);
+                statement.executeUpdate();
+            } finally {
+                cm.closeConnection();
+            }
+        });
+    }
+}
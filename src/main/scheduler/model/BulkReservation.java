@@ -0,0 +1,212 @@
+package scheduler.model;
+
+import scheduler.db.ConnectionManager;
+import scheduler.db.Retry;
+import scheduler.db.ShardRouter;
+import scheduler.event.ChangeBus;
+import scheduler.event.ChangeEvent;
+
+import java.sql.*;
+import java.sql.Date;
+import java.util.*;
+
+/**
+ * Books many patients for one date and vaccine, e.g. for a pop-up clinic, in a fixed number of statements
+ * however many patients there are: the patients are checked with one query, the dose row is locked and read
+ * once, the free caregivers are claimed with a single DELETE ... OUTPUT, the doses are decremented once by
+ * the number of matches, the IDs are allocated as one range and the appointments inserted in one batch.
+ *
+ * When there are fewer caregivers or doses than patients the booking is partial: patients are matched in
+ * the order given and the rest are reported with the reason they were not booked.
+ */
+public class BulkReservation {
+
+    // SQL Server accepts at most 2100 parameters per statement
+    private static final int IN_LIST_SIZE = 1000;
+
+    private final Date date;
+    private final String vaccineName;
+    private final List<String> patients;
+
+    private final List<Appointment> booked = new ArrayList<>();
+    private final Map<String, String> notBooked = new LinkedHashMap<>();
+
+    public BulkReservation(Date date, String vaccineName, List<String> patients) {
+        this.date = date;
+        this.vaccineName = vaccineName;
+        // a patient listed twice is booked once
+        this.patients = new ArrayList<>(new LinkedHashSet<>(patients));
+    }
+
+    // Getters
+    public List<Appointment> getBooked() {
+        return booked;
+    }
+
+    // patient -> reason, in the order the patients were given
+    public Map<String, String> getNotBooked() {
+        return notBooked;
+    }
+
+    public void run() throws SQLException {
+        Map<String, Integer> known = existingPatients();
+        // the same patient may be listed under spellings that differ in case
+        List<Integer> patientIDs = new ArrayList<>(new LinkedHashSet<>(known.values()));
+        int vaccineID = Dictionary.VACCINES.id(vaccineName);
+
+        // one transaction, retried as a unit, so a partial failure books nobody
+        List<Appointment> appointments = Retry.transaction(() -> {
+            int doses = lockDoses() - Hold.heldDoses(vaccineName);
+            List<Integer> caregivers = claimCaregivers(date, Math.max(Math.min(patientIDs.size(), doses), 0));
+            int[] ids = Appointment.allocateIDs(date, caregivers.size());
+            List<Appointment.AppointmentBuilder> builders = new ArrayList<>();
+            for (int i = 0; i < caregivers.size(); i++) {
+                builders.add(new Appointment.AppointmentBuilder(ids[i], caregivers.get(i),
+                        patientIDs.get(i), vaccineID, date));
+            }
+            List<Appointment> matched = Appointment.buildAll(builders);
+            Appointment.saveAllToDB(matched);
+            decreaseDoses(matched.size());
+            return matched;
+        });
+        booked.addAll(appointments);
+        Set<Integer> bookedPatients = new HashSet<>();
+        for (Appointment appointment : appointments) {
+            bookedPatients.add(appointment.getPatientID());
+        }
+
+        for (String patient : patients) {
+            Integer patientID = known.get(patient);
+            if (patientID == null) {
+                notBooked.put(patient, "not a patient");
+            } else if (!bookedPatients.contains(patientID)) {
+                notBooked.put(patient, "no caregiver or dose left");
+            }
+        }
+    }
+
+    // The given patients that have an account with their IDs, in the order they were given
+    private Map<String, Integer> existingPatients() throws SQLException {
+        // usernames compare without case in the database, the spelling given may differ from the stored one
+        Map<String, Integer> found = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        List<String> candidates = new ArrayList<>();
+        for (String patient : patients) {
+            // a miss in the filter means the account does not exist
+            if (UsernameFilter.PATIENTS.mightExist(patient)) {
+                candidates.add(patient);
+            }
+        }
+        for (int from = 0; from < candidates.size(); from += IN_LIST_SIZE) {
+            List<String> chunk = candidates.subList(from, Math.min(from + IN_LIST_SIZE, candidates.size()));
+            Retry.idempotent(() -> {
+                ConnectionManager cm = new ConnectionManager();
+                Connection con = cm.createConnection();
+
+                String getPatients = "SELECT PatientID, Username FROM Patients WHERE Username IN ("
+                        + String.join(", ", Collections.nCopies(chunk.size(), "?")) + ")";
+                try {
+                    PreparedStatement statement = con.prepareStatement(getPatients);
+                    for (int i = 0; i < chunk.size(); i++) {
+                        statement.setString(i + 1, chunk.get(i));
+                    }
+                    ResultSet res = statement.executeQuery();
+                    while (res.next()) {
+                        // the IDs are needed for the appointments, keep them in the dictionary
+                        Dictionary.PATIENTS.put(res.getInt(1), res.getString(2));
+                        found.put(res.getString(2), res.getInt(1));
+                    }
+                } finally {
+                    cm.closeConnection();
+                }
+            });
+        }
+        Map<String, Integer> known = new LinkedHashMap<>();
+        for (String patient : candidates) {
+            Integer patientID = found.get(patient);
+            if (patientID != null) {
+                known.put(patient, patientID);
+            }
+        }
+        return known;
+    }
+
+    // Read the remaining doses and keep the row locked until the transaction ends
+    private int lockDoses() throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+
+        String getDoses = "SELECT Doses FROM Vaccines WITH (UPDLOCK) WHERE Name = ?";
+        try {
+            PreparedStatement statement = con.prepareStatement(getDoses);
+            statement.setString(1, vaccineName);
+            ResultSet res = statement.executeQuery();
+            return res.next() ? res.getInt(1) : 0;
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    // Remove up to count free caregivers for the date and return their IDs. Caregivers leased by a booking in
+    // another process or held in this one are left alone, rows locked by other transactions are skipped.
+    static List<Integer> claimCaregivers(Date date, int count) throws SQLException {
+        List<Integer> caregivers = new ArrayList<>();
+        if (count == 0) {
+            return caregivers;
+        }
+        List<Integer> held = new ArrayList<>();
+        for (String caregiver : Hold.heldCaregivers(date)) {
+            held.add(Dictionary.CAREGIVERS.id(caregiver));
+        }
+        ConnectionManager cm = new ConnectionManager(ShardRouter.shardFor(date));
+        Connection con = cm.createConnection();
+
+        String claim = "DELETE TOP (?) FROM Availabilities WITH (READPAST) OUTPUT DELETED.CaregiverID "
+                + "WHERE Time = ? AND NOT EXISTS (SELECT 1 FROM AvailabilityLeases L "
+                + "WHERE L.Time = Availabilities.Time AND L.CaregiverID = Availabilities.CaregiverID "
+                + "AND L.ExpiresAt >= SYSUTCDATETIME())"
+                + (held.isEmpty() ? "" : " AND CaregiverID NOT IN (" + String.join(", ", Collections.nCopies(held.size(), "?")) + ")");
+        try {
+            PreparedStatement statement = con.prepareStatement(claim);
+            statement.setInt(1, count);
+            statement.setDate(2, date);
+            for (int i = 0; i < held.size(); i++) {
+                statement.setInt(i + 3, held.get(i));
+            }
+            ResultSet res = statement.executeQuery();
+            while (res.next()) {
+                caregivers.add(res.getInt(1));
+            }
+            Collections.sort(caregivers);
+            DailyCapacity.adjust(con, date, -caregivers.size());
+        } finally {
+            cm.closeConnection();
+        }
+        Dictionary.CAREGIVERS.resolve(caregivers);
+        for (int caregiver : caregivers) {
+            ChangeBus.publish(ChangeEvent.availabilityRemoved(date, Dictionary.CAREGIVERS.name(caregiver)));
+        }
+        return caregivers;
+    }
+
+    private void decreaseDoses(int count) throws SQLException {
+        if (count == 0) {
+            return;
+        }
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+
+        String removeDoses = "UPDATE Vaccines SET Doses = Doses - ? WHERE Name = ? AND Doses >= ?";
+        try {
+            PreparedStatement statement = con.prepareStatement(removeDoses);
+            statement.setInt(1, count);
+            statement.setString(2, vaccineName);
+            statement.setInt(3, count);
+            if (statement.executeUpdate() == 0) {
+                throw new IllegalArgumentException("Not enough available doses!");
+            }
+        } finally {
+            cm.closeConnection();
+        }
+        ChangeBus.publish(ChangeEvent.dosesChanged(vaccineName, -count));
+    }
+}
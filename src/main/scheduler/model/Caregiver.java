@@ -1,8 +1,15 @@
 package scheduler.model;
 
 import scheduler.db.ConnectionManager;
+import scheduler.db.Cursor;
+import scheduler.db.Retry;
+import scheduler.db.ShardRouter;
+import scheduler.event.ChangeBus;
+import scheduler.event.ChangeEvent;
+import scheduler.util.HashParams;
 import scheduler.util.Util;
 
+import java.security.MessageDigest;
 import java.sql.*;
 import java.sql.Date;
 import java.util.*;
@@ -11,17 +18,20 @@ public class Caregiver {
     private final String username;
     private final byte[] salt;
     private final byte[] hash;
+    private final HashParams hashParams;
 
     private Caregiver(CaregiverBuilder builder) {
         this.username = builder.username;
         this.salt = builder.salt;
         this.hash = builder.hash;
+        this.hashParams = builder.hashParams;
     }
 
     private Caregiver(CaregiverGetter getter) {
         this.username = getter.username;
         this.salt = getter.salt;
         this.hash = getter.hash;
+        this.hashParams = getter.hashParams;
     }
 
     // Getters
@@ -37,44 +47,58 @@ public class Caregiver {
         return hash;
     }
 
+    public HashParams getHashParams() {
+        return hashParams;
+    }
+
     public void saveToDB() throws SQLException {
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
-
-        String addCaregiver = "INSERT INTO caregivers VALUES (? , ?, ?)";
-        try {
-            PreparedStatement statement = con.prepareStatement(addCaregiver);
-            statement.setString(1, this.username);
-            statement.setBytes(2, this.salt);
-            statement.setBytes(3, this.hash);
-            statement.executeUpdate();
-        } catch (SQLException e) {
-            throw new SQLException();
-        } finally {
-            cm.closeConnection();
-        }
+        Retry.nonIdempotent(() -> {
+            ConnectionManager cm = new ConnectionManager();
+            Connection con = cm.createConnection();
+
+            String addCaregiver = "INSERT INTO caregivers (Username, Salt, Hash, HashParams) OUTPUT INSERTED.CaregiverID VALUES (? , ?, ?, ?)";
+            try {
+                PreparedStatement statement = con.prepareStatement(addCaregiver);
+                statement.setString(1, this.username);
+                statement.setBytes(2, this.salt);
+                statement.setBytes(3, this.hash);
+                statement.setString(4, this.hashParams.encode());
+                ResultSet res = statement.executeQuery();
+                res.next();
+                Dictionary.CAREGIVERS.put(res.getInt(1), this.username);
+                UsernameFilter.CAREGIVERS.add(this.username);
+            } finally {
+                cm.closeConnection();
+            }
+        });
     }
 
     public void uploadAvailability(Date d) throws SQLException {
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
-
-        String addAvailability = "INSERT INTO Availabilities VALUES (? , ?)";
-        try {
-            PreparedStatement statement = con.prepareStatement(addAvailability);
-            statement.setDate(1, d);
-            statement.setString(2, this.username);
-            statement.executeUpdate();
-        } catch (SQLException e) {
-            throw new SQLException();
-        } finally {
-            cm.closeConnection();
-        }
+        int caregiverID = Dictionary.CAREGIVERS.id(this.username);
+        // the availability and the date's capacity change together
+        Retry.transaction(() -> {
+            ConnectionManager cm = new ConnectionManager(ShardRouter.shardFor(d));
+            Connection con = cm.createConnection();
+
+            String addAvailability = "INSERT INTO Availabilities (Time, CaregiverID) VALUES (? , ?)";
+            try {
+                PreparedStatement statement = con.prepareStatement(addAvailability);
+                statement.setDate(1, d);
+                statement.setInt(2, caregiverID);
+                statement.executeUpdate();
+                DailyCapacity.adjust(con, d, 1);
+                return null;
+            } finally {
+                cm.closeConnection();
+            }
+        });
+        ChangeBus.publish(ChangeEvent.availabilityAdded(d, this.username));
     }
 
     public void getAvailability(Date d) throws SQLException {
 
-        List<String> caregivers = getAvailableCaregivers(d);
+        // a date without free caregivers is known from its summary row
+        List<String> caregivers = DailyCapacity.freeCaregivers(d) == 0 ? new ArrayList<>() : getAvailableCaregivers(d);
         System.out.println("Below are available caregivers for " + d + ":");
         for (String caregiver : caregivers) {
             System.out.println(caregiver);
@@ -82,88 +106,63 @@ public class Caregiver {
 
         System.out.println();
         System.out.println("Below are available doses for " + d + ":");
-        Map<String, Integer> doses = getAvailableDoses();
-        for (String k : doses.keySet()) {
-            System.out.println(k + ": " + doses.get(k));
-        }
-    }
-
-    public List<String> getAvailableCaregivers(Date d) throws SQLException {
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
-
-        String getAvailability = "SELECT A.username FROM Availabilities A WHERE A.time = ? ORDER BY A.username";
-
-        try {
-            PreparedStatement statement = con.prepareStatement(getAvailability);
-            statement.setDate(1, d);
-            ResultSet res = statement.executeQuery();
-            List<String> availableCaregivers = new ArrayList<>();
-            while (res.next()) {
-                availableCaregivers.add(res.getString("username"));
+        try (Cursor<Vaccine> vaccines = Vaccine.openAll()) {
+            while (vaccines.hasNext()) {
+                Vaccine vaccine = vaccines.next();
+                System.out.println(vaccine.getVaccineName() + ": " + vaccine.getAvailableDoses());
             }
-            return availableCaregivers;
-        } catch (SQLException e) {
-            throw new SQLException();
-        } finally {
-            cm.closeConnection();
+        } catch (Cursor.CursorException e) {
+            throw e.getCause();
         }
     }
 
-    public Map<String, Integer> getAvailableDoses() throws SQLException {
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
+    public List<String> getAvailableCaregivers(Date d) throws SQLException {
+        List<Integer> caregiverIDs = Retry.idempotent(() -> {
+            ConnectionManager cm = new ConnectionManager(ShardRouter.shardFor(d));
+            Connection con = cm.createConnection();
 
-        String getDoses = "SELECT * FROM Vaccines";
+            String getAvailability = "SELECT A.CaregiverID FROM Availabilities A WHERE A.time = ?";
 
-        try {
-            PreparedStatement statement = con.prepareStatement(getDoses);
-            ResultSet res = statement.executeQuery();
-            Map<String, Integer> availableDoses = new HashMap<>();
-            while (res.next()) {
-                String name = res.getString("name");
-                int doses = Integer.parseInt(res.getString("doses"));
-                availableDoses.put(name, doses);
+            try {
+                PreparedStatement statement = con.prepareStatement(getAvailability);
+                statement.setDate(1, d);
+                ResultSet res = statement.executeQuery();
+                List<Integer> availableCaregivers = new ArrayList<>();
+                while (res.next()) {
+                    availableCaregivers.add(res.getInt("CaregiverID"));
+                }
+                return availableCaregivers;
+            } finally {
+                cm.closeConnection();
             }
-            return availableDoses;
-        } catch (SQLException e) {
-            throw new SQLException();
-        } finally {
-            cm.closeConnection();
+        });
+        // IDs follow sign-up order, the list is still shown by name
+        Dictionary.CAREGIVERS.resolve(caregiverIDs);
+        List<String> availableCaregivers = new ArrayList<>(caregiverIDs.size());
+        for (int caregiverID : caregiverIDs) {
+            availableCaregivers.add(Dictionary.CAREGIVERS.name(caregiverID));
         }
+        availableCaregivers.sort(String.CASE_INSENSITIVE_ORDER);
+        return availableCaregivers;
     }
 
-    public void getCurrentAppointments() throws SQLException {
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
-
-        String getCurrentAppointments = "SELECT * FROM Appointments WHERE Caregiver = ? ORDER BY AppointmentID";
-        try {
-            PreparedStatement statement = con.prepareStatement(getCurrentAppointments);
-            statement.setString(1, this.username);
-            ResultSet res = statement.executeQuery();
-            while (res.next()) {
-                System.out.println(res.getString("AppointmentID") + " "
-                        + res.getString("Vaccine") + " "
-                        + res.getString("Time") + " "
-                        + res.getString("Patient"));
-            }
-        } catch (SQLException e) {
-            throw new SQLException();
-        } finally {
-            cm.closeConnection();
-        }
+    // One page of the appointments after afterID, up to limit + 1 to tell whether there is another page.
+    // With includeArchived, the appointments moved to the archive are listed too, they are never cached
+    public List<Appointment> getAppointments(boolean includeArchived, int afterID, int limit) throws SQLException {
+        return Appointment.getPage("CaregiverID", this.username, includeArchived, afterID, limit);
     }
 
     public static class CaregiverBuilder {
         private final String username;
         private final byte[] salt;
         private final byte[] hash;
+        private final HashParams hashParams;
 
-        public CaregiverBuilder(String username, byte[] salt, byte[] hash) {
+        public CaregiverBuilder(String username, byte[] salt, byte[] hash, HashParams hashParams) {
             this.username = username;
             this.salt = salt;
             this.hash = hash;
+            this.hashParams = hashParams;
         }
 
         public Caregiver build() {
@@ -176,6 +175,7 @@ public class Caregiver {
         private final String password;
         private byte[] salt;
         private byte[] hash;
+        private HashParams hashParams;
 
         public CaregiverGetter(String username, String password) {
             this.username = username;
@@ -183,35 +183,75 @@ public class Caregiver {
         }
 
         public Caregiver get() throws SQLException {
-            ConnectionManager cm = new ConnectionManager();
-            Connection con = cm.createConnection();
+            Caregiver caregiver = Retry.idempotent(() -> {
+                ConnectionManager cm = new ConnectionManager();
+                Connection con = cm.createConnection();
 
-            String getCaregiver = "SELECT Salt, Hash FROM Caregivers WHERE Username = ?";
+                String getCaregiver = "SELECT CaregiverID, Username, Salt, Hash, HashParams FROM Caregivers WHERE Username = ?";
+                try {
+                    PreparedStatement statement = con.prepareStatement(getCaregiver);
+                    statement.setString(1, this.username);
+                    ResultSet resultSet = statement.executeQuery();
+                    while (resultSet.next()) {
+                        byte[] salt = resultSet.getBytes("Salt");
+                        byte[] hash = resultSet.getBytes("Hash");
+                        HashParams params = HashParams.parse(resultSet.getString("HashParams"));
+                        // check if the password matches, with the parameters the hash was stored with
+                        byte[] calculatedHash = Util.generateHash(password, salt, params);
+                        // legacy hashes are zero-padded by their BINARY(16) column, so compare them trimmed
+                        if (!MessageDigest.isEqual(Util.trim(hash), Util.trim(calculatedHash))) {
+                            return null;
+                        } else {
+                            this.salt = salt;
+                            this.hash = hash;
+                            this.hashParams = params;
+                            Dictionary.CAREGIVERS.put(resultSet.getInt("CaregiverID"), resultSet.getString("Username"));
+                            return new Caregiver(this);
+                        }
+                    }
+                    return null;
+                } finally {
+                    cm.closeConnection();
+                }
+            });
+            if (caregiver != null && caregiver.hashParams.isOutdated()) {
+                caregiver = rehash(caregiver);
+            }
+            return caregiver;
+        }
+
+        // Store a new hash of the password with the current parameters, we only know the password at login
+        private Caregiver rehash(Caregiver caregiver) {
+            byte[] newSalt = Util.generateSalt();
+            HashParams newParams = HashParams.current();
+            byte[] newHash = Util.generateHash(password, newSalt, newParams);
             try {
-                PreparedStatement statement = con.prepareStatement(getCaregiver);
-                statement.setString(1, this.username);
-                ResultSet resultSet = statement.executeQuery();
-                while (resultSet.next()) {
-                    byte[] salt = resultSet.getBytes("Salt");
-                    // we need to call Util.trim() to get rid of the paddings,
-                    // try to remove the use of Util.trim() and you'll see :)
-                    byte[] hash = Util.trim(resultSet.getBytes("Hash"));
-                    // check if the password matches
-                    byte[] calculatedHash = Util.generateHash(password, salt);
-                    if (!Arrays.equals(hash, calculatedHash)) {
-                        return null;
-                    } else {
-                        this.salt = salt;
-                        this.hash = hash;
-                        return new Caregiver(this);
+                boolean updated = Retry.idempotent(() -> {
+                    ConnectionManager cm = new ConnectionManager();
+                    Connection con = cm.createConnection();
+
+                    // only replace the hash we verified, a password changed meanwhile wins
+                    String updateHash = "UPDATE Caregivers SET Salt = ?, Hash = ?, HashParams = ? WHERE Username = ? AND Hash = ?";
+                    try {
+                        PreparedStatement statement = con.prepareStatement(updateHash);
+                        statement.setBytes(1, newSalt);
+                        statement.setBytes(2, newHash);
+                        statement.setString(3, newParams.encode());
+                        statement.setString(4, this.username);
+                        statement.setBytes(5, caregiver.hash);
+                        return statement.executeUpdate() == 1;
+                    } finally {
+                        cm.closeConnection();
                     }
+                });
+                if (updated) {
+                    return new CaregiverBuilder(this.username, newSalt, newHash, newParams).build();
                 }
-                return null;
             } catch (SQLException e) {
-                throw new SQLException();
-            } finally {
-                cm.closeConnection();
+                // the old hash still works, try again at the next login
+                System.out.println("Could not upgrade the stored password hash");
             }
+            return caregiver;
         }
     }
 }
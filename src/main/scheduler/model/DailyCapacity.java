@@ -0,0 +1,87 @@
+package scheduler.model;
+
+import scheduler.db.ConnectionManager;
+import scheduler.db.Retry;
+import scheduler.db.ShardRouter;
+
+import java.sql.*;
+
+/**
+ * Number of free caregivers per date, kept in the DailyCapacity table next to the Availabilities rows it
+ * counts. Every statement that adds or removes availability adjusts the count in the same transaction, so
+ * checking whether a date can be booked reads one row instead of scanning the date's availabilities.
+ * Remaining doses need no summary, they already are one Vaccines row per vaccine.
+ *
+ * The count only says whether trying is worthwhile. Bookings still lease and delete the Availabilities row,
+ * which stays the source of truth. A date without a row counts as full, so a database created before the
+ * table existed needs migrate_daily_capacity.sql to fill it.
+ */
+public class DailyCapacity {
+
+    // Add delta free caregivers on the date, on the connection, and so in the transaction, of the change. Every
+    // change to a date's availability comes through here, so this is also where it checks the shard still owns
+    // the date.
+    public static void adjust(Connection con, Date d, int delta) throws SQLException {
+        ShardRouter.checkOwner(con, d);
+        if (delta == 0) {
+            return;
+        }
+        String adjustCapacity = "MERGE DailyCapacity WITH (HOLDLOCK) AS C "
+                + "USING (SELECT ? AS Time) AS S ON C.Time = S.Time "
+                + "WHEN MATCHED THEN UPDATE SET FreeCaregivers = C.FreeCaregivers + ? "
+                + "WHEN NOT MATCHED THEN INSERT (Time, FreeCaregivers) VALUES (S.Time, ?);";
+        PreparedStatement statement = con.prepareStatement(adjustCapacity);
+        statement.setDate(1, d);
+        statement.setInt(2, delta);
+        statement.setInt(3, delta);
+        statement.executeUpdate();
+    }
+
+    // Set the date's count to its Availabilities rows as they are now, on the connection of the caller's transaction
+    static void recount(Connection con, Date d) throws SQLException {
+        String recountCapacity = "MERGE DailyCapacity WITH (HOLDLOCK) AS C "
+                + "USING (SELECT ? AS Time, COUNT(*) AS Free FROM Availabilities WITH (HOLDLOCK) WHERE Time = ?) AS S "
+                + "ON C.Time = S.Time "
+                + "WHEN MATCHED THEN UPDATE SET FreeCaregivers = S.Free "
+                + "WHEN NOT MATCHED THEN INSERT (Time, FreeCaregivers) VALUES (S.Time, S.Free);";
+        PreparedStatement statement = con.prepareStatement(recountCapacity);
+        statement.setDate(1, d);
+        statement.setDate(2, d);
+        statement.executeUpdate();
+    }
+
+    // Free caregivers on the date, 0 if nobody ever uploaded availability for it
+    public static int freeCaregivers(Date d) throws SQLException {
+        return Retry.idempotent(() -> {
+            ConnectionManager cm = new ConnectionManager(ShardRouter.shardFor(d));
+            Connection con = cm.createConnection();
+
+            String getCapacity = "SELECT FreeCaregivers FROM DailyCapacity WHERE Time = ?";
+            try {
+                PreparedStatement statement = con.prepareStatement(getCapacity);
+                statement.setDate(1, d);
+                ResultSet res = statement.executeQuery();
+                return res.next() ? Math.max(res.getInt(1), 0) : 0;
+            } finally {
+                cm.closeConnection();
+            }
+        });
+    }
+
+    // Drop the counts of dates whose availabilities were archived
+    static void removeBefore(int target, Date cutoff) throws SQLException {
+        Retry.idempotent(() -> {
+            ConnectionManager cm = new ConnectionManager(target);
+            Connection con = cm.createConnection();
+
+            String removeCapacity = "DELETE FROM DailyCapacity WHERE Time < ?";
+            try {
+                PreparedStatement statement = con.prepareStatement(removeCapacity);
+                statement.setDate(1, cutoff);
+                statement.executeUpdate();
+            } finally {
+                cm.closeConnection();
+            }
+        });
+    }
+}
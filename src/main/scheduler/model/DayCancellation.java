@@ -0,0 +1,202 @@
+package scheduler.model;
+
+import scheduler.db.ConnectionManager;
+import scheduler.db.Retry;
+import scheduler.db.ShardRouter;
+import scheduler.event.ChangeBus;
+import scheduler.event.ChangeEvent;
+
+import java.sql.*;
+import java.sql.Date;
+import java.util.*;
+
+/**
+ * Clears a caregiver's day, e.g. when they call in sick, in one transaction and a fixed number of
+ * statements however many appointments there are: the caregiver's availability is removed, the day's
+ * appointments are locked and read once, replacements are claimed from the caregivers still free that day
+ * with a single DELETE ... OUTPUT (see BulkReservation), the matched appointments are moved to them with one
+ * joined UPDATE, and the rest are cancelled with one INSERT ... SELECT and one DELETE, their doses restored
+ * with one UPDATE.
+ *
+ * Appointments are matched in ID order, i.e. the earliest bookings keep their slot when there are fewer
+ * free caregivers than appointments.
+ */
+public class DayCancellation {
+
+    // two parameters per row, SQL Server accepts at most 2100 per statement
+    private static final int VALUES_SIZE = 1000;
+
+    private final Date date;
+    private final String caregiverUsername;
+
+    private final List<Appointment> reassigned = new ArrayList<>();
+    private final List<Appointment> cancelled = new ArrayList<>();
+
+    public DayCancellation(Date date, String caregiverUsername) {
+        this.date = date;
+        this.caregiverUsername = caregiverUsername;
+    }
+
+    // Getters
+    // the moved appointments, with their new caregiver
+    public List<Appointment> getReassigned() {
+        return reassigned;
+    }
+
+    public List<Appointment> getCancelled() {
+        return cancelled;
+    }
+
+    public void run() throws SQLException {
+        int caregiverID = Dictionary.CAREGIVERS.id(caregiverUsername);
+
+        // one transaction, retried as a unit, so a failure leaves the whole day as it was
+        Retry.transaction(() -> {
+            reassigned.clear();
+            cancelled.clear();
+            // AppointmentID, PatientID, VaccineID
+            List<int[]> affected = clearDay(caregiverID);
+            // the caregiver's own availability is gone, so they cannot be claimed as their own replacement
+            List<Integer> replacements = BulkReservation.claimCaregivers(date, affected.size());
+
+            List<Appointment.AppointmentBuilder> previous = new ArrayList<>();
+            List<Appointment.AppointmentBuilder> moved = new ArrayList<>();
+            List<Appointment.AppointmentBuilder> rest = new ArrayList<>();
+            for (int i = 0; i < affected.size(); i++) {
+                int[] row = affected.get(i);
+                Appointment.AppointmentBuilder booked = new Appointment.AppointmentBuilder(row[0], caregiverID, row[1], row[2], date);
+                if (i < replacements.size()) {
+                    previous.add(booked);
+                    moved.add(new Appointment.AppointmentBuilder(row[0], replacements.get(i), row[1], row[2], date));
+                } else {
+                    rest.add(booked);
+                }
+            }
+            reassign(caregiverID, affected, replacements);
+            List<Appointment> before = Appointment.buildAll(previous);
+            reassigned.addAll(Appointment.buildAll(moved));
+            cancelled.addAll(Appointment.buildAll(rest));
+            cancelRest(caregiverID);
+
+            for (int i = 0; i < before.size(); i++) {
+                ChangeBus.publish(ChangeEvent.appointmentRemoved(before.get(i)));
+                ChangeBus.publish(ChangeEvent.appointmentCreated(reassigned.get(i)));
+            }
+            for (Appointment appointment : cancelled) {
+                ChangeBus.publish(ChangeEvent.appointmentRemoved(appointment));
+            }
+            return null;
+        });
+    }
+
+    // Remove the caregiver's availability and lock and return their appointments of the day, in ID order
+    private List<int[]> clearDay(int caregiverID) throws SQLException {
+        ConnectionManager cm = new ConnectionManager(ShardRouter.shardFor(date));
+        Connection con = cm.createConnection();
+
+        String removeAvailability = "DELETE FROM Availabilities WHERE Time = ? AND CaregiverID = ?";
+        String getAppointments = "SELECT AppointmentID, PatientID, VaccineID FROM Appointments WITH (UPDLOCK) "
+                + "WHERE Time = ? AND CaregiverID = ? ORDER BY AppointmentID";
+        try {
+            PreparedStatement statement = con.prepareStatement(removeAvailability);
+            statement.setDate(1, date);
+            statement.setInt(2, caregiverID);
+            int removed = statement.executeUpdate();
+            DailyCapacity.adjust(con, date, -removed);
+            if (removed > 0) {
+                ChangeBus.publish(ChangeEvent.availabilityRemoved(date, caregiverUsername));
+            }
+
+            statement = con.prepareStatement(getAppointments);
+            statement.setDate(1, date);
+            statement.setInt(2, caregiverID);
+            ResultSet res = statement.executeQuery();
+            List<int[]> appointments = new ArrayList<>();
+            while (res.next()) {
+                appointments.add(new int[]{res.getInt(1), res.getInt(2), res.getInt(3)});
+            }
+            return appointments;
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    // Move the first appointments to the replacements, in order, with one UPDATE joined to the
+    // (AppointmentID, CaregiverID) pairs. Only rows still booked with the caregiver on the date are moved.
+    private void reassign(int caregiverID, List<int[]> appointments, List<Integer> replacements) throws SQLException {
+        if (replacements.isEmpty()) {
+            return;
+        }
+        ConnectionManager cm = new ConnectionManager(ShardRouter.shardFor(date));
+        Connection con = cm.createConnection();
+        try {
+            for (int from = 0; from < replacements.size(); from += VALUES_SIZE) {
+                int to = Math.min(from + VALUES_SIZE, replacements.size());
+                String moveAppointments = "UPDATE A SET CaregiverID = M.CaregiverID FROM Appointments A "
+                        + "JOIN (VALUES " + String.join(", ", Collections.nCopies(to - from, "(?, ?)"))
+                        + ") AS M (AppointmentID, CaregiverID) ON A.AppointmentID = M.AppointmentID "
+                        + "WHERE A.Time = ? AND A.CaregiverID = ?";
+                PreparedStatement statement = con.prepareStatement(moveAppointments);
+                for (int i = from; i < to; i++) {
+                    statement.setInt(2 * (i - from) + 1, appointments.get(i)[0]);
+                    statement.setInt(2 * (i - from) + 2, replacements.get(i));
+                }
+                statement.setDate(2 * (to - from) + 1, date);
+                statement.setInt(2 * (to - from) + 2, caregiverID);
+                statement.executeUpdate();
+            }
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    // Cancel what is still booked with the caregiver that day and give the doses back
+    private void cancelRest(int caregiverID) throws SQLException {
+        if (cancelled.isEmpty()) {
+            return;
+        }
+        ConnectionManager cm = new ConnectionManager(ShardRouter.shardFor(date));
+        Connection con = cm.createConnection();
+
+        // Cancellations has foreign keys on the primary, so it cannot be the target of DELETE ... OUTPUT INTO
+        String addCancellations = "INSERT INTO Cancellations (AppointmentID, CaregiverID, PatientID, VaccineID, Time) "
+                + "SELECT AppointmentID, CaregiverID, PatientID, VaccineID, Time FROM Appointments "
+                + "WHERE Time = ? AND CaregiverID = ?";
+        String removeAppointments = "DELETE FROM Appointments WHERE Time = ? AND CaregiverID = ?";
+        try {
+            for (String sql : new String[]{addCancellations, removeAppointments}) {
+                PreparedStatement statement = con.prepareStatement(sql);
+                statement.setDate(1, date);
+                statement.setInt(2, caregiverID);
+                statement.executeUpdate();
+            }
+        } finally {
+            cm.closeConnection();
+        }
+
+        Map<Integer, Integer> doses = new TreeMap<>();
+        for (Appointment appointment : cancelled) {
+            doses.merge(appointment.getVaccineID(), 1, Integer::sum);
+        }
+        cm = new ConnectionManager();
+        con = cm.createConnection();
+
+        String addDoses = "UPDATE V SET Doses = V.Doses + R.Doses FROM Vaccines V "
+                + "JOIN (VALUES " + String.join(", ", Collections.nCopies(doses.size(), "(?, ?)"))
+                + ") AS R (VaccineID, Doses) ON V.VaccineID = R.VaccineID";
+        try {
+            PreparedStatement statement = con.prepareStatement(addDoses);
+            int i = 1;
+            for (Map.Entry<Integer, Integer> vaccine : doses.entrySet()) {
+                statement.setInt(i++, vaccine.getKey());
+                statement.setInt(i++, vaccine.getValue());
+            }
+            statement.executeUpdate();
+        } finally {
+            cm.closeConnection();
+        }
+        for (Map.Entry<Integer, Integer> vaccine : doses.entrySet()) {
+            ChangeBus.publish(ChangeEvent.dosesChanged(Dictionary.VACCINES.name(vaccine.getKey()), vaccine.getValue()));
+        }
+    }
+}
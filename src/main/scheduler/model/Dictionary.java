@@ -0,0 +1,145 @@
+package scheduler.model;
+
+import scheduler.db.ConnectionManager;
+import scheduler.db.Retry;
+import scheduler.util.NameDictionary;
+
+import java.sql.*;
+import java.util.*;
+
+/**
+ * Names of caregivers, patients and vaccines by their integer IDs. The hot tables (availabilities, leases,
+ * appointments and their archives) store only the IDs, so their keys and indexes stay narrow and the shards
+ * need no copy of the users. Names are translated at the edges, when a command takes one in or prints one.
+ *
+ * Every name is cached in a {@link NameDictionary} the first time it is seen. IDs never change and are
+ * never reused, so cached entries stay valid and a miss is simply read from the owning table on the primary.
+ */
+public class Dictionary {
+
+    public static final Dictionary CAREGIVERS = new Dictionary("Caregivers", "CaregiverID", "Username");
+    public static final Dictionary PATIENTS = new Dictionary("Patients", "PatientID", "Username");
+    public static final Dictionary VACCINES = new Dictionary("Vaccines", "VaccineID", "Name");
+
+    // SQL Server accepts at most 2100 parameters per statement
+    private static final int BATCH_SIZE = 1000;
+
+    private final String table;
+    private final String idColumn;
+    private final String nameColumn;
+    private final NameDictionary names = new NameDictionary();
+    private long misses = 0;
+
+    private Dictionary(String table, String idColumn, String nameColumn) {
+        this.table = table;
+        this.idColumn = idColumn;
+        this.nameColumn = nameColumn;
+    }
+
+    // Returns the ID of the name, 0 if no row has it
+    public int id(String name) throws SQLException {
+        int id = names.id(name);
+        if (id != 0) {
+            return id;
+        }
+        countMiss();
+        return Retry.idempotent(() -> {
+            ConnectionManager cm = new ConnectionManager();
+            Connection con = cm.createConnection();
+
+            String getID = "SELECT " + idColumn + ", " + nameColumn + " FROM " + table + " WHERE " + nameColumn + " = ?";
+            try {
+                PreparedStatement statement = con.prepareStatement(getID);
+                statement.setString(1, name);
+                ResultSet res = statement.executeQuery();
+                if (!res.next()) {
+                    return 0;
+                }
+                int found = res.getInt(1);
+                // the stored spelling becomes the printed one, the one asked for maps to the same ID
+                names.put(found, res.getString(2));
+                names.put(found, name);
+                return found;
+            } finally {
+                cm.closeConnection();
+            }
+        });
+    }
+
+    // Returns the ID of the name if it is cached, otherwise 0, without going to the database
+    public int cachedID(String name) {
+        return names.id(name);
+    }
+
+    // Returns the name with the ID, null if no row has it
+    public String name(int id) throws SQLException {
+        String name = names.name(id);
+        if (name != null) {
+            return name;
+        }
+        resolve(Collections.singleton(id));
+        return names.name(id);
+    }
+
+    // Load the names of all the IDs that are not cached yet, with one query per BATCH_SIZE IDs
+    public void resolve(Collection<Integer> ids) throws SQLException {
+        List<Integer> missing = new ArrayList<>();
+        for (int id : ids) {
+            if (names.name(id) == null) {
+                missing.add(id);
+            }
+        }
+        if (missing.isEmpty()) {
+            return;
+        }
+        countMiss();
+        for (int from = 0; from < missing.size(); from += BATCH_SIZE) {
+            List<Integer> batch = missing.subList(from, Math.min(from + BATCH_SIZE, missing.size()));
+            Retry.idempotent(() -> {
+                ConnectionManager cm = new ConnectionManager();
+                Connection con = cm.createConnection();
+
+                String getNames = "SELECT " + idColumn + ", " + nameColumn + " FROM " + table + " WHERE " + idColumn
+                        + " IN (" + String.join(", ", Collections.nCopies(batch.size(), "?")) + ")";
+                try {
+                    PreparedStatement statement = con.prepareStatement(getNames);
+                    for (int i = 0; i < batch.size(); i++) {
+                        statement.setInt(i + 1, batch.get(i));
+                    }
+                    ResultSet res = statement.executeQuery();
+                    while (res.next()) {
+                        names.put(res.getInt(1), res.getString(2));
+                    }
+                } finally {
+                    cm.closeConnection();
+                }
+            });
+        }
+    }
+
+    // Remember a row this process just inserted, once its transaction commits
+    void put(int id, String name) {
+        ConnectionManager.afterCompletion(committed -> {
+            if (committed) {
+                names.put(id, name);
+            }
+        });
+    }
+
+    private synchronized void countMiss() {
+        misses++;
+    }
+
+    public static String stats() {
+        return "dictionary: caregivers=" + CAREGIVERS.size() + " patients=" + PATIENTS.size()
+                + " vaccines=" + VACCINES.size() + " misses=" + (CAREGIVERS.misses() + PATIENTS.misses() + VACCINES.misses());
+    }
+
+    private int size() {
+        return names.size();
+    }
+
+    private synchronized long misses() {
+        return misses;
+    }
+}
@@ -0,0 +1,166 @@
+package scheduler.model;
+
+import scheduler.util.Config;
+import scheduler.util.TimerWheel;
+
+import java.sql.Date;
+import java.sql.SQLException;
+import java.util.*;
+
+/**
+ * A temporary hold on one caregiver-day and one dose of a vaccine for a patient, placed with hold and turned
+ * into an appointment with confirm. Holds are kept in memory only and expire after HoldTtlMillis; nothing is
+ * written to the database until confirm, so browsing patients who never confirm cost no cancellations.
+ * Holds are only seen by this process, the booking at confirm is still checked against the database.
+ */
+public class Hold {
+
+    private static final long TTL_MILLIS = Config.getLong("HoldTtlMillis", 120000);
+
+    private static final TimerWheel<Hold> expiry = new TimerWheel<>(Config.getLong("HoldTickMillis", 1000), 512);
+    private static final Map<Integer, Hold> holds = new HashMap<>();
+    // "date caregiver" of every held caregiver-day
+    private static final Set<String> heldSlots = new HashSet<>();
+    private static final Map<String, Integer> heldDoses = new HashMap<>();
+    private static int nextID = 1;
+    private static long expired = 0;
+
+    private final int holdID;
+    private final String patientUsername;
+    private final String caregiverUsername;
+    private final String vaccineName;
+    private final Date date;
+    private final long expiresAt;
+    private TimerWheel.Timeout<Hold> timeout;
+
+    private Hold(int holdID, String patientUsername, String caregiverUsername, String vaccineName, Date date) {
+        this.holdID = holdID;
+        this.patientUsername = patientUsername;
+        this.caregiverUsername = caregiverUsername;
+        this.vaccineName = vaccineName;
+        this.date = date;
+        this.expiresAt = System.currentTimeMillis() + TTL_MILLIS;
+    }
+
+    // Getters
+    public int getHoldID() {
+        return holdID;
+    }
+
+    public String getPatientUsername() {
+        return patientUsername;
+    }
+
+    public String getCaregiverUsername() {
+        return caregiverUsername;
+    }
+
+    public String getVaccineName() {
+        return vaccineName;
+    }
+
+    public Date getDate() {
+        return date;
+    }
+
+    public long getExpiresAt() {
+        return expiresAt;
+    }
+
+    /**
+     * Hold the first caregiver free on the date that nobody holds yet, and a dose of the vaccine. Returns null
+     * if every free caregiver is held, throws IllegalArgumentException if every dose is booked or held.
+     */
+    public static Hold place(Patient patient, Date d, String vaccine) throws SQLException {
+        Vaccine vac = new Vaccine.VaccineGetter(vaccine).get();
+        int doses = vac == null ? 0 : vac.getAvailableDoses();
+        // a full date needs no list of its caregivers
+        List<String> caregivers = DailyCapacity.freeCaregivers(d) == 0
+                ? new ArrayList<>() : patient.getAvailableCaregivers(d);
+        synchronized (holds) {
+            expire();
+            if (doses - heldDoses.getOrDefault(vaccine, 0) <= 0) {
+                throw new IllegalArgumentException("Not enough available doses!");
+            }
+            for (String caregiver : caregivers) {
+                if (heldSlots.add(slot(d, caregiver))) {
+                    Hold hold = new Hold(nextID++, patient.getUsername(), caregiver, vaccine, d);
+                    heldDoses.merge(vaccine, 1, Integer::sum);
+                    holds.put(hold.holdID, hold);
+                    hold.timeout = expiry.schedule(hold, TTL_MILLIS);
+                    return hold;
+                }
+            }
+            return null;
+        }
+    }
+
+    // Remove the patient's hold so it can be confirmed or dropped, returns null if it expired or is not theirs
+    public static Hold take(int holdID, String patientUsername) {
+        synchronized (holds) {
+            expire();
+            Hold hold = holds.get(holdID);
+            if (hold == null || !Objects.equals(hold.patientUsername, patientUsername)) {
+                return null;
+            }
+            hold.timeout.cancel();
+            remove(hold);
+            return hold;
+        }
+    }
+
+    // Whether a hold protects the caregiver-day from bookings that do not come from it
+    public static boolean isHeld(Date d, String caregiverUsername) {
+        synchronized (holds) {
+            expire();
+            return heldSlots.contains(slot(d, caregiverUsername));
+        }
+    }
+
+    // Caregivers held on the date
+    public static Set<String> heldCaregivers(Date d) {
+        synchronized (holds) {
+            expire();
+            Set<String> caregivers = new HashSet<>();
+            for (Hold hold : holds.values()) {
+                if (hold.date.equals(d)) {
+                    caregivers.add(hold.caregiverUsername);
+                }
+            }
+            return caregivers;
+        }
+    }
+
+    // Doses of the vaccine set aside by holds
+    public static int heldDoses(String vaccine) {
+        synchronized (holds) {
+            expire();
+            return heldDoses.getOrDefault(vaccine, 0);
+        }
+    }
+
+    private static void expire() {
+        expiry.advance(hold -> {
+            remove(hold);
+            expired++;
+        });
+    }
+
+    private static void remove(Hold hold) {
+        holds.remove(hold.holdID);
+        heldSlots.remove(slot(hold.date, hold.caregiverUsername));
+        heldDoses.merge(hold.vaccineName, -1, Integer::sum);
+        heldDoses.remove(hold.vaccineName, 0);
+    }
+
+    private static String slot(Date d, String caregiverUsername) {
+        return d + " " + caregiverUsername;
+    }
+
+    public static String stats() {
+        synchronized (holds) {
+            expire();
+            return "holds: active=" + holds.size() + " expired=" + expired;
+        }
+    }
+}
@@ -1,8 +1,15 @@
 package scheduler.model;
 
 import scheduler.db.ConnectionManager;
+import scheduler.db.Cursor;
+import scheduler.db.Retry;
+import scheduler.db.ShardRouter;
+import scheduler.event.ChangeBus;
+import scheduler.event.ChangeEvent;
+import scheduler.util.HashParams;
 import scheduler.util.Util;
 
+import java.security.MessageDigest;
 import java.sql.*;
 import java.sql.Date;
 import java.util.*;
@@ -11,17 +18,20 @@ public class Patient {
     private final String username;
     private final byte[] salt;
     private final byte[] hash;
+    private final HashParams hashParams;
 
     private Patient(PatientBuilder builder) {
         this.username = builder.username;
         this.salt = builder.salt;
         this.hash = builder.hash;
+        this.hashParams = builder.hashParams;
     }
 
     private Patient(PatientGetter getter) {
         this.username = getter.username;
         this.salt = getter.salt;
         this.hash = getter.hash;
+        this.hashParams = getter.hashParams;
     }
 
     // Getters
@@ -37,44 +47,57 @@ public class Patient {
         return hash;
     }
 
+    public HashParams getHashParams() {
+        return hashParams;
+    }
+
     public void saveToDB() throws SQLException {
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
-
-        String addPatient = "INSERT INTO patients VALUES (? , ?, ?)";
-        try {
-            PreparedStatement statement = con.prepareStatement(addPatient);
-            statement.setString(1, this.username);
-            statement.setBytes(2, this.salt);
-            statement.setBytes(3, this.hash);
-            statement.executeUpdate();
-        } catch (SQLException e) {
-            throw new SQLException();
-        } finally {
-            cm.closeConnection();
-        }
+        Retry.nonIdempotent(() -> {
+            ConnectionManager cm = new ConnectionManager();
+            Connection con = cm.createConnection();
+
+            String addPatient = "INSERT INTO patients (Username, Salt, Hash, HashParams) OUTPUT INSERTED.PatientID VALUES (? , ?, ?, ?)";
+            try {
+                PreparedStatement statement = con.prepareStatement(addPatient);
+                statement.setString(1, this.username);
+                statement.setBytes(2, this.salt);
+                statement.setBytes(3, this.hash);
+                statement.setString(4, this.hashParams.encode());
+                ResultSet res = statement.executeQuery();
+                res.next();
+                Dictionary.PATIENTS.put(res.getInt(1), this.username);
+                UsernameFilter.PATIENTS.add(this.username);
+            } finally {
+                cm.closeConnection();
+            }
+        });
     }
 
     public void updateAvailability(Date d, String caregiverUsername) throws SQLException {
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
-
-        String addAvailability = "DELETE FROM Availabilities WHERE time = ? AND username = ?";
-        try {
-            PreparedStatement statement = con.prepareStatement(addAvailability);
-            statement.setDate(1, d);
-            statement.setString(2, caregiverUsername);
-            statement.executeUpdate();
-        } catch (SQLException e) {
-            throw new SQLException();
-        } finally {
-            cm.closeConnection();
-        }
+        int caregiverID = Dictionary.CAREGIVERS.id(caregiverUsername);
+        // the availability and the date's capacity change together
+        Retry.transaction(() -> {
+            ConnectionManager cm = new ConnectionManager(ShardRouter.shardFor(d));
+            Connection con = cm.createConnection();
+
+            String addAvailability = "DELETE FROM Availabilities WHERE time = ? AND CaregiverID = ?";
+            try {
+                PreparedStatement statement = con.prepareStatement(addAvailability);
+                statement.setDate(1, d);
+                statement.setInt(2, caregiverID);
+                DailyCapacity.adjust(con, d, -statement.executeUpdate());
+                return null;
+            } finally {
+                cm.closeConnection();
+            }
+        });
+        ChangeBus.publish(ChangeEvent.availabilityRemoved(d, caregiverUsername));
     }
 
     public void getAvailability(Date d) throws SQLException {
 
-        List<String> caregivers = getAvailableCaregivers(d);
+        // a date without free caregivers is known from its summary row
+        List<String> caregivers = DailyCapacity.freeCaregivers(d) == 0 ? new ArrayList<>() : getAvailableCaregivers(d);
         System.out.println("Below are available caregivers for " + d + ":");
         for (String caregiver : caregivers) {
             System.out.println(caregiver);
@@ -82,107 +105,129 @@ public class Patient {
 
         System.out.println();
         System.out.println("Below are available doses for " + d + ":");
-        Map<String, Integer> doses = getAvailableDoses();
-        for (String k : doses.keySet()) {
-            System.out.println(k + ": " + doses.get(k));
+        try (Cursor<Vaccine> vaccines = Vaccine.openAll()) {
+            while (vaccines.hasNext()) {
+                Vaccine vaccine = vaccines.next();
+                System.out.println(vaccine.getVaccineName() + ": " + vaccine.getAvailableDoses());
+            }
+        } catch (Cursor.CursorException e) {
+            throw e.getCause();
         }
     }
 
     public List<String> getAvailableCaregivers(Date d) throws SQLException {
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
-
-        String getAvailability = "SELECT A.username FROM Availabilities A WHERE A.time = ? ORDER BY A.username";
-
-        try {
-            PreparedStatement statement = con.prepareStatement(getAvailability);
-            statement.setDate(1, d);
-            ResultSet res = statement.executeQuery();
-            List<String> availableCaregivers = new ArrayList<>();
-            while (res.next()) {
-                availableCaregivers.add(res.getString("username"));
+        List<Integer> caregiverIDs = Retry.idempotent(() -> {
+            ConnectionManager cm = new ConnectionManager(ShardRouter.shardFor(d));
+            Connection con = cm.createConnection();
+
+            String getAvailability = "SELECT A.CaregiverID FROM Availabilities A WHERE A.time = ?";
+
+            try {
+                PreparedStatement statement = con.prepareStatement(getAvailability);
+                statement.setDate(1, d);
+                ResultSet res = statement.executeQuery();
+                List<Integer> availableCaregivers = new ArrayList<>();
+                while (res.next()) {
+                    availableCaregivers.add(res.getInt("CaregiverID"));
+                }
+                return availableCaregivers;
+            } finally {
+                cm.closeConnection();
             }
-            return availableCaregivers;
-        } catch (SQLException e) {
-            throw new SQLException();
-        } finally {
-            cm.closeConnection();
+        });
+        // IDs follow sign-up order, the list is still shown by name
+        Dictionary.CAREGIVERS.resolve(caregiverIDs);
+        List<String> availableCaregivers = new ArrayList<>(caregiverIDs.size());
+        for (int caregiverID : caregiverIDs) {
+            availableCaregivers.add(Dictionary.CAREGIVERS.name(caregiverID));
         }
+        availableCaregivers.sort(String.CASE_INSENSITIVE_ORDER);
+        return availableCaregivers;
     }
 
-    public Map<String, Integer> getAvailableDoses() throws SQLException {
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
-
-        String getDoses = "SELECT * FROM Vaccines";
-
-        try {
-            PreparedStatement statement = con.prepareStatement(getDoses);
-            ResultSet res = statement.executeQuery();
-            Map<String, Integer> availableDoses = new HashMap<>();
-            while (res.next()) {
-                String name = res.getString("name");
-                int doses = Integer.parseInt(res.getString("doses"));
-                availableDoses.put(name, doses);
-            }
-            return availableDoses;
-        } catch (SQLException e) {
-            throw new SQLException();
-        } finally {
-            cm.closeConnection();
+    /**
+     * The first limit free caregiver-days after (afterDate, afterCaregiver) in date and caregiver ID order, as
+     * date -> caregivers. Pass a null afterCaregiver to start at afterDate itself. Every shard answers with a
+     * seek on the Availabilities primary key, skipping rows that other bookings have locked.
+     */
+    public SortedMap<Date, List<String>> getEarliestAvailability(Date afterDate, String afterCaregiver, int limit)
+            throws SQLException {
+        // every caregiver ID is above 0
+        int afterCaregiverID = afterCaregiver == null ? 0 : Dictionary.CAREGIVERS.id(afterCaregiver);
+        List<Object[]> rows = new ArrayList<>();
+        for (int target : ShardRouter.targets()) {
+            Retry.idempotent(() -> {
+                ConnectionManager cm = new ConnectionManager(target);
+                Connection con = cm.createConnection();
+
+                String getEarliest = "SELECT TOP (?) Time, CaregiverID FROM Availabilities WITH (READPAST) "
+                        + "WHERE Time > ? OR (Time = ? AND CaregiverID > ?) ORDER BY Time, CaregiverID";
+                try {
+                    PreparedStatement statement = con.prepareStatement(getEarliest);
+                    statement.setInt(1, limit);
+                    statement.setDate(2, afterDate);
+                    statement.setDate(3, afterDate);
+                    statement.setInt(4, afterCaregiverID);
+                    ResultSet res = statement.executeQuery();
+                    while (res.next()) {
+                        rows.add(new Object[]{res.getDate(1), res.getInt(2)});
+                    }
+                } finally {
+                    cm.closeConnection();
+                }
+            });
+        }
+        // keep the first limit rows overall, every shard returned all of its rows up to that point
+        rows.sort(Comparator.comparing((Object[] row) -> (Date) row[0]).thenComparing(row -> (Integer) row[1]));
+        List<Object[]> first = rows.subList(0, Math.min(limit, rows.size()));
+        List<Integer> caregiverIDs = new ArrayList<>();
+        for (Object[] row : first) {
+            caregiverIDs.add((Integer) row[1]);
+        }
+        Dictionary.CAREGIVERS.resolve(caregiverIDs);
+        SortedMap<Date, List<String>> earliest = new TreeMap<>();
+        for (Object[] row : first) {
+            earliest.computeIfAbsent((Date) row[0], d -> new ArrayList<>()).add(Dictionary.CAREGIVERS.name((Integer) row[1]));
         }
+        return earliest;
     }
 
     public int getMaxAppointmentID() throws SQLException {
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
-
-        String getMaxAppointmentID = "SELECT TOP 1 appointmentID max FROM Appointments ORDER BY appointmentID DESC";
-        try {
-            PreparedStatement statement = con.prepareStatement(getMaxAppointmentID);
-            ResultSet res = statement.executeQuery();
-            while (res.next()) {
-                return res.getInt("max");
+        return Retry.idempotent(() -> {
+            ConnectionManager cm = new ConnectionManager();
+            Connection con = cm.createConnection();
+
+            String getMaxAppointmentID = "SELECT TOP 1 appointmentID max FROM Appointments ORDER BY appointmentID DESC";
+            try {
+                PreparedStatement statement = con.prepareStatement(getMaxAppointmentID);
+                ResultSet res = statement.executeQuery();
+                while (res.next()) {
+                    return res.getInt("max");
+                }
+                return 0;
+            } finally {
+                cm.closeConnection();
             }
-            return 0;
-        } catch (SQLException e) {
-            throw new SQLException();
-        } finally {
-            cm.closeConnection();
-        }
+        });
     }
 
-    public void getCurrentAppointments() throws SQLException {
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
-
-        String getCurrentAppointments = "SELECT * FROM Appointments WHERE Patient = ? ORDER BY AppointmentID";
-        try {
-            PreparedStatement statement = con.prepareStatement(getCurrentAppointments);
-            statement.setString(1, this.username);
-            ResultSet res = statement.executeQuery();
-            while (res.next()) {
-                System.out.println(res.getString("AppointmentID") + " "
-                        + res.getString("Vaccine") + " "
-                        + res.getString("Time") + " "
-                        + res.getString("Caregiver"));
-            }
-        } catch (SQLException e) {
-            throw new SQLException();
-        } finally {
-            cm.closeConnection();
-        }
+    // One page of the appointments after afterID, up to limit + 1 to tell whether there is another page.
+    // With includeArchived, the appointments moved to the archive are listed too, they are never cached
+    public List<Appointment> getAppointments(boolean includeArchived, int afterID, int limit) throws SQLException {
+        return Appointment.getPage("PatientID", this.username, includeArchived, afterID, limit);
     }
 
     public static class PatientBuilder {
         private final String username;
         private final byte[] salt;
         private final byte[] hash;
+        private final HashParams hashParams;
 
-        public PatientBuilder(String username, byte[] salt, byte[] hash) {
+        public PatientBuilder(String username, byte[] salt, byte[] hash, HashParams hashParams) {
             this.username = username;
             this.salt = salt;
             this.hash = hash;
+            this.hashParams = hashParams;
         }
 
         public Patient build() {
@@ -195,6 +240,7 @@ public class Patient {
         private final String password;
         private byte[] salt;
         private byte[] hash;
+        private HashParams hashParams;
 
         public PatientGetter(String username, String password) {
             this.username = username;
@@ -202,35 +248,75 @@ public class Patient {
         }
 
         public Patient get() throws SQLException {
-            ConnectionManager cm = new ConnectionManager();
-            Connection con = cm.createConnection();
+            Patient patient = Retry.idempotent(() -> {
+                ConnectionManager cm = new ConnectionManager();
+                Connection con = cm.createConnection();
+
+                String getPatient = "SELECT PatientID, Username, Salt, Hash, HashParams FROM Patients WHERE Username = ?";
+                try {
+                    PreparedStatement statement = con.prepareStatement(getPatient);
+                    statement.setString(1, this.username);
+                    ResultSet resultSet = statement.executeQuery();
+                    while (resultSet.next()) {
+                        byte[] salt = resultSet.getBytes("Salt");
+                        byte[] hash = resultSet.getBytes("Hash");
+                        HashParams params = HashParams.parse(resultSet.getString("HashParams"));
+                        // check if the password matches, with the parameters the hash was stored with
+                        byte[] calculatedHash = Util.generateHash(password, salt, params);
+                        // legacy hashes are zero-padded by their BINARY(16) column, so compare them trimmed
+                        if (!MessageDigest.isEqual(Util.trim(hash), Util.trim(calculatedHash))) {
+                            return null;
+                        } else {
+                            this.salt = salt;
+                            this.hash = hash;
+                            this.hashParams = params;
+                            Dictionary.PATIENTS.put(resultSet.getInt("PatientID"), resultSet.getString("Username"));
+                            return new Patient(this);
+                        }
+                    }
+                    return null;
+                } finally {
+                    cm.closeConnection();
+                }
+            });
+            if (patient != null && patient.hashParams.isOutdated()) {
+                patient = rehash(patient);
+            }
+            return patient;
+        }
 
-            String getPatient = "SELECT Salt, Hash FROM Patients WHERE Username = ?";
+        // Store a new hash of the password with the current parameters, we only know the password at login
+        private Patient rehash(Patient patient) {
+            byte[] newSalt = Util.generateSalt();
+            HashParams newParams = HashParams.current();
+            byte[] newHash = Util.generateHash(password, newSalt, newParams);
             try {
-                PreparedStatement statement = con.prepareStatement(getPatient);
-                statement.setString(1, this.username);
-                ResultSet resultSet = statement.executeQuery();
-                while (resultSet.next()) {
-                    byte[] salt = resultSet.getBytes("Salt");
-                    // we need to call Util.trim() to get rid of the paddings,
-                    // try to remove the use of Util.trim() and you'll see :)
-                    byte[] hash = Util.trim(resultSet.getBytes("Hash"));
-                    // check if the password matches
-                    byte[] calculatedHash = Util.generateHash(password, salt);
-                    if (!Arrays.equals(hash, calculatedHash)) {
-                        return null;
-                    } else {
-                        this.salt = salt;
-                        this.hash = hash;
-                        return new Patient(this);
+                boolean updated = Retry.idempotent(() -> {
+                    ConnectionManager cm = new ConnectionManager();
+                    Connection con = cm.createConnection();
+
+                    // only replace the hash we verified, a password changed meanwhile wins
+                    String updateHash = "UPDATE Patients SET Salt = ?, Hash = ?, HashParams = ? WHERE Username = ? AND Hash = ?";
+                    try {
+                        PreparedStatement statement = con.prepareStatement(updateHash);
+                        statement.setBytes(1, newSalt);
+                        statement.setBytes(2, newHash);
+                        statement.setString(3, newParams.encode());
+                        statement.setString(4, this.username);
+                        statement.setBytes(5, patient.hash);
+                        return statement.executeUpdate() == 1;
+                    } finally {
+                        cm.closeConnection();
                     }
+                });
+                if (updated) {
+                    return new PatientBuilder(this.username, newSalt, newHash, newParams).build();
                 }
-                return null;
             } catch (SQLException e) {
-                throw new SQLException();
-            } finally {
-                cm.closeConnection();
+                // the old hash still works, try again at the next login
+                System.out.println("Could not upgrade the stored password hash");
             }
+            return patient;
         }
     }
 }
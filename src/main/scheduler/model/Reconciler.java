@@ -0,0 +1,447 @@
+package scheduler.model;
+
+import scheduler.db.ConnectionManager;
+import scheduler.db.Retry;
+import scheduler.db.ShardRouter;
+import scheduler.event.ChangeBus;
+import scheduler.event.ChangeEvent;
+import scheduler.util.Config;
+import scheduler.util.RoaringBitmap;
+
+import java.sql.*;
+import java.sql.Date;
+import java.time.LocalDate;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Checks the invariants that tie Availabilities, Appointments, DailyCapacity and the user and vaccine
+ * tables together, and with fix repairs the ones that can be repaired without touching a booking.
+ *
+ * The date-keyed tables are read in chunks of ReconcileChunkDays days per shard, checked in parallel on a
+ * fork-join pool of ReconcileParallelism threads. A chunk streams its availabilities into one bitmap per day,
+ * then streams its appointments against them, so memory is bounded by the chunk, not by the tables. The
+ * IDs of users and vaccines are kept in bitsets, a bit per ID, and an ID missing from them is looked up
+ * again before it is reported, it may belong to a user created during the run. Each chunk applies its
+ * fixes in its own transaction with batched statements that re-check the violation, so rows changed since
+ * they were read are left alone. A chunk that fails is counted and the others carry on.
+ *
+ * Remaining doses are a counter with no record of the doses added, so against appointments they can only
+ * be checked for going negative.
+ */
+public class Reconciler {
+
+    private static final int CHUNK_DAYS = Math.max(Config.getInt("ReconcileChunkDays", 7), 1);
+    private static final int PARALLELISM = Math.max(Config.getInt("ReconcileParallelism", 4), 1);
+    private static final int SAMPLE_LIMIT = Config.getInt("ReconcileSampleLimit", 20);
+    private static final int FETCH_SIZE = 10000;
+    private static final int BATCH_SIZE = 1000;
+
+    public enum Violation {
+        FREE_BUT_BOOKED("caregiver both free and booked on a day", true),
+        DOUBLE_BOOKED("caregiver booked twice on a day", false),
+        UNKNOWN_CAREGIVER_AVAILABILITY("availability of an unknown caregiver", true),
+        UNKNOWN_CAREGIVER_APPOINTMENT("appointment with an unknown caregiver", false),
+        UNKNOWN_PATIENT("appointment with an unknown patient", false),
+        UNKNOWN_VACCINE("appointment with an unknown vaccine", false),
+        CAPACITY_MISMATCH("free caregiver count that differs from the availabilities", true),
+        MISPLACED("row stored on a shard that does not own its date", false),
+        NEGATIVE_DOSES("vaccine with negative doses", false);
+
+        private final String description;
+        private final boolean fixable;
+
+        Violation(String description, boolean fixable) {
+            this.description = description;
+            this.fixable = fixable;
+        }
+
+        public String getDescription() {
+            return description;
+        }
+
+        public boolean isFixable() {
+            return fixable;
+        }
+    }
+
+    public static class Report {
+        private final long[] counts = new long[Violation.values().length];
+        private final List<String> samples = new ArrayList<>();
+        private long rows = 0;
+        private long fixed = 0;
+        private int chunks = 0;
+        private int failedChunks = 0;
+
+        // Getters
+        public long getCount(Violation violation) {
+            return counts[violation.ordinal()];
+        }
+
+        // the first ReconcileSampleLimit violations and failures, in no particular order
+        public List<String> getSamples() {
+            return samples;
+        }
+
+        public long getRows() {
+            return rows;
+        }
+
+        public long getFixed() {
+            return fixed;
+        }
+
+        public int getChunks() {
+            return chunks;
+        }
+
+        public int getFailedChunks() {
+            return failedChunks;
+        }
+
+        private void add(Violation violation, String sample) {
+            counts[violation.ordinal()]++;
+            sample(violation.getDescription() + ": " + sample);
+        }
+
+        private void sample(String sample) {
+            if (samples.size() < SAMPLE_LIMIT) {
+                samples.add(sample);
+            }
+        }
+
+        private Report merge(Report other) {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] += other.counts[i];
+            }
+            for (String sample : other.samples) {
+                sample(sample);
+            }
+            rows += other.rows;
+            fixed += other.fixed;
+            chunks += other.chunks;
+            failedChunks += other.failedChunks;
+            return this;
+        }
+    }
+
+    private final boolean fix;
+    private final BitSet caregivers = new BitSet();
+    private final BitSet patients = new BitSet();
+    private final BitSet vaccines = new BitSet();
+    // IDs confirmed missing, so an orphan is looked up once per run rather than once per row
+    private final Set<Integer> unknownCaregivers = ConcurrentHashMap.newKeySet();
+    private final Set<Integer> unknownPatients = ConcurrentHashMap.newKeySet();
+    private final Set<Integer> unknownVaccines = ConcurrentHashMap.newKeySet();
+
+    public Reconciler(boolean fix) {
+        this.fix = fix;
+    }
+
+    public Report run() throws SQLException {
+        Report report = new Report();
+        loadIDs("SELECT CaregiverID FROM Caregivers", caregivers);
+        loadIDs("SELECT PatientID FROM Patients", patients);
+        checkVaccines(report);
+
+        ForkJoinPool pool = new ForkJoinPool(PARALLELISM);
+        try {
+            List<ForkJoinTask<Report>> shards = new ArrayList<>();
+            for (int target : ShardRouter.targets()) {
+                long[] range = dateRange(target);
+                if (range != null) {
+                    shards.add(pool.submit(new ChunkTask(target, range[0], range[1])));
+                }
+            }
+            for (ForkJoinTask<Report> shard : shards) {
+                report.merge(shard.join());
+            }
+        } finally {
+            pool.shutdown();
+        }
+        return report;
+    }
+
+    private void loadIDs(String sql, BitSet ids) throws SQLException {
+        Retry.idempotent(() -> {
+            ConnectionManager cm = new ConnectionManager();
+            Connection con = cm.createConnection();
+            try {
+                PreparedStatement statement = con.prepareStatement(sql,
+                        ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+                statement.setFetchSize(FETCH_SIZE);
+                ResultSet res = statement.executeQuery();
+                while (res.next()) {
+                    ids.set(res.getInt(1));
+                }
+            } finally {
+                cm.closeConnection();
+            }
+        });
+    }
+
+    private void checkVaccines(Report report) throws SQLException {
+        Retry.idempotent(() -> {
+            ConnectionManager cm = new ConnectionManager();
+            Connection con = cm.createConnection();
+
+            String getVaccines = "SELECT VaccineID, Name, Doses FROM Vaccines";
+            try {
+                PreparedStatement statement = con.prepareStatement(getVaccines);
+                ResultSet res = statement.executeQuery();
+                while (res.next()) {
+                    vaccines.set(res.getInt(1));
+                    if (res.getInt(3) < 0) {
+                        report.add(Violation.NEGATIVE_DOSES, res.getString(2) + " has " + res.getInt(3));
+                    }
+                }
+            } finally {
+                cm.closeConnection();
+            }
+        });
+    }
+
+    // First and last epoch day with rows on the target, null if it has none
+    private static long[] dateRange(int target) throws SQLException {
+        return Retry.idempotent(() -> {
+            ConnectionManager cm = new ConnectionManager(target);
+            Connection con = cm.createConnection();
+
+            String getRange = "SELECT MIN(Time), MAX(Time) FROM (SELECT MIN(Time) Time FROM Availabilities"
+                    + " UNION ALL SELECT MIN(Time) FROM Appointments UNION ALL SELECT MIN(Time) FROM DailyCapacity"
+                    + " UNION ALL SELECT MAX(Time) FROM Availabilities UNION ALL SELECT MAX(Time) FROM Appointments"
+                    + " UNION ALL SELECT MAX(Time) FROM DailyCapacity) t";
+            try {
+                PreparedStatement statement = con.prepareStatement(getRange);
+                ResultSet res = statement.executeQuery();
+                if (!res.next() || res.getDate(1) == null) {
+                    return null;
+                }
+                return new long[]{res.getDate(1).toLocalDate().toEpochDay(), res.getDate(2).toLocalDate().toEpochDay()};
+            } finally {
+                cm.closeConnection();
+            }
+        });
+    }
+
+    // Splits the days [first, last] of one target in halves down to chunks of CHUNK_DAYS days
+    private class ChunkTask extends RecursiveTask<Report> {
+        private static final long serialVersionUID = 1L;
+
+        private final int target;
+        private final long first;
+        private final long last;
+
+        ChunkTask(int target, long first, long last) {
+            this.target = target;
+            this.first = first;
+            this.last = last;
+        }
+
+        @Override
+        protected Report compute() {
+            if (last - first < CHUNK_DAYS) {
+                return check(target, first, last);
+            }
+            long mid = (first + last) >>> 1;
+            ChunkTask left = new ChunkTask(target, first, mid);
+            left.fork();
+            Report report = new ChunkTask(target, mid + 1, last).compute();
+            return report.merge(left.join());
+        }
+    }
+
+    private Report check(int target, long first, long last) {
+        Report report = new Report();
+        report.chunks = 1;
+        Date from = Date.valueOf(LocalDate.ofEpochDay(first));
+        Date to = Date.valueOf(LocalDate.ofEpochDay(last));
+        try {
+            // the day's free and booked caregivers, by offset from the first day
+            RoaringBitmap[] free = new RoaringBitmap[(int) (last - first + 1)];
+            RoaringBitmap[] booked = new RoaringBitmap[free.length];
+            // (epoch day, CaregiverID, 1 if the caregiver is unknown) of the rows to delete from Availabilities
+            List<long[]> removals = new ArrayList<>();
+            Map<Long, Integer> capacity = new TreeMap<>();
+
+            Retry.idempotent(() -> {
+                report.rows = 0;
+                report.samples.clear();
+                Arrays.fill(report.counts, 0);
+                removals.clear();
+                capacity.clear();
+                // a retried read starts over, the bitmaps too
+                for (int i = 0; i < free.length; i++) {
+                    free[i] = new RoaringBitmap();
+                    booked[i] = new RoaringBitmap();
+                }
+                ConnectionManager cm = new ConnectionManager(target);
+                Connection con = cm.createConnection();
+
+                String getAvailabilities = "SELECT Time, CaregiverID FROM Availabilities WHERE Time BETWEEN ? AND ?";
+                String getAppointments = "SELECT AppointmentID, CaregiverID, PatientID, VaccineID, Time FROM Appointments WHERE Time BETWEEN ? AND ?";
+                String getCapacity = "SELECT Time, FreeCaregivers FROM DailyCapacity WHERE Time BETWEEN ? AND ?";
+                try {
+                    ResultSet res = rangeQuery(con, getAvailabilities, from, to);
+                    while (res.next()) {
+                        report.rows++;
+                        long day = res.getDate(1).toLocalDate().toEpochDay();
+                        int caregiverID = res.getInt(2);
+                        free[(int) (day - first)].add(caregiverID);
+                        if (!known(caregivers, unknownCaregivers, Dictionary.CAREGIVERS, caregiverID)) {
+                            report.add(Violation.UNKNOWN_CAREGIVER_AVAILABILITY, "caregiver " + caregiverID + " on " + res.getDate(1));
+                            removals.add(new long[]{day, caregiverID, 1});
+                        }
+                    }
+
+                    res = rangeQuery(con, getAppointments, from, to);
+                    while (res.next()) {
+                        report.rows++;
+                        int appointmentID = res.getInt(1);
+                        int caregiverID = res.getInt(2);
+                        long day = res.getDate(5).toLocalDate().toEpochDay();
+                        int offset = (int) (day - first);
+                        boolean knownCaregiver = known(caregivers, unknownCaregivers, Dictionary.CAREGIVERS, caregiverID);
+                        if (free[offset].contains(caregiverID) && !booked[offset].contains(caregiverID)) {
+                            report.add(Violation.FREE_BUT_BOOKED, "appointment " + appointmentID);
+                            if (knownCaregiver) {
+                                removals.add(new long[]{day, caregiverID, 0});
+                            }
+                        }
+                        if (booked[offset].contains(caregiverID)) {
+                            report.add(Violation.DOUBLE_BOOKED, "appointment " + appointmentID);
+                        }
+                        booked[offset].add(caregiverID);
+                        if (!knownCaregiver) {
+                            report.add(Violation.UNKNOWN_CAREGIVER_APPOINTMENT, "appointment " + appointmentID);
+                        }
+                        if (!known(patients, unknownPatients, Dictionary.PATIENTS, res.getInt(3))) {
+                            report.add(Violation.UNKNOWN_PATIENT, "appointment " + appointmentID);
+                        }
+                        if (!known(vaccines, unknownVaccines, Dictionary.VACCINES, res.getInt(4))) {
+                            report.add(Violation.UNKNOWN_VACCINE, "appointment " + appointmentID);
+                        }
+                    }
+
+                    res = rangeQuery(con, getCapacity, from, to);
+                    while (res.next()) {
+                        report.rows++;
+                        capacity.put(res.getDate(1).toLocalDate().toEpochDay(), res.getInt(2));
+                    }
+                } finally {
+                    cm.closeConnection();
+                }
+            });
+
+            // the count of a day must match its availability rows
+            List<Long> recount = new ArrayList<>();
+            for (long day = first; day <= last; day++) {
+                int offset = (int) (day - first);
+                int expected = free[offset].cardinality();
+                int counted = capacity.getOrDefault(day, 0);
+                if (counted != expected) {
+                    report.add(Violation.CAPACITY_MISMATCH, LocalDate.ofEpochDay(day) + " says " + counted + ", " + expected + " are free");
+                    recount.add(day);
+                }
+                if ((expected > 0 || !booked[offset].isEmpty() || capacity.containsKey(day))
+                        && ShardRouter.shardFor(Date.valueOf(LocalDate.ofEpochDay(day))) != target) {
+                    report.add(Violation.MISPLACED, LocalDate.ofEpochDay(day) + " on " + targetName(target));
+                }
+            }
+
+            if (fix && (!removals.isEmpty() || !recount.isEmpty())) {
+                report.fixed = repair(target, removals, recount);
+            }
+        } catch (SQLException e) {
+            report.failedChunks = 1;
+            report.sample("chunk " + from + " to " + to + " on " + targetName(target) + " failed: " + e.getMessage());
+        }
+        return report;
+    }
+
+    // Users and vaccines are never deleted, an ID that is not in the bitset may just be newer than the load
+    private static boolean known(BitSet ids, Set<Integer> unknown, Dictionary dictionary, int id) throws SQLException {
+        if (ids.get(id)) {
+            return true;
+        }
+        if (unknown.contains(id)) {
+            return false;
+        }
+        if (dictionary.name(id) != null) {
+            return true;
+        }
+        unknown.add(id);
+        return false;
+    }
+
+    private static ResultSet rangeQuery(Connection con, String sql, Date from, Date to) throws SQLException {
+        PreparedStatement statement = con.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+        statement.setFetchSize(FETCH_SIZE);
+        statement.setDate(1, from);
+        statement.setDate(2, to);
+        return statement.executeQuery();
+    }
+
+    /**
+     * Delete the availabilities that must not be there and recount the free caregivers of every day that
+     * changed or was miscounted, in one transaction. An availability that clashed with an appointment is
+     * only deleted while the appointment is still there, and the counts are taken from the rows as they are
+     * now.
+     */
+    private static long repair(int target, List<long[]> removals, List<Long> recount) throws SQLException {
+        Set<Long> days = new TreeSet<>(recount);
+        for (long[] removal : removals) {
+            days.add(removal[0]);
+        }
+        return Retry.transaction(() -> {
+            ConnectionManager cm = new ConnectionManager(target);
+            Connection con = cm.createConnection();
+
+            String removeAvailability = "DELETE FROM Availabilities WHERE Time = ? AND CaregiverID = ? "
+                    + "AND (? = 1 OR EXISTS (SELECT 1 FROM Appointments WHERE Time = ? AND CaregiverID = ?))";
+            try {
+                long fixed = 0;
+                PreparedStatement statement = con.prepareStatement(removeAvailability);
+                List<long[]> removed = new ArrayList<>();
+                for (int i = 0; i < removals.size(); i++) {
+                    long[] removal = removals.get(i);
+                    Date d = Date.valueOf(LocalDate.ofEpochDay(removal[0]));
+                    statement.setDate(1, d);
+                    statement.setInt(2, (int) removal[1]);
+                    statement.setInt(3, (int) removal[2]);
+                    statement.setDate(4, d);
+                    statement.setInt(5, (int) removal[1]);
+                    statement.addBatch();
+                    if ((i + 1) % BATCH_SIZE == 0 || i == removals.size() - 1) {
+                        int[] counts = statement.executeBatch();
+                        for (int j = 0; j < counts.length; j++) {
+                            if (counts[j] > 0) {
+                                fixed++;
+                                removed.add(removals.get(i + 1 - counts.length + j));
+                            }
+                        }
+                    }
+                }
+                for (long day : days) {
+                    DailyCapacity.recount(con, Date.valueOf(LocalDate.ofEpochDay(day)));
+                }
+                for (long[] removal : removed) {
+                    String caregiver = Dictionary.CAREGIVERS.name((int) removal[1]);
+                    if (caregiver != null) {
+                        ChangeBus.publish(ChangeEvent.availabilityRemoved(Date.valueOf(LocalDate.ofEpochDay(removal[0])), caregiver));
+                    }
+                }
+                return fixed + recount.size();
+            } finally {
+                cm.closeConnection();
+            }
+        });
+    }
+
+    private static String targetName(int target) {
+        return target == ConnectionManager.PRIMARY ? "the primary" : "shard " + target;
+    }
+}
@@ -0,0 +1,191 @@
+package scheduler.model;
+
+import scheduler.db.ConnectionManager;
+import scheduler.db.Retry;
+import scheduler.util.Config;
+import scheduler.util.LruCache;
+
+import java.sql.*;
+
+/**
+ * Results of commands that carried a client request ID, so a client that lost track of a reserve, cancel
+ * or add_doses can send it again and get the original result instead of doing the work twice.
+ *
+ * The result is written to the RequestResults table by {@link #record} inside the transaction that does the
+ * work, so the result is stored exactly when the change commits. A repeat is answered from an in-memory
+ * cache, or from the table when another process handled the first attempt. Only changes are recorded. A
+ * request that was turned away, e.g. for lack of doses, changed nothing and simply runs again. Results are
+ * kept for RequestIdTtlMillis, after which the ID may be reused.
+ */
+public class RequestLog {
+
+    public static final int MAX_ID_LENGTH = 64;
+
+    private static final long TTL_MILLIS = Config.getLong("RequestIdTtlMillis", 24 * 60 * 60 * 1000L);
+    // DATEADD takes an int, so the database compares in seconds
+    private static final int TTL_SECONDS = (int) Math.min(TTL_MILLIS / 1000, Integer.MAX_VALUE);
+    private static final LruCache<String, Entry> recent = new LruCache<>(Config.getInt("RequestCacheSize", 10000));
+
+    // the request of the command running on this thread, null for commands sent without an ID
+    private static final ThreadLocal<Request> current = new ThreadLocal<>();
+
+    private static class Entry {
+        private final String command;
+        private final String result;
+        private final long expiresAt;
+
+        private Entry(String command, String result, long expiresAt) {
+            this.command = command;
+            this.result = result;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    // Another attempt with the same request ID committed first, its stored result is the answer
+    public static class DuplicateRequestException extends SQLException {
+        private static final long serialVersionUID = 1L;
+
+        private DuplicateRequestException(SQLException cause) {
+            super("Request was already handled: " + cause.getMessage(), cause.getSQLState(), cause.getErrorCode(), cause);
+        }
+    }
+
+    public static class Request implements AutoCloseable {
+        private final String requester;
+        private final String requestID;
+        private final String command;
+
+        private Request(String requester, String requestID, String command) {
+            this.requester = requester;
+            this.requestID = requestID;
+            this.command = command;
+        }
+
+        @Override
+        public void close() {
+            current.remove();
+        }
+    }
+
+    /**
+     * Returns the stored result when the requester already sent this request ID, otherwise null. Request IDs
+     * are chosen by clients, so they are only unique per requester, e.g. "patient:alice".
+     */
+    public static String lookup(String requester, String requestID, String command) throws SQLException {
+        String key = requester + "\n" + requestID;
+        Entry entry = recent.get(key);
+        if (entry == null || entry.expiresAt < System.currentTimeMillis()) {
+            entry = load(requester, requestID);
+            if (entry == null) {
+                return null;
+            }
+            recent.put(key, entry);
+        }
+        if (!entry.command.equals(command)) {
+            return "Request ID " + requestID + " was already used for " + entry.command;
+        }
+        return entry.result;
+    }
+
+    private static Entry load(String requester, String requestID) throws SQLException {
+        return Retry.idempotent(() -> {
+            ConnectionManager cm = new ConnectionManager();
+            Connection con = cm.createConnection();
+
+            String getResult = "SELECT Command, Result, DATEDIFF_BIG(millisecond, SYSUTCDATETIME(), CreatedAt) "
+                    + "FROM RequestResults WHERE Requester = ? AND RequestID = ? "
+                    + "AND CreatedAt >= DATEADD(second, -?, SYSUTCDATETIME())";
+            try {
+                PreparedStatement statement = con.prepareStatement(getResult);
+                statement.setString(1, requester);
+                statement.setString(2, requestID);
+                statement.setInt(3, TTL_SECONDS);
+                ResultSet res = statement.executeQuery();
+                if (!res.next()) {
+                    return null;
+                }
+                // the age comes from the database clock, the expiry is kept on ours
+                long expiresAt = System.currentTimeMillis() + res.getLong(3) + TTL_MILLIS;
+                return new Entry(res.getString(1), res.getString(2), expiresAt);
+            } finally {
+                cm.closeConnection();
+            }
+        });
+    }
+
+    // Make the request the one recorded by this thread's next record call, until the returned handle is closed
+    public static Request begin(String requester, String requestID, String command) {
+        Request request = new Request(requester, requestID, command);
+        current.set(request);
+        return request;
+    }
+
+    /**
+     * Store the result of the thread's request, if it has one. Call this inside the transaction that made the
+     * change. If another attempt with the same ID committed first, the insert fails on the primary key with a
+     * {@link DuplicateRequestException} and takes this transaction down with it, so the change is never made
+     * twice. Once the transaction has rolled back, {@link #lookup} returns the result of the attempt that won.
+     */
+    public static void record(String result) throws SQLException {
+        Request request = current.get();
+        if (request == null) {
+            return;
+        }
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+
+        // an expired result no longer holds on to its ID
+        String removeExpired = "DELETE FROM RequestResults WHERE Requester = ? AND RequestID = ? "
+                + "AND CreatedAt < DATEADD(second, -?, SYSUTCDATETIME())";
+        String addResult = "INSERT INTO RequestResults (Requester, RequestID, Command, Result) VALUES (?, ?, ?, ?)";
+        try {
+            PreparedStatement statement = con.prepareStatement(removeExpired);
+            statement.setString(1, request.requester);
+            statement.setString(2, request.requestID);
+            statement.setInt(3, TTL_SECONDS);
+            statement.executeUpdate();
+
+            statement = con.prepareStatement(addResult);
+            statement.setString(1, request.requester);
+            statement.setString(2, request.requestID);
+            statement.setString(3, request.command);
+            statement.setString(4, result);
+            statement.executeUpdate();
+        } catch (SQLException e) {
+            // 2627 is a primary key violation, 2601 a duplicate in a unique index
+            if (e.getErrorCode() == 2627 || e.getErrorCode() == 2601) {
+                throw new DuplicateRequestException(e);
+            }
+            throw e;
+        } finally {
+            cm.closeConnection();
+        }
+        Entry entry = new Entry(request.command, result, System.currentTimeMillis() + TTL_MILLIS);
+        ConnectionManager.afterCompletion(committed -> {
+            if (committed) {
+                recent.put(request.requester + "\n" + request.requestID, entry);
+            }
+        });
+    }
+
+    // Delete the results older than the TTL, returns how many were removed
+    public static int purge() throws SQLException {
+        return Retry.idempotent(() -> {
+            ConnectionManager cm = new ConnectionManager();
+            Connection con = cm.createConnection();
+
+            String removeExpired = "DELETE FROM RequestResults WHERE CreatedAt < DATEADD(second, -?, SYSUTCDATETIME())";
+            try {
+                PreparedStatement statement = con.prepareStatement(removeExpired);
+                statement.setInt(1, TTL_SECONDS);
+                return statement.executeUpdate();
+            } finally {
+                cm.closeConnection();
+            }
+        });
+    }
+
+    public static String stats() {
+        return "request results: cached[" + recent.stats() + "]";
+    }
+}
@@ -0,0 +1,82 @@
+package scheduler.model;
+
+import scheduler.db.ConnectionManager;
+import scheduler.db.Retry;
+import scheduler.util.BloomFilter;
+import scheduler.util.Config;
+
+import java.sql.*;
+import java.util.Locale;
+
+/**
+ * In-memory Bloom filter over the usernames of one user table, so that checking a brand new username does
+ * not need a database round trip. A miss means the username is definitely free; a hit still has to be
+ * confirmed against the table, and the primary key remains the final guard against duplicates.
+ */
+public class UsernameFilter {
+
+    public static final UsernameFilter PATIENTS = new UsernameFilter("Patients");
+    public static final UsernameFilter CAREGIVERS = new UsernameFilter("Caregivers");
+
+    private static final int FETCH_SIZE = 10000;
+
+    private final String table;
+    private volatile BloomFilter filter = null;
+    // until the initial load completes every username must be treated as possibly taken
+    private volatile boolean loaded = false;
+
+    private UsernameFilter(String table) {
+        this.table = table;
+    }
+
+    // Stream every username of the table into a freshly sized filter
+    public void load() throws SQLException {
+        long capacity = Config.getLong("UsernameFilterCapacity", 1_000_000L);
+        double falsePositiveRate = Config.getDouble("UsernameFilterFalsePositiveRate", 0.01);
+        loaded = false;
+        if (capacity <= 0 || !(falsePositiveRate > 0 && falsePositiveRate < 1)) {
+            // without a filter mightExist always answers true, so every check goes to the database
+            filter = null;
+            System.out.println("Invalid UsernameFilterCapacity or UsernameFilterFalsePositiveRate, "
+                    + "every username check on " + table + " will query the database");
+            return;
+        }
+        filter = new BloomFilter(capacity, falsePositiveRate);
+
+        Retry.idempotent(() -> {
+            ConnectionManager cm = new ConnectionManager();
+            Connection con = cm.createConnection();
+
+            String getUsernames = "SELECT Username FROM " + table;
+            try {
+                PreparedStatement statement = con.prepareStatement(getUsernames,
+                        ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+                statement.setFetchSize(FETCH_SIZE);
+                ResultSet res = statement.executeQuery();
+                while (res.next()) {
+                    add(res.getString(1));
+                }
+                loaded = true;
+            } finally {
+                cm.closeConnection();
+            }
+        });
+    }
+
+    public boolean mightExist(String username) {
+        BloomFilter current = filter;
+        return !loaded || current == null || current.mightContain(normalize(username));
+    }
+
+    void add(String username) {
+        BloomFilter current = filter;
+        if (current != null) {
+            current.add(normalize(username));
+        }
+    }
+
+    // usernames are compared case-insensitively by the default SQL Server collation
+    private static String normalize(String username) {
+        return username.toLowerCase(Locale.ROOT);
+    }
+}
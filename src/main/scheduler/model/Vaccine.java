@@ -1,6 +1,10 @@
 package scheduler.model;
 
 import scheduler.db.ConnectionManager;
+import scheduler.db.Cursor;
+import scheduler.db.Retry;
+import scheduler.event.ChangeBus;
+import scheduler.event.ChangeEvent;
 
 import java.sql.Connection;
 import java.sql.PreparedStatement;
@@ -21,21 +25,33 @@ public class Vaccine {
         this.availableDoses = getter.availableDoses;
     }
 
+    // Getters
+    public String getVaccineName() {
+        return vaccineName;
+    }
+
+    public int getAvailableDoses() {
+        return availableDoses;
+    }
+
     public void saveToDB() throws SQLException {
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
-
-        String addDoses = "INSERT INTO vaccines VALUES (?, ?)";
-        try {
-            PreparedStatement statement = con.prepareStatement(addDoses);
-            statement.setString(1, this.vaccineName);
-            statement.setInt(2, this.availableDoses);
-            statement.executeUpdate();
-        } catch (SQLException e) {
-            throw new SQLException();
-        } finally {
-            cm.closeConnection();
-        }
+        Retry.nonIdempotent(() -> {
+            ConnectionManager cm = new ConnectionManager();
+            Connection con = cm.createConnection();
+
+            String addDoses = "INSERT INTO vaccines (Name, Doses) OUTPUT INSERTED.VaccineID VALUES (?, ?)";
+            try {
+                PreparedStatement statement = con.prepareStatement(addDoses);
+                statement.setString(1, this.vaccineName);
+                statement.setInt(2, this.availableDoses);
+                ResultSet res = statement.executeQuery();
+                res.next();
+                Dictionary.VACCINES.put(res.getInt(1), this.vaccineName);
+            } finally {
+                cm.closeConnection();
+            }
+        });
+        ChangeBus.publish(ChangeEvent.dosesChanged(this.vaccineName, this.availableDoses));
     }
 
     // Increment the available doses
@@ -45,20 +61,22 @@ public class Vaccine {
         }
         this.availableDoses += num;
 
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
-
-        String removeAvailability  = "UPDATE vaccines SET Doses = ? WHERE name = ?;";
-        try {
-            PreparedStatement statement = con.prepareStatement(removeAvailability);
-            statement.setInt(1, this.availableDoses);
-            statement.setString(2, this.vaccineName);
-            statement.executeUpdate();
-        } catch (SQLException e) {
-            throw new SQLException();
-        } finally {
-            cm.closeConnection();
-        }
+        // relative update, so concurrent changes from other processes are not overwritten
+        Retry.nonIdempotent(() -> {
+            ConnectionManager cm = new ConnectionManager();
+            Connection con = cm.createConnection();
+
+            String addDoses = "UPDATE vaccines SET Doses = Doses + ? WHERE name = ?;";
+            try {
+                PreparedStatement statement = con.prepareStatement(addDoses);
+                statement.setInt(1, num);
+                statement.setString(2, this.vaccineName);
+                statement.executeUpdate();
+            } finally {
+                cm.closeConnection();
+            }
+        });
+        ChangeBus.publish(ChangeEvent.dosesChanged(this.vaccineName, num));
     }
 
     // Decrement the available doses
@@ -67,20 +85,32 @@ public class Vaccine {
             throw new IllegalArgumentException("Not enough available doses!");
         }
         this.availableDoses -= num;
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
-
-        String removeAvailability  = "UPDATE vaccines SET Doses = ? WHERE name = ?;";
-        try {
-            PreparedStatement statement = con.prepareStatement(removeAvailability);
-            statement.setInt(1, this.availableDoses);
-            statement.setString(2, this.vaccineName);
-            statement.executeUpdate();
-        } catch (SQLException e) {
-            throw new SQLException();
-        } finally {
-            cm.closeConnection();
-        }
+        // conditional relative update: another process may have taken the last doses since we read them
+        Retry.nonIdempotent(() -> {
+            ConnectionManager cm = new ConnectionManager();
+            Connection con = cm.createConnection();
+
+            String removeDoses = "UPDATE vaccines SET Doses = Doses - ? WHERE name = ? AND Doses >= ?;";
+            try {
+                PreparedStatement statement = con.prepareStatement(removeDoses);
+                statement.setInt(1, num);
+                statement.setString(2, this.vaccineName);
+                statement.setInt(3, num);
+                if (statement.executeUpdate() == 0) {
+                    throw new IllegalArgumentException("Not enough available doses!");
+                }
+            } finally {
+                cm.closeConnection();
+            }
+        });
+        ChangeBus.publish(ChangeEvent.dosesChanged(this.vaccineName, -num));
+    }
+
+    // Every vaccine with its doses, built as the cursor advances, close it when done
+    public static Cursor<Vaccine> openAll() throws SQLException {
+        String getVaccines = "SELECT Name, Doses FROM Vaccines";
+        return new Cursor.CursorBuilder<>(ConnectionManager.PRIMARY, getVaccines,
+                res -> new VaccineBuilder(res.getString("Name"), res.getInt("Doses")).build()).open();
     }
 
     @Override
@@ -114,24 +144,25 @@ public class Vaccine {
         }
 
         public Vaccine get() throws SQLException {
-            ConnectionManager cm = new ConnectionManager();
-            Connection con = cm.createConnection();
-
-            String getVaccine = "SELECT Name, Doses FROM Vaccines WHERE Name = ?";
-            try {
-                PreparedStatement statement = con.prepareStatement(getVaccine);
-                statement.setString(1, this.vaccineName);
-                ResultSet resultSet = statement.executeQuery();
-                while (resultSet.next()) {
-                    this.availableDoses = resultSet.getInt("Doses");
-                    return new Vaccine(this);
+            return Retry.idempotent(() -> {
+                ConnectionManager cm = new ConnectionManager();
+                Connection con = cm.createConnection();
+
+                String getVaccine = "SELECT VaccineID, Name, Doses FROM Vaccines WHERE Name = ?";
+                try {
+                    PreparedStatement statement = con.prepareStatement(getVaccine);
+                    statement.setString(1, this.vaccineName);
+                    ResultSet resultSet = statement.executeQuery();
+                    while (resultSet.next()) {
+                        this.availableDoses = resultSet.getInt("Doses");
+                        Dictionary.VACCINES.put(resultSet.getInt("VaccineID"), resultSet.getString("Name"));
+                        return new Vaccine(this);
+                    }
+                    return null;
+                } finally {
+                    cm.closeConnection();
                 }
-                return null;
-            } catch (SQLException e) {
-                throw new SQLException();
-            } finally {
-                cm.closeConnection();
-            }
+            });
         }
     }
 }
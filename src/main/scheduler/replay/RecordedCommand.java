@@ -0,0 +1,128 @@
+package scheduler.replay;
+
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * One line of a recording: a command of a session, when it started, how long it took, how it ended and the
+ * start of what it printed. Recordings store these tab-separated, one gzipped file per session.
+ */
+public class RecordedCommand {
+
+    // longest printed output kept per command, enough to tell outcomes apart
+    static final int OUTPUT_LIMIT = 120;
+
+    private final String session;
+    private final long seq;
+    private final long startMillis;
+    private final long durationMicros;
+    private final String outcome;
+    private final String output;
+    private final String line;
+
+    public RecordedCommand(String session, long seq, long startMillis, long durationMicros, String outcome,
+                           String output, String line) {
+        this.session = session;
+        this.seq = seq;
+        this.startMillis = startMillis;
+        this.durationMicros = durationMicros;
+        this.outcome = outcome;
+        this.output = output;
+        this.line = line;
+    }
+
+    // Getters
+    public String getSession() {
+        return session;
+    }
+
+    public long getSeq() {
+        return seq;
+    }
+
+    public long getStartMillis() {
+        return startMillis;
+    }
+
+    public long getDurationMicros() {
+        return durationMicros;
+    }
+
+    public String getOutcome() {
+        return outcome;
+    }
+
+    public String getOutput() {
+        return output;
+    }
+
+    public String getLine() {
+        return line;
+    }
+
+    // The operation name, the first token of the line
+    public String getCommand() {
+        int space = line.indexOf(' ');
+        return space < 0 ? line : line.substring(0, space);
+    }
+
+    String format() {
+        return seq + "\t" + startMillis + "\t" + durationMicros + "\t" + outcome + "\t" + output + "\t" + line;
+    }
+
+    static RecordedCommand parse(String session, String text) {
+        String[] fields = text.split("\t", 6);
+        if (fields.length != 6) {
+            throw new IllegalArgumentException("Invalid recording line: " + text);
+        }
+        return new RecordedCommand(session, Long.parseLong(fields[0]), Long.parseLong(fields[1]),
+                Long.parseLong(fields[2]), fields[3], fields[4], fields[5]);
+    }
+
+    // Collapse what a command printed into one bounded field
+    static String clean(String output) {
+        String single = output.trim().replaceAll("\\s+", " ");
+        return single.length() > OUTPUT_LIMIT ? single.substring(0, OUTPUT_LIMIT) : single;
+    }
+
+    // The session recorded in a file, from its name
+    public static String sessionOf(Path file) {
+        String name = file.getFileName().toString();
+        return name.substring(0, name.length() - Recorder.SUFFIX.length());
+    }
+
+    // Every session file of a recording directory
+    public static List<Path> sessionFiles(Path dir) throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (var listing = Files.list(dir)) {
+            listing.filter(f -> f.getFileName().toString().endsWith(Recorder.SUFFIX)).sorted().forEach(files::add);
+        }
+        return files;
+    }
+
+    // The commands of one session file in the order they ran
+    public static List<RecordedCommand> read(Path file) throws IOException {
+        String session = sessionOf(file);
+        List<RecordedCommand> commands = new ArrayList<>();
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(
+                new GZIPInputStream(Files.newInputStream(file)), StandardCharsets.UTF_8))) {
+            String text;
+            while ((text = in.readLine()) != null) {
+                if (!text.isEmpty() && !text.startsWith("#")) {
+                    commands.add(parse(session, text));
+                }
+            }
+        } catch (EOFException e) {
+            // the recording process died before closing the file, keep what was flushed
+        }
+        return commands;
+    }
+}
@@ -0,0 +1,197 @@
+package scheduler.replay;
+
+import scheduler.command.Command;
+import scheduler.util.Config;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.UUID;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Records every command this process runs to RecordDir/&lt;session&gt;.rec.gz, so the traffic can be replayed
+ * later with the {@link Replayer}. A session is one run of the application, named by RecordSession or at
+ * random. Each command is written with its start time, duration, outcome and the start of what it printed,
+ * and flushed right away, so a recording survives the process dying. A process that reuses the session
+ * name of an existing file appends to it and numbers its commands on from the last one recorded there, so
+ * every command of a session keeps a distinct number.
+ *
+ * Passwords never reach the file. Each is replaced by a synthetic password derived with HMAC from the
+ * username and the real password, keyed by RecordSecret, so a login in one session still matches the
+ * account created in another. Without RecordSecret the key is random and only holds within one session.
+ */
+public class Recorder {
+
+    static final String SUFFIX = ".rec.gz";
+    private static final String HMAC = "HmacSHA256";
+    // bytes of the HMAC kept in a synthetic password
+    private static final int SYNTHETIC_BYTES = 12;
+
+    private static Writer out = null;
+    private static String session = null;
+    private static long seq = 0;
+    private static Mac mac = null;
+    private static Capture capture = null;
+
+    // Start recording if RecordDir is set, otherwise recording stays off and costs nothing
+    public static synchronized void start() {
+        String dir = Config.getString("RecordDir", null);
+        if (dir == null || out != null) {
+            return;
+        }
+        session = Config.getString("RecordSession", UUID.randomUUID().toString().substring(0, 8));
+        try {
+            byte[] key;
+            String secret = Config.getString("RecordSecret", null);
+            if (secret != null) {
+                key = secret.getBytes(StandardCharsets.UTF_8);
+            } else {
+                key = new byte[32];
+                new SecureRandom().nextBytes(key);
+            }
+            mac = Mac.getInstance(HMAC);
+            mac.init(new SecretKeySpec(key, HMAC));
+
+            Path file = Paths.get(dir).resolve(session + SUFFIX);
+            Files.createDirectories(file.getParent());
+            seq = nextSeq(file);
+            // appending adds another gzip member, which readers see as one stream
+            OutputStream stream = Files.newOutputStream(file, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            out = new OutputStreamWriter(new GZIPOutputStream(stream, true), StandardCharsets.UTF_8);
+            out.write("# session " + session + System.lineSeparator());
+            out.flush();
+        } catch (IOException | GeneralSecurityException | IllegalArgumentException e) {
+            // an existing file that cannot be read is not appended to, its numbering is unknown
+            System.out.println("Could not start recording to " + dir + ": " + e.getMessage());
+            out = null;
+            return;
+        }
+        capture = new Capture(System.out);
+        System.setOut(new PrintStream(capture, true));
+        Runtime.getRuntime().addShutdownHook(new Thread(Recorder::close));
+    }
+
+    // The number of the next command of a session file, one past the highest already in it
+    static long nextSeq(Path file) throws IOException {
+        long next = 0;
+        if (Files.exists(file)) {
+            for (RecordedCommand recorded : RecordedCommand.read(file)) {
+                next = Math.max(next, recorded.getSeq() + 1);
+            }
+        }
+        return next;
+    }
+
+    public static boolean isRecording() {
+        return out != null;
+    }
+
+    // Call before a command runs, so only what it prints is kept with it
+    public static void begin() {
+        if (capture != null) {
+            capture.reset();
+        }
+    }
+
+    // command is null for an unknown operation name, then every argument is redacted
+    public static synchronized void record(Command command, String[] tokens, long startMillis, long durationNanos,
+                                           String outcome) {
+        if (out == null) {
+            return;
+        }
+        StringBuilder line = new StringBuilder(tokens[0]);
+        for (int i = 1; i < tokens.length; i++) {
+            line.append(' ');
+            if (command == null) {
+                line.append('?');
+            } else if (command.isSecretArg(i)) {
+                line.append(synthetic(tokens[1], tokens[i]));
+            } else {
+                line.append(tokens[i]);
+            }
+        }
+        RecordedCommand recorded = new RecordedCommand(session, seq++, startMillis, durationNanos / 1000, outcome,
+                RecordedCommand.clean(capture.captured()), line.toString());
+        try {
+            out.write(recorded.format());
+            out.write(System.lineSeparator());
+            out.flush();
+        } catch (IOException e) {
+            System.out.println("Recording stopped: " + e.getMessage());
+            close();
+        }
+    }
+
+    private static String synthetic(String username, String password) {
+        byte[] digest = mac.doFinal((username + "\0" + password).getBytes(StandardCharsets.UTF_8));
+        byte[] kept = new byte[SYNTHETIC_BYTES];
+        System.arraycopy(digest, 0, kept, 0, SYNTHETIC_BYTES);
+        return "pw" + Base64.getUrlEncoder().withoutPadding().encodeToString(kept);
+    }
+
+    public static synchronized void close() {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.close();
+        } catch (IOException e) {
+            // the lines were flushed as they were written
+        }
+        out = null;
+    }
+
+    // Passes everything printed through, keeping the first bytes since the last reset
+    private static class Capture extends OutputStream {
+        private final OutputStream target;
+        private final ByteArrayOutputStream kept = new ByteArrayOutputStream();
+
+        private Capture(OutputStream target) {
+            this.target = target;
+        }
+
+        synchronized void reset() {
+            kept.reset();
+        }
+
+        synchronized String captured() {
+            return kept.toString(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public synchronized void write(int b) throws IOException {
+            target.write(b);
+            if (kept.size() < RecordedCommand.OUTPUT_LIMIT * 4) {
+                kept.write(b);
+            }
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            target.write(b, off, len);
+            int room = RecordedCommand.OUTPUT_LIMIT * 4 - kept.size();
+            if (room > 0) {
+                kept.write(b, off, Math.min(room, len));
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            target.flush();
+        }
+    }
+}
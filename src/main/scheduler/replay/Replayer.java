@@ -0,0 +1,187 @@
+package scheduler.replay;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Replays a recording made by the {@link Recorder} and compares two recordings.
+ *
+ *   java scheduler.replay.Replayer replay &lt;recording_dir&gt; &lt;output_dir&gt; [speed|max]
+ *   java scheduler.replay.Replayer compare &lt;baseline_dir&gt; &lt;candidate_dir&gt;
+ *
+ * A replay starts one scheduler process per recorded session, as in production where every user runs their
+ * own, and types each session's commands into it at their recorded offsets divided by the speed, or as fast
+ * as the process reads them with max. The processes inherit this environment, so point Server and DBName at
+ * a scratch database, and record themselves into the output directory under the original session names. The
+ * output directory is then a recording of its own that compare matches command by command against the
+ * baseline, reporting outcomes that changed and latency percentiles per command.
+ */
+public class Replayer {
+
+    // differing commands listed by compare, the rest are only counted
+    private static final int MISMATCH_PRINT_LIMIT = 10;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length >= 3 && args[0].equals("replay")) {
+            double speed = args.length > 3 ? parseSpeed(args[3]) : 1;
+            replay(Paths.get(args[1]), Paths.get(args[2]), speed);
+        } else if (args.length == 3 && args[0].equals("compare")) {
+            compare(Paths.get(args[1]), Paths.get(args[2]));
+        } else {
+            System.out.println("Usage: Replayer replay <recording_dir> <output_dir> [speed|max]");
+            System.out.println("       Replayer compare <baseline_dir> <candidate_dir>");
+        }
+    }
+
+    // 0 means no waiting between commands
+    private static double parseSpeed(String speed) {
+        if (speed.equals("max")) {
+            return 0;
+        }
+        double parsed = Double.parseDouble(speed.endsWith("x") ? speed.substring(0, speed.length() - 1) : speed);
+        if (parsed <= 0) {
+            throw new IllegalArgumentException("Speed must be positive: " + speed);
+        }
+        return parsed;
+    }
+
+    public static void replay(Path recording, Path output, double speed) throws IOException, InterruptedException {
+        Map<String, List<RecordedCommand>> sessions = new TreeMap<>();
+        long firstMillis = Long.MAX_VALUE;
+        for (Path file : RecordedCommand.sessionFiles(recording)) {
+            List<RecordedCommand> commands = RecordedCommand.read(file);
+            if (!commands.isEmpty()) {
+                sessions.put(RecordedCommand.sessionOf(file), commands);
+                firstMillis = Math.min(firstMillis, commands.get(0).getStartMillis());
+            }
+        }
+        if (sessions.isEmpty()) {
+            System.out.println("Nothing recorded in " + recording);
+            return;
+        }
+        Files.createDirectories(output);
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+
+        // start every process first, the commands of a slow starter wait in its input
+        List<Thread> feeders = new ArrayList<>();
+        List<Process> processes = new ArrayList<>();
+        long replayStart = System.currentTimeMillis();
+        for (Map.Entry<String, List<RecordedCommand>> session : sessions.entrySet()) {
+            ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                    "scheduler.Scheduler");
+            builder.environment().put("RecordDir", output.toString());
+            builder.environment().put("RecordSession", session.getKey());
+            builder.redirectErrorStream(true);
+            builder.redirectOutput(output.resolve(session.getKey() + ".out").toFile());
+            Process process = builder.start();
+            processes.add(process);
+            final long origin = firstMillis;
+            Thread feeder = new Thread(() -> feed(process, session.getValue(), origin, replayStart, speed),
+                    "replay-" + session.getKey());
+            feeder.start();
+            feeders.add(feeder);
+        }
+        for (Thread feeder : feeders) {
+            feeder.join();
+        }
+        for (Process process : processes) {
+            process.waitFor();
+        }
+        long commands = sessions.values().stream().mapToLong(List::size).sum();
+        System.out.println("Replayed " + commands + " commands of " + sessions.size() + " sessions in "
+                + (System.currentTimeMillis() - replayStart) + " ms");
+    }
+
+    private static void feed(Process process, List<RecordedCommand> commands, long origin, long replayStart,
+                             double speed) {
+        try (Writer in = new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8)) {
+            for (RecordedCommand command : commands) {
+                if (speed > 0) {
+                    long due = replayStart + (long) ((command.getStartMillis() - origin) / speed);
+                    long wait = due - System.currentTimeMillis();
+                    if (wait > 0) {
+                        Thread.sleep(wait);
+                    }
+                }
+                in.write(command.getLine());
+                in.write(System.lineSeparator());
+                in.flush();
+            }
+            // closing the input makes the scheduler quit once it has run everything
+        } catch (IOException e) {
+            System.out.println("Session stopped reading its commands: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public static void compare(Path baseline, Path candidate) throws IOException {
+        Map<String, RecordedCommand> expected = new HashMap<>();
+        for (Path file : RecordedCommand.sessionFiles(baseline)) {
+            for (RecordedCommand command : RecordedCommand.read(file)) {
+                expected.put(command.getSession() + "#" + command.getSeq(), command);
+            }
+        }
+        Map<String, List<Long>> baselineTimes = new TreeMap<>();
+        Map<String, List<Long>> candidateTimes = new HashMap<>();
+        int compared = 0;
+        int outcomes = 0;
+        int outputs = 0;
+        List<String> examples = new ArrayList<>();
+        for (Path file : RecordedCommand.sessionFiles(candidate)) {
+            for (RecordedCommand actual : RecordedCommand.read(file)) {
+                RecordedCommand original = expected.remove(actual.getSession() + "#" + actual.getSeq());
+                if (original == null) {
+                    continue;
+                }
+                compared++;
+                String name = original.getCommand();
+                baselineTimes.computeIfAbsent(name, k -> new ArrayList<>()).add(original.getDurationMicros());
+                candidateTimes.computeIfAbsent(name, k -> new ArrayList<>()).add(actual.getDurationMicros());
+                boolean outcomeDiffers = !original.getOutcome().equals(actual.getOutcome());
+                boolean outputDiffers = !original.getOutput().equals(actual.getOutput());
+                if (outcomeDiffers) {
+                    outcomes++;
+                } else if (outputDiffers) {
+                    outputs++;
+                }
+                if ((outcomeDiffers || outputDiffers) && examples.size() < MISMATCH_PRINT_LIMIT) {
+                    examples.add(original.getSession() + "#" + original.getSeq() + " " + original.getLine()
+                            + System.lineSeparator() + "    baseline:  " + original.getOutcome() + " " + original.getOutput()
+                            + System.lineSeparator() + "    candidate: " + actual.getOutcome() + " " + actual.getOutput());
+                }
+            }
+        }
+        System.out.println("Compared " + compared + " commands, " + expected.size() + " not replayed, " + outcomes
+                + " with a different outcome, " + outputs + " with different output");
+        for (String example : examples) {
+            System.out.println(example);
+        }
+        System.out.println(String.format("%-28s %8s %22s %22s", "command", "count", "baseline p50/p95 ms",
+                "candidate p50/p95 ms"));
+        for (String name : baselineTimes.keySet()) {
+            List<Long> before = baselineTimes.get(name);
+            List<Long> after = candidateTimes.get(name);
+            System.out.println(String.format("%-28s %8d %10.1f /%10.1f %10.1f /%10.1f", name, before.size(),
+                    percentile(before, 0.5), percentile(before, 0.95), percentile(after, 0.5), percentile(after, 0.95)));
+        }
+    }
+
+    // Nearest-rank percentile of durations in microseconds, in milliseconds
+    private static double percentile(List<Long> micros, double p) {
+        List<Long> sorted = new ArrayList<>(micros);
+        sorted.sort(null);
+        int rank = (int) Math.ceil(p * sorted.size());
+        return sorted.get(Math.max(rank - 1, 0)) / 1000.0;
+    }
+}
@@ -0,0 +1,31 @@
+package scheduler.trace;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("scheduler.Command")
+@Label("Scheduler Command")
+@Category("Scheduler")
+@Description("One command entered at the scheduler prompt")
+@StackTrace(false)
+public class CommandEvent extends Event {
+
+    public static final String COMPLETED = "completed";
+    public static final String REJECTED = "rejected";
+    public static final String FAILED = "failed";
+
+    @Label("Command")
+    public String command;
+
+    @Label("Role")
+    @Description("Role of the session that entered the command")
+    public String role;
+
+    @Label("Outcome")
+    @Description("completed, rejected by validation, or failed with an exception")
+    public String outcome;
+}
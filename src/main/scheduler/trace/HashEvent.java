@@ -0,0 +1,22 @@
+package scheduler.trace;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("scheduler.Hash")
+@Label("Password Hash")
+@Category("Scheduler")
+@Description("One password hash computed for a login or a new account")
+@StackTrace(false)
+public class HashEvent extends Event {
+
+    @Label("Algorithm")
+    public String algorithm;
+
+    @Label("Iterations")
+    public int iterations;
+}
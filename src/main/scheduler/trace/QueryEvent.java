@@ -0,0 +1,33 @@
+package scheduler.trace;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("scheduler.Query")
+@Label("Scheduler Query")
+@Category({"Scheduler", "JDBC"})
+@Description("One statement executed on a database connection")
+@StackTrace(false)
+public class QueryEvent extends Event {
+
+    @Label("Statement ID")
+    @Description("Hash of the SQL text, the same for every execution of the same statement")
+    public String statementId;
+
+    @Label("SQL")
+    public String sql;
+
+    @Label("Method")
+    public String method;
+
+    @Label("Row Count")
+    @Description("Rows changed by an update or batch, -1 for queries whose rows are read afterwards")
+    public long rowCount;
+
+    @Label("Failed")
+    public boolean failed;
+}
@@ -0,0 +1,56 @@
+package scheduler.trace;
+
+import scheduler.util.Config;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The most recent traces that took at least SlowLogThresholdMillis, in a fixed-size ring. Writers claim a
+ * slot with one atomic increment and overwrite the oldest entry, so recording never blocks a command.
+ */
+public class SlowLog {
+
+    private static final long THRESHOLD_NANOS = Config.getLong("SlowLogThresholdMillis", 200) * 1_000_000;
+    private static final int CAPACITY = Math.max(Config.getInt("SlowLogSize", 128), 1);
+
+    private static final AtomicReferenceArray<Trace> entries = new AtomicReferenceArray<>(CAPACITY);
+    private static final AtomicLong next = new AtomicLong();
+
+    static void offer(Trace trace) {
+        if (trace.getDurationNanos() < THRESHOLD_NANOS) {
+            return;
+        }
+        entries.set((int) (next.getAndIncrement() % CAPACITY), trace);
+    }
+
+    // The recorded traces, slowest first
+    public static List<Trace> slowest(int limit) {
+        List<Trace> traces = new ArrayList<>();
+        for (int i = 0; i < CAPACITY; i++) {
+            Trace trace = entries.get(i);
+            if (trace != null) {
+                traces.add(trace);
+            }
+        }
+        traces.sort(Comparator.comparingLong(Trace::getDurationNanos).reversed());
+        return traces.subList(0, Math.min(limit, traces.size()));
+    }
+
+    public static void export(Path path) throws IOException {
+        try (Writer out = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+            for (Trace trace : slowest(CAPACITY)) {
+                out.write(trace.format());
+                out.write(System.lineSeparator());
+            }
+        }
+    }
+}
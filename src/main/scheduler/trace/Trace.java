@@ -0,0 +1,115 @@
+package scheduler.trace;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Timing of one command: when it started, how long it took and a span for each connection acquired,
+ * statement prepared and executed and password hashed while it ran. The trace of the running command is
+ * kept per thread, so the model classes can add spans without passing anything around. Finished traces
+ * that took longer than the slow-log threshold are kept in the {@link SlowLog}.
+ */
+public class Trace {
+
+    private static final ThreadLocal<Trace> current = new ThreadLocal<>();
+    private static final Span NO_SPAN = new Span(null, null, null);
+
+    private final String name;
+    private final Instant startedAt = Instant.now();
+    private final long startNanos = System.nanoTime();
+    private long durationNanos = -1;
+    private final List<Span> spans = new ArrayList<>();
+
+    private Trace(String name) {
+        this.name = name;
+    }
+
+    // Start tracing a command on this thread, replacing any trace that was left open
+    public static Trace start(String name) {
+        Trace trace = new Trace(name);
+        current.set(trace);
+        return trace;
+    }
+
+    public void finish() {
+        durationNanos = System.nanoTime() - startNanos;
+        if (current.get() == this) {
+            current.remove();
+        }
+        SlowLog.offer(this);
+    }
+
+    // Open a span in the thread's trace, close it when the operation is done. Without a trace this costs nothing.
+    public static Span span(String name, String detail) {
+        Trace trace = current.get();
+        if (trace == null) {
+            return NO_SPAN;
+        }
+        Span span = new Span(trace, name, detail);
+        trace.spans.add(span);
+        return span;
+    }
+
+    // Getters
+    public String getName() {
+        return name;
+    }
+
+    public Instant getStartedAt() {
+        return startedAt;
+    }
+
+    public long getDurationNanos() {
+        return durationNanos;
+    }
+
+    public List<Span> getSpans() {
+        return spans;
+    }
+
+    public String format() {
+        StringBuilder out = new StringBuilder();
+        out.append(String.format("%s %.1f ms at %s%n", name, durationNanos / 1e6, startedAt));
+        for (Span span : spans) {
+            out.append(String.format("    +%.1f ms %s %.1f ms", (span.startNanos - startNanos) / 1e6, span.name,
+                    span.durationNanos / 1e6));
+            if (span.error != null) {
+                out.append(" failed: ").append(span.error);
+            }
+            if (span.detail != null) {
+                out.append(" ").append(span.detail);
+            }
+            out.append(System.lineSeparator());
+        }
+        return out.toString();
+    }
+
+    public static class Span implements AutoCloseable {
+        private final Trace trace;
+        private final String name;
+        private final String detail;
+        private final long startNanos = System.nanoTime();
+        private long durationNanos = -1;
+        private String error = null;
+
+        private Span(Trace trace, String name, String detail) {
+            this.trace = trace;
+            this.name = name;
+            this.detail = detail;
+        }
+
+        public void fail(Throwable e) {
+            if (trace != null) {
+                error = e.getClass().getSimpleName();
+            }
+        }
+
+        @Override
+        public void close() {
+            if (trace != null) {
+                durationNanos = System.nanoTime() - startNanos;
+            }
+        }
+    }
+}
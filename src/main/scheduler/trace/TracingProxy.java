@@ -0,0 +1,122 @@
+package scheduler.trace;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+
+/**
+ * Wraps a JDBC connection so every statement prepared and executed on it becomes a span of the current
+ * trace, with its SQL, and every execution a {@link QueryEvent} for flight recordings. Each execution's
+ * duration is also passed to the connection's {@link Listener}. Bound parameter values are never recorded,
+ * only how many there were, since they can hold usernames and password hashes.
+ */
+public class TracingProxy implements InvocationHandler {
+
+    // Told how long each execution on the connection took and whether it threw
+    public interface Listener {
+        void executed(long nanos, boolean failed);
+    }
+
+    private final Object target;
+    private final Listener listener;
+    // SQL of a wrapped statement, null for the connection itself
+    private final String sql;
+    private int parameters = 0;
+    private int batched = 0;
+
+    private TracingProxy(Object target, String sql, Listener listener) {
+        this.target = target;
+        this.sql = sql;
+        this.listener = listener;
+    }
+
+    public static Connection wrap(Connection con, Listener listener) {
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                new Class<?>[]{Connection.class}, new TracingProxy(con, null, listener));
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        String name = method.getName();
+        if (sql == null && name.equals("prepareStatement") && args != null && args[0] instanceof String) {
+            String statementSql = (String) args[0];
+            PreparedStatement statement = (PreparedStatement) call(method, args, "prepare", statementSql);
+            return Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+                    new Class<?>[]{PreparedStatement.class}, new TracingProxy(statement, statementSql, listener));
+        }
+        if (sql != null) {
+            if (name.startsWith("set") && args != null && args.length >= 2 && args[0] instanceof Integer) {
+                parameters = Math.max(parameters, (Integer) args[0]);
+            } else if (name.equals("addBatch")) {
+                batched++;
+            } else if (name.startsWith("execute")) {
+                String detail = sql + " [" + parameters + " parameters redacted"
+                        + (batched > 0 ? ", " + batched + " batched" : "") + "]";
+                if (name.equals("executeBatch")) {
+                    batched = 0;
+                }
+                return execute(method, args, detail);
+            }
+        }
+        return call(method, args, null, null);
+    }
+
+    private Object execute(Method method, Object[] args, String detail) throws Throwable {
+        QueryEvent event = new QueryEvent();
+        event.begin();
+        event.rowCount = -1;
+        long start = System.nanoTime();
+        try {
+            Object result = call(method, args, method.getName(), detail);
+            event.rowCount = rowCount(result);
+            return result;
+        } catch (Throwable e) {
+            event.failed = true;
+            throw e;
+        } finally {
+            listener.executed(System.nanoTime() - start, event.failed);
+            event.end();
+            // fill in the strings only for events that will be recorded
+            if (event.shouldCommit()) {
+                event.statementId = Integer.toHexString(sql.hashCode());
+                event.sql = sql;
+                event.method = method.getName();
+                event.commit();
+            }
+        }
+    }
+
+    private static long rowCount(Object result) {
+        if (result instanceof Integer || result instanceof Long) {
+            return ((Number) result).longValue();
+        }
+        if (result instanceof int[]) {
+            long rows = 0;
+            for (int count : (int[]) result) {
+                // negative counts mean the driver does not know
+                rows += Math.max(count, 0);
+            }
+            return rows;
+        }
+        return -1;
+    }
+
+    private Object call(Method method, Object[] args, String spanName, String detail) throws Throwable {
+        Trace.Span span = spanName == null ? null : Trace.span(spanName, detail);
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            if (span != null) {
+                span.fail(e.getCause());
+            }
+            throw e.getCause();
+        } finally {
+            if (span != null) {
+                span.close();
+            }
+        }
+    }
+}
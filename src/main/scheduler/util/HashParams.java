@@ -0,0 +1,112 @@
+package scheduler.util;
+
+/**
+ * Parameters a password hash was computed with, stored next to the hash in the HashParams column as
+ * "algorithm:iterations:keyLengthBits". Accounts created before the column existed have it NULL and use
+ * {@link #LEGACY}.
+ *
+ * New hashes use {@link #current()}: the iteration count is calibrated once per process so that one hash
+ * takes about PasswordHashBudgetMillis on this machine, or fixed with PasswordHashIterations. A login whose
+ * stored parameters are {@link #isOutdated outdated} is rehashed with the current ones, so stored hashes
+ * follow the hardware. A calibrated count only ever raises the cost of stored hashes, since a slow or busy
+ * machine would otherwise weaken the hashes of everyone who logs in on it. Lowering it takes a fixed count.
+ *
+ * Databases created before the HashParams column existed are upgraded with migrate_hash_params.sql.
+ */
+public class HashParams {
+
+    public static final HashParams LEGACY = new HashParams("PBKDF2WithHmacSHA1", 10, 16);
+
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final int KEY_LENGTH = 256;
+    // never fewer iterations than this, whatever the budget says
+    private static final int MIN_ITERATIONS = 10000;
+    private static final int MAX_ITERATIONS = 10_000_000;
+    private static final int PROBE_ITERATIONS = 20000;
+    private static final int PROBE_RUNS = 3;
+    // calibration is noisy, a stored count within this factor of the current one is kept
+    private static final double REHASH_TOLERANCE = 1.25;
+    private static final int FIXED_ITERATIONS = Config.getInt("PasswordHashIterations", 0);
+
+    private static HashParams current = null;
+
+    private final String algorithm;
+    private final int iterations;
+    private final int keyLength;
+
+    public HashParams(String algorithm, int iterations, int keyLength) {
+        this.algorithm = algorithm;
+        this.iterations = iterations;
+        this.keyLength = keyLength;
+    }
+
+    // Getters
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    public int getIterations() {
+        return iterations;
+    }
+
+    public int getKeyLength() {
+        return keyLength;
+    }
+
+    public String encode() {
+        return algorithm + ":" + iterations + ":" + keyLength;
+    }
+
+    public static HashParams parse(String encoded) {
+        if (encoded == null || encoded.isEmpty()) {
+            return LEGACY;
+        }
+        String[] parts = encoded.split(":");
+        if (parts.length != 3) {
+            throw new IllegalArgumentException("Invalid hash parameters: " + encoded);
+        }
+        return new HashParams(parts[0], Integer.parseInt(parts[1]), Integer.parseInt(parts[2]));
+    }
+
+    // The parameters for new hashes, calibrated on first use
+    public static synchronized HashParams current() {
+        if (current == null) {
+            current = new HashParams(ALGORITHM, calibrate(), KEY_LENGTH);
+        }
+        return current;
+    }
+
+    private static int calibrate() {
+        if (FIXED_ITERATIONS > 0) {
+            return FIXED_ITERATIONS;
+        }
+        long budgetNanos = Config.getLong("PasswordHashBudgetMillis", 100) * 1_000_000;
+        HashParams probe = new HashParams(ALGORITHM, PROBE_ITERATIONS, KEY_LENGTH);
+        byte[] salt = Util.generateSalt();
+        // the first run also pays for class loading and JIT warm-up, take the fastest of the rest
+        Util.generateHash("calibration", salt, probe);
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < PROBE_RUNS; i++) {
+            long start = System.nanoTime();
+            Util.generateHash("calibration", salt, probe);
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        long iterations = budgetNanos * PROBE_ITERATIONS / Math.max(best, 1);
+        iterations = iterations / 1000 * 1000;
+        return (int) Math.max(MIN_ITERATIONS, Math.min(MAX_ITERATIONS, iterations));
+    }
+
+    // Whether a hash stored with these parameters should be replaced by one with the current parameters: a
+    // different algorithm or key length, an iteration count too far below the budget, or any other count than
+    // a fixed PasswordHashIterations
+    public boolean isOutdated() {
+        HashParams target = current();
+        if (!algorithm.equals(target.algorithm) || keyLength != target.keyLength) {
+            return true;
+        }
+        if (FIXED_ITERATIONS > 0) {
+            return iterations != target.iterations;
+        }
+        return iterations * REHASH_TOLERANCE < target.iterations;
+    }
+}
@@ -0,0 +1,73 @@
+package scheduler.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A map bounded to a fixed number of entries that evicts the least recently used one when full. Lookups are
+ * counted so callers can report a hit ratio.
+ */
+public class LruCache<K, V> {
+
+    private final int capacity;
+    private final LinkedHashMap<K, V> entries;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    public LruCache(int capacity) {
+        this.capacity = Math.max(capacity, 1);
+        // access order, so every get moves the entry to the most recently used end
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                if (size() > LruCache.this.capacity) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    // Returns null on a miss
+    public synchronized V get(K key) {
+        V value = entries.get(key);
+        if (value == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return value;
+    }
+
+    public synchronized void put(K key, V value) {
+        entries.put(key, value);
+    }
+
+    public synchronized void remove(K key) {
+        entries.remove(key);
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized double hitRatio() {
+        long lookups = hits + misses;
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    public synchronized String stats() {
+        return "size=" + entries.size() + "/" + capacity
+                + " hits=" + hits
+                + " misses=" + misses
+                + " evictions=" + evictions
+                + " hitRatio=" + String.format("%.2f", hitRatio());
+    }
+}
@@ -0,0 +1,82 @@
+package scheduler.util;
+
+import java.util.Arrays;
+
+/**
+ * Two-way mapping between names and their positive integer ids. Names are found by id in an array indexed
+ * by id, which suits the dense ids of an IDENTITY column, and ids by name in an open-addressing table of
+ * names and ints, so neither direction boxes. An id keeps the first name it was put with, other spellings
+ * only map to it. Each name is held once and handed out shared. Thread-safe.
+ */
+public class NameDictionary {
+
+    private String[] byId = new String[64];
+    // open addressing, null marks an empty slot
+    private String[] names = new String[64];
+    private int[] ids = new int[64];
+    private int size = 0;
+
+    // Returns the name's id, or 0 if it is not in the dictionary
+    public synchronized int id(String name) {
+        int mask = names.length - 1;
+        for (int i = name.hashCode() & mask; names[i] != null; i = (i + 1) & mask) {
+            if (names[i].equals(name)) {
+                return ids[i];
+            }
+        }
+        return 0;
+    }
+
+    // Returns the id's name, or null if it is not in the dictionary
+    public synchronized String name(int id) {
+        return id > 0 && id < byId.length ? byId[id] : null;
+    }
+
+    public synchronized void put(int id, String name) {
+        if (id <= 0) {
+            throw new IllegalArgumentException("Dictionary ids must be positive");
+        }
+        if (id >= byId.length) {
+            byId = Arrays.copyOf(byId, Math.max(byId.length * 2, id + 1));
+        }
+        if (byId[id] == null) {
+            byId[id] = name;
+        }
+        // the same id under another spelling, e.g. a username typed in a different case
+        if (id(name) != 0) {
+            return;
+        }
+        int mask = names.length - 1;
+        int i = name.hashCode() & mask;
+        while (names[i] != null) {
+            i = (i + 1) & mask;
+        }
+        names[i] = name;
+        ids[i] = id;
+        if (++size * 2 > names.length) {
+            resize();
+        }
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    private void resize() {
+        String[] oldNames = names;
+        int[] oldIds = ids;
+        names = new String[oldNames.length * 2];
+        ids = new int[oldIds.length * 2];
+        int mask = names.length - 1;
+        for (int j = 0; j < oldNames.length; j++) {
+            if (oldNames[j] != null) {
+                int i = oldNames[j].hashCode() & mask;
+                while (names[i] != null) {
+                    i = (i + 1) & mask;
+                }
+                names[i] = oldNames[j];
+                ids[i] = oldIds[j];
+            }
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package scheduler.util;
+
+import java.util.Arrays;
+
+/**
+ * A compressed set of non-negative ints in the style of roaring bitmaps. Values are split by their high 16
+ * bits into chunks of 65536. A chunk holding few values stores them as a sorted char array (2 bytes each),
+ * a dense chunk switches to a 65536-bit bitmap (8 KB), whichever is smaller. Empty chunks are not stored.
+ */
+public class RoaringBitmap {
+
+    // an array container larger than this would take more space than a bitmap container
+    private static final int ARRAY_MAX = 4096;
+
+    // sorted high 16 bits of the stored chunks, and their containers
+    private char[] keys = new char[4];
+    private Container[] containers = new Container[4];
+    private int size = 0;
+
+    public void add(int value) {
+        char high = (char) (value >>> 16);
+        int i = indexOf(high);
+        if (i < 0) {
+            i = -i - 1;
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, size * 2);
+                containers = Arrays.copyOf(containers, size * 2);
+            }
+            System.arraycopy(keys, i, keys, i + 1, size - i);
+            System.arraycopy(containers, i, containers, i + 1, size - i);
+            keys[i] = high;
+            containers[i] = new ArrayContainer();
+            size++;
+        }
+        containers[i] = containers[i].add((char) value);
+    }
+
+    public void remove(int value) {
+        int i = indexOf((char) (value >>> 16));
+        if (i < 0) {
+            return;
+        }
+        containers[i] = containers[i].remove((char) value);
+        if (containers[i].cardinality() == 0) {
+            System.arraycopy(keys, i + 1, keys, i, size - i - 1);
+            System.arraycopy(containers, i + 1, containers, i, size - i - 1);
+            containers[--size] = null;
+        }
+    }
+
+    public boolean contains(int value) {
+        int i = indexOf((char) (value >>> 16));
+        return i >= 0 && containers[i].contains((char) value);
+    }
+
+    public int cardinality() {
+        int total = 0;
+        for (int i = 0; i < size; i++) {
+            total += containers[i].cardinality();
+        }
+        return total;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    // Approximate memory used by the stored values
+    public long sizeInBytes() {
+        long bytes = (long) keys.length * (Character.BYTES + 8);
+        for (int i = 0; i < size; i++) {
+            bytes += containers[i].sizeInBytes();
+        }
+        return bytes;
+    }
+
+    private int indexOf(char high) {
+        return Arrays.binarySearch(keys, 0, size, high);
+    }
+
+    private interface Container {
+        // add and remove return the container to keep, which may have switched representation
+        Container add(char value);
+
+        Container remove(char value);
+
+        boolean contains(char value);
+
+        int cardinality();
+
+        long sizeInBytes();
+    }
+
+    private static class ArrayContainer implements Container {
+        private char[] values = new char[4];
+        private int cardinality = 0;
+
+        @Override
+        public Container add(char value) {
+            int i = Arrays.binarySearch(values, 0, cardinality, value);
+            if (i >= 0) {
+                return this;
+            }
+            if (cardinality == ARRAY_MAX) {
+                return new BitmapContainer(this).add(value);
+            }
+            i = -i - 1;
+            if (cardinality == values.length) {
+                values = Arrays.copyOf(values, Math.min(cardinality * 2, ARRAY_MAX));
+            }
+            System.arraycopy(values, i, values, i + 1, cardinality - i);
+            values[i] = value;
+            cardinality++;
+            return this;
+        }
+
+        @Override
+        public Container remove(char value) {
+            int i = Arrays.binarySearch(values, 0, cardinality, value);
+            if (i >= 0) {
+                System.arraycopy(values, i + 1, values, i, cardinality - i - 1);
+                cardinality--;
+            }
+            return this;
+        }
+
+        @Override
+        public boolean contains(char value) {
+            return Arrays.binarySearch(values, 0, cardinality, value) >= 0;
+        }
+
+        @Override
+        public int cardinality() {
+            return cardinality;
+        }
+
+        @Override
+        public long sizeInBytes() {
+            return (long) values.length * Character.BYTES;
+        }
+    }
+
+    private static class BitmapContainer implements Container {
+        private final long[] words = new long[65536 / 64];
+        private int cardinality = 0;
+
+        BitmapContainer(ArrayContainer array) {
+            for (int i = 0; i < array.cardinality; i++) {
+                char value = array.values[i];
+                words[value >>> 6] |= 1L << value;
+            }
+            cardinality = array.cardinality;
+        }
+
+        @Override
+        public Container add(char value) {
+            long bit = 1L << value;
+            if ((words[value >>> 6] & bit) == 0) {
+                words[value >>> 6] |= bit;
+                cardinality++;
+            }
+            return this;
+        }
+
+        @Override
+        public Container remove(char value) {
+            long bit = 1L << value;
+            if ((words[value >>> 6] & bit) == 0) {
+                return this;
+            }
+            words[value >>> 6] &= ~bit;
+            cardinality--;
+            if (cardinality > ARRAY_MAX) {
+                return this;
+            }
+            // sparse again, go back to the smaller representation
+            ArrayContainer array = new ArrayContainer();
+            array.values = new char[ARRAY_MAX];
+            for (int w = 0; w < words.length; w++) {
+                long word = words[w];
+                while (word != 0) {
+                    array.values[array.cardinality++] = (char) (w * 64 + Long.numberOfTrailingZeros(word));
+                    word &= word - 1;
+                }
+            }
+            return array;
+        }
+
+        @Override
+        public boolean contains(char value) {
+            return (words[value >>> 6] & (1L << value)) != 0;
+        }
+
+        @Override
+        public int cardinality() {
+            return cardinality;
+        }
+
+        @Override
+        public long sizeInBytes() {
+            return (long) words.length * Long.BYTES;
+        }
+    }
+}
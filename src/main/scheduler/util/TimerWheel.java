@@ -0,0 +1,127 @@
+package scheduler.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Hashed timer wheel: timeouts are hashed by their deadline tick into a fixed ring of slots, so scheduling
+ * and cancelling are O(1) however many timeouts are pending. Time only moves when {@link #advance} is called,
+ * which fires every timeout whose deadline has passed. Timeouts fire at most one tick late.
+ */
+public class TimerWheel<T> {
+
+    private final long tickMillis;
+    private final Timeout<T>[] slots;
+    private final int mask;
+    private final long startMillis;
+    // last tick that has been processed
+    private long currentTick = 0;
+    private int pending = 0;
+
+    public TimerWheel(long tickMillis, int slotCount) {
+        this.tickMillis = Math.max(tickMillis, 1);
+        // a power of two, so a tick maps to its slot with a mask
+        int size = Integer.highestOneBit(Math.max(slotCount - 1, 1)) << 1;
+        // slots only ever hold this wheel's timeouts
+        @SuppressWarnings("unchecked")
+        Timeout<T>[] slots = (Timeout<T>[]) new Timeout<?>[size];
+        this.slots = slots;
+        this.mask = size - 1;
+        this.startMillis = System.currentTimeMillis();
+    }
+
+    public synchronized Timeout<T> schedule(T item, long delayMillis) {
+        long ticks = Math.max((delayMillis + tickMillis - 1) / tickMillis, 1);
+        // count from the clock, the wheel may not have been advanced for a while
+        long nowTick = Math.max((System.currentTimeMillis() - startMillis) / tickMillis, currentTick);
+        Timeout<T> timeout = new Timeout<>(this, item, nowTick + ticks);
+        int slot = (int) (timeout.deadlineTick & mask);
+        timeout.next = slots[slot];
+        if (slots[slot] != null) {
+            slots[slot].prev = timeout;
+        }
+        slots[slot] = timeout;
+        pending++;
+        return timeout;
+    }
+
+    // Fire every timeout that is due by now
+    public void advance(Consumer<T> onExpire) {
+        advance(System.currentTimeMillis(), onExpire);
+    }
+
+    public void advance(long nowMillis, Consumer<T> onExpire) {
+        List<T> expired = new ArrayList<>();
+        synchronized (this) {
+            long nowTick = (nowMillis - startMillis) / tickMillis;
+            // after a long pause every slot is due at most once
+            long ticks = Math.min(nowTick - currentTick, slots.length);
+            for (long i = 1; i <= ticks; i++) {
+                int slot = (int) ((currentTick + i) & mask);
+                Timeout<T> timeout = slots[slot];
+                while (timeout != null) {
+                    Timeout<T> next = timeout.next;
+                    // entries for later rounds of the wheel share the slot and stay
+                    if (timeout.deadlineTick <= nowTick) {
+                        unlink(timeout);
+                        expired.add(timeout.item);
+                    }
+                    timeout = next;
+                }
+            }
+            currentTick = Math.max(currentTick, nowTick);
+        }
+        // callbacks run outside the lock so they may schedule or cancel other timeouts
+        for (T item : expired) {
+            onExpire.accept(item);
+        }
+    }
+
+    public synchronized int pending() {
+        return pending;
+    }
+
+    private void unlink(Timeout<T> timeout) {
+        int slot = (int) (timeout.deadlineTick & mask);
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        } else {
+            slots[slot] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.prev = null;
+        timeout.next = null;
+        timeout.done = true;
+        pending--;
+    }
+
+    public static class Timeout<T> {
+        private final TimerWheel<T> wheel;
+        private final T item;
+        private final long deadlineTick;
+        private Timeout<T> prev;
+        private Timeout<T> next;
+        // set once the timeout has fired or been cancelled
+        private boolean done = false;
+
+        private Timeout(TimerWheel<T> wheel, T item, long deadlineTick) {
+            this.wheel = wheel;
+            this.item = item;
+            this.deadlineTick = deadlineTick;
+        }
+
+        // Returns false if the timeout already fired or was cancelled
+        public boolean cancel() {
+            synchronized (wheel) {
+                if (done) {
+                    return false;
+                }
+                wheel.unlink(this);
+                return true;
+            }
+        }
+    }
+}
@@ -1,5 +1,8 @@
 package scheduler.util;
 
+import scheduler.trace.HashEvent;
+import scheduler.trace.Trace;
+
 import javax.crypto.SecretKeyFactory;
 import javax.crypto.spec.PBEKeySpec;
 import java.security.NoSuchAlgorithmException;
@@ -10,10 +13,6 @@ import java.util.Arrays;
 
 public class Util {
 
-    // constants for handling password
-    private static final int HASH_STRENGTH = 10;
-    private static final int KEY_LENGTH = 16;
-
     public static byte[] generateSalt() {
         // Generate a random cryptographic salt
         SecureRandom random = new SecureRandom();
@@ -22,18 +21,25 @@ public class Util {
         return salt;
     }
 
-    public static byte[] generateHash(String password, byte[] salt) {
+    public static byte[] generateHash(String password, byte[] salt, HashParams params) {
         // Specify the hash parameters
-        KeySpec spec = new PBEKeySpec(password.toCharArray(), salt, HASH_STRENGTH, KEY_LENGTH);
+        KeySpec spec = new PBEKeySpec(password.toCharArray(), salt, params.getIterations(), params.getKeyLength());
 
         // Generate the hash
         SecretKeyFactory factory = null;
         byte[] hash = null;
-        try {
-            factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
+        HashEvent event = new HashEvent();
+        event.begin();
+        Trace.Span span = Trace.span("hash", params.encode());
+        try (span) {
+            factory = SecretKeyFactory.getInstance(params.getAlgorithm());
             hash = factory.generateSecret(spec).getEncoded();
         } catch (NoSuchAlgorithmException | InvalidKeySpecException ex) {
             throw new IllegalStateException();
+        } finally {
+            event.algorithm = params.getAlgorithm();
+            event.iterations = params.getIterations();
+            event.commit();
         }
         return hash;
     }
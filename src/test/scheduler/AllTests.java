@@ -0,0 +1,29 @@
+package scheduler;
+
+import scheduler.command.CommandRegistryTest;
+import scheduler.db.CursorTest;
+import scheduler.replay.RecordedCommandTest;
+import scheduler.util.*;
+
+/**
+ * Runs every test class, stopping at the first failure. From the repository root:
+ * <pre>
+ *   javac -d out/test $(find src/main src/test -name '*.java')
+ *   java -ea -cp out/test scheduler.AllTests
+ * </pre>
+ * The tests need no database and no libraries besides the JDK.
+ */
+public class AllTests {
+
+    public static void main(String[] args) throws Exception {
+        BloomFilterTest.main(args);
+        IntIntMapTest.main(args);
+        LruCacheTest.main(args);
+        NameDictionaryTest.main(args);
+        RoaringBitmapTest.main(args);
+        TimerWheelTest.main(args);
+        CursorTest.main(args);
+        CommandRegistryTest.main(args);
+        RecordedCommandTest.main(args);
+    }
+}
@@ -0,0 +1,43 @@
+package scheduler;
+
+import java.util.Objects;
+
+/**
+ * The few assertions the tests need. The project has no test dependencies, so every test class is a plain
+ * main method that throws AssertionError on the first failed check; see {@link AllTests}.
+ */
+public class Assertions {
+
+    public interface Action {
+        void run() throws Exception;
+    }
+
+    public static void assertTrue(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+
+    public static void assertFalse(boolean condition, String message) {
+        assertTrue(!condition, message);
+    }
+
+    public static void assertEquals(Object expected, Object actual, String message) {
+        if (!Objects.equals(expected, actual)) {
+            throw new AssertionError(message + ": expected " + expected + " but was " + actual);
+        }
+    }
+
+    // Returns the exception the action threw, fails if it threw nothing or something else
+    public static <E extends Throwable> E assertThrows(Class<E> expected, Action action, String message) {
+        try {
+            action.run();
+        } catch (Throwable e) {
+            if (expected.isInstance(e)) {
+                return expected.cast(e);
+            }
+            throw new AssertionError(message + ": expected " + expected.getSimpleName() + " but got " + e, e);
+        }
+        throw new AssertionError(message + ": expected " + expected.getSimpleName() + " but nothing was thrown");
+    }
+}
@@ -0,0 +1,48 @@
+package scheduler.command;
+
+import java.util.List;
+
+import static scheduler.Assertions.*;
+
+public class CommandRegistryTest {
+
+    public static void main(String[] args) {
+        splitsOnSemicolons();
+        keepsSemicolonsInPasswords();
+        System.out.println("CommandRegistryTest passed");
+    }
+
+    private static CommandRegistry registry() {
+        CommandRegistry registry = new CommandRegistry(() -> Role.LOGGED_OUT);
+        registry.register(new Command.CommandBuilder("login_patient", tokens -> { })
+                .args(ArgType.STRING, ArgType.STRING).secretArgs(2).build());
+        registry.register(new Command.CommandBuilder("logout", tokens -> { }).build());
+        return registry;
+    }
+
+    private static String joined(List<String[]> pipeline) {
+        StringBuilder text = new StringBuilder();
+        for (String[] tokens : pipeline) {
+            text.append(String.join(" ", tokens)).append('|');
+        }
+        return text.toString();
+    }
+
+    static void splitsOnSemicolons() {
+        CommandRegistry registry = registry();
+        assertEquals("logout|logout|", joined(registry.parse("logout;logout")), "no spaces needed");
+        assertEquals("logout|login_patient alice pw|", joined(registry.parse(" logout ; ;login_patient  alice pw ")),
+                "empty commands and extra whitespace are skipped");
+        assertEquals("", joined(registry.parse("   ")), "blank line");
+    }
+
+    static void keepsSemicolonsInPasswords() {
+        CommandRegistry registry = registry();
+        assertEquals("login_patient alice a;b|", joined(registry.parse("login_patient alice a;b")),
+                "the password is not split");
+        assertEquals("login_patient alice pw;|logout|", joined(registry.parse("login_patient alice pw; ; logout")),
+                "a ';' after the password needs a space");
+        assertEquals("logout|login_patient alice ;x;|", joined(registry.parse("logout;login_patient alice ;x;")),
+                "a later command's password is kept whole too");
+    }
+}
@@ -0,0 +1,143 @@
+package scheduler.db;
+
+import java.lang.reflect.Proxy;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.stream.Collectors;
+
+import static scheduler.Assertions.*;
+
+public class CursorTest {
+
+    public static void main(String[] args) throws Exception {
+        readsEveryRowAndClosesAtTheEnd();
+        stopsAtTheLimit();
+        closeIsIdempotentAndEndsIteration();
+        streamClosesTheCursor();
+        failuresCloseAndUnwrap();
+        System.out.println("CursorTest passed");
+    }
+
+    // A forward-only result set over the given ints, optionally failing on one row
+    private static class FakeResultSet {
+        private final int[] rows;
+        private final int failAt;
+        private int position = -1;
+        private int nextCalls = 0;
+        private boolean closed = false;
+
+        FakeResultSet(int failAt, int... rows) {
+            this.rows = rows;
+            this.failAt = failAt;
+        }
+
+        ResultSet proxy() {
+            return (ResultSet) Proxy.newProxyInstance(ResultSet.class.getClassLoader(),
+                    new Class<?>[]{ResultSet.class}, (proxy, method, args) -> {
+                        switch (method.getName()) {
+                            case "next":
+                                if (closed) {
+                                    throw new SQLException("Result set is closed");
+                                }
+                                nextCalls++;
+                                if (++position == failAt) {
+                                    throw new SQLException("Connection reset", "08S01");
+                                }
+                                return position < rows.length;
+                            case "getInt":
+                                return rows[position];
+                            case "close":
+                                closed = true;
+                                return null;
+                            default:
+                                throw new UnsupportedOperationException(method.getName());
+                        }
+                    });
+        }
+    }
+
+    private static class Release implements Runnable {
+        private int count = 0;
+
+        @Override
+        public void run() {
+            count++;
+        }
+    }
+
+    private static Cursor<Integer> cursor(FakeResultSet rows, int limit, Release release) {
+        return new Cursor<>(rows.proxy(), res -> res.getInt(1), limit, release);
+    }
+
+    static void readsEveryRowAndClosesAtTheEnd() {
+        FakeResultSet rows = new FakeResultSet(-1, 1, 2, 3);
+        Release release = new Release();
+        Cursor<Integer> cursor = cursor(rows, 0, release);
+        List<Integer> read = new ArrayList<>();
+        cursor.forEachRemaining(read::add);
+        assertEquals(List.of(1, 2, 3), read, "rows in order");
+        assertTrue(rows.closed, "result set is closed once the rows run out");
+        assertEquals(1, release.count, "connection is released once the rows run out");
+        assertFalse(cursor.hasNext(), "hasNext stays false");
+        assertThrows(NoSuchElementException.class, cursor::next, "next after the end");
+    }
+
+    static void stopsAtTheLimit() {
+        FakeResultSet rows = new FakeResultSet(-1, 1, 2, 3, 4, 5);
+        Release release = new Release();
+        Cursor<Integer> cursor = cursor(rows, 2, release);
+        List<Integer> read = new ArrayList<>();
+        cursor.forEachRemaining(read::add);
+        assertEquals(List.of(1, 2), read, "only the first limit rows");
+        assertEquals(2, rows.nextCalls, "no row past the limit is fetched");
+        assertTrue(rows.closed, "result set is closed at the limit");
+        assertEquals(1, release.count, "connection is released at the limit");
+    }
+
+    static void closeIsIdempotentAndEndsIteration() {
+        FakeResultSet rows = new FakeResultSet(-1, 1, 2, 3);
+        Release release = new Release();
+        Cursor<Integer> cursor = cursor(rows, 0, release);
+        assertEquals(1, cursor.next(), "first row");
+        cursor.close();
+        cursor.close();
+        assertTrue(rows.closed, "close closes the result set");
+        assertEquals(1, release.count, "a second close releases nothing");
+        assertFalse(cursor.hasNext(), "no rows after close");
+
+        // hasNext holds a fetched row, close drops it
+        FakeResultSet peeked = new FakeResultSet(-1, 1, 2);
+        Cursor<Integer> peeking = cursor(peeked, 0, new Release());
+        assertTrue(peeking.hasNext(), "a row is ready");
+        peeking.close();
+        assertFalse(peeking.hasNext(), "the ready row is dropped on close");
+    }
+
+    static void streamClosesTheCursor() {
+        FakeResultSet rows = new FakeResultSet(-1, 1, 2, 3, 4);
+        Release release = new Release();
+        Cursor<Integer> cursor = cursor(rows, 0, release);
+        List<Integer> firstTwo;
+        try (var stream = cursor.stream()) {
+            firstTwo = stream.limit(2).collect(Collectors.toList());
+        }
+        assertEquals(List.of(1, 2), firstTwo, "stream hands out the rows in order");
+        assertTrue(rows.closed, "closing the stream closes the result set");
+        assertEquals(1, release.count, "closing the stream releases the connection");
+    }
+
+    static void failuresCloseAndUnwrap() {
+        FakeResultSet rows = new FakeResultSet(1, 1, 2, 3);
+        Release release = new Release();
+        Cursor<Integer> cursor = cursor(rows, 0, release);
+        assertEquals(1, cursor.next(), "first row before the failure");
+        Cursor.CursorException e = assertThrows(Cursor.CursorException.class, cursor::hasNext, "failing row");
+        assertEquals("08S01", e.getCause().getSQLState(), "the SQLException is the cause");
+        assertTrue(rows.closed, "result set is closed after a failure");
+        assertEquals(1, release.count, "connection is released after a failure");
+        assertFalse(cursor.hasNext(), "a failed cursor is done");
+    }
+}
@@ -0,0 +1,121 @@
+package scheduler.replay;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import static scheduler.Assertions.*;
+
+public class RecordedCommandTest {
+
+    public static void main(String[] args) throws IOException {
+        formatAndParseRoundTrip();
+        parseRejectsShortLines();
+        cleanCollapsesAndBoundsOutput();
+        readsAppendedSessions();
+        readKeepsWhatWasFlushedBeforeACrash();
+        appendedSessionsContinueTheNumbering();
+        System.out.println("RecordedCommandTest passed");
+    }
+
+    private static void assertSame(RecordedCommand expected, RecordedCommand actual) {
+        assertEquals(expected.getSession(), actual.getSession(), "session");
+        assertEquals(expected.getSeq(), actual.getSeq(), "seq");
+        assertEquals(expected.getStartMillis(), actual.getStartMillis(), "start");
+        assertEquals(expected.getDurationMicros(), actual.getDurationMicros(), "duration");
+        assertEquals(expected.getOutcome(), actual.getOutcome(), "outcome");
+        assertEquals(expected.getOutput(), actual.getOutput(), "output");
+        assertEquals(expected.getLine(), actual.getLine(), "line");
+    }
+
+    static void formatAndParseRoundTrip() {
+        List<RecordedCommand> commands = Arrays.asList(
+                new RecordedCommand("s1", 0, 1700000000000L, 1234, "ok",
+                        "Reservation made with carol on 2021-06-01", "reserve 2021-06-01 Pfizer r1"),
+                // nothing printed leaves an empty field between two tabs
+                new RecordedCommand("s1", 1, 1700000000100L, 0, "rejected", "", "quit"),
+                new RecordedCommand("s1", 2, 1700000000200L, 99, "error",
+                        RecordedCommand.clean("Error occurred\twhen\nreserving"), "login_patient alice pwAbC-_9"));
+        for (RecordedCommand command : commands) {
+            RecordedCommand parsed = RecordedCommand.parse("s1", command.format());
+            assertSame(command, parsed);
+        }
+        assertEquals("reserve", commands.get(0).getCommand(), "command of a line with arguments");
+        assertEquals("quit", commands.get(1).getCommand(), "command of a bare line");
+    }
+
+    static void parseRejectsShortLines() {
+        assertThrows(IllegalArgumentException.class, () -> RecordedCommand.parse("s", "1\t2\t3\tok\toutput"),
+                "a line without the command");
+        assertThrows(NumberFormatException.class, () -> RecordedCommand.parse("s", "x\t2\t3\tok\t\tquit"),
+                "a line with a bad sequence number");
+    }
+
+    static void cleanCollapsesAndBoundsOutput() {
+        assertEquals("a b c", RecordedCommand.clean("  a\tb\r\n\n c \n"), "whitespace is collapsed");
+        assertFalse(RecordedCommand.clean("x\ty").contains("\t"), "no tab survives, it separates fields");
+        String longOutput = "y".repeat(RecordedCommand.OUTPUT_LIMIT * 2);
+        assertEquals(RecordedCommand.OUTPUT_LIMIT, RecordedCommand.clean(longOutput).length(), "output is bounded");
+    }
+
+    private static byte[] gzipMember(String text) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (OutputStream out = new GZIPOutputStream(bytes)) {
+            out.write(text.getBytes(StandardCharsets.UTF_8));
+        }
+        return bytes.toByteArray();
+    }
+
+    static void readsAppendedSessions() throws IOException {
+        Path dir = Files.createTempDirectory("recording");
+        Path file = dir.resolve("session-a" + Recorder.SUFFIX);
+        RecordedCommand first = new RecordedCommand("session-a", 0, 10, 5, "ok", "Doses updated!", "add_doses Pfizer 10");
+        RecordedCommand second = new RecordedCommand("session-a", 1, 20, 7, "ok", "Successfully logged out!", "logout");
+        // a restarted recorder appends another gzip member with its own header
+        ByteArrayOutputStream members = new ByteArrayOutputStream();
+        members.write(gzipMember("# session session-a\n" + first.format() + "\n"));
+        members.write(gzipMember("# session session-a\n\n" + second.format() + "\n"));
+        Files.write(file, members.toByteArray());
+        Files.write(dir.resolve("ignored.txt"), new byte[0]);
+
+        assertEquals(List.of(file), RecordedCommand.sessionFiles(dir), "only recordings are listed");
+        assertEquals("session-a", RecordedCommand.sessionOf(file), "session from the file name");
+        List<RecordedCommand> read = RecordedCommand.read(file);
+        assertEquals(2, read.size(), "comments and blank lines are skipped");
+        assertSame(first, read.get(0));
+        assertSame(second, read.get(1));
+    }
+
+    static void readKeepsWhatWasFlushedBeforeACrash() throws IOException {
+        Path dir = Files.createTempDirectory("recording");
+        Path file = dir.resolve("crashed" + Recorder.SUFFIX);
+        RecordedCommand command = new RecordedCommand("crashed", 0, 10, 5, "ok", "", "stats");
+        byte[] complete = gzipMember("# session crashed\n" + command.format() + "\n");
+        byte[] cut = gzipMember(command.format() + "\n");
+        // the second member lost its trailer when the process died
+        byte[] bytes = Arrays.copyOf(complete, complete.length + cut.length - 8);
+        System.arraycopy(cut, 0, bytes, complete.length, cut.length - 8);
+        Files.write(file, bytes);
+
+        List<RecordedCommand> read = RecordedCommand.read(file);
+        assertTrue(read.size() >= 1, "the complete member is kept");
+        assertSame(command, read.get(0));
+    }
+
+    static void appendedSessionsContinueTheNumbering() throws IOException {
+        Path dir = Files.createTempDirectory("recording");
+        Path file = dir.resolve("resumed" + Recorder.SUFFIX);
+        assertEquals(0L, Recorder.nextSeq(file), "a new file starts at 0");
+
+        RecordedCommand first = new RecordedCommand("resumed", 0, 10, 5, "ok", "", "stats");
+        RecordedCommand second = new RecordedCommand("resumed", 1, 20, 7, "ok", "", "logout");
+        Files.write(file, gzipMember("# session resumed\n" + first.format() + "\n" + second.format() + "\n"));
+        assertEquals(2L, Recorder.nextSeq(file), "a restarted process numbers on from the last command");
+    }
+}
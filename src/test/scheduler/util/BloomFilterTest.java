@@ -0,0 +1,47 @@
+package scheduler.util;
+
+import static scheduler.Assertions.*;
+
+public class BloomFilterTest {
+
+    public static void main(String[] args) {
+        addedValuesAreAlwaysFound();
+        falsePositiveRateIsNearTheConfiguredOne();
+        invalidSizesAreRejected();
+        System.out.println("BloomFilterTest passed");
+    }
+
+    static void addedValuesAreAlwaysFound() {
+        BloomFilter filter = new BloomFilter(10000, 0.01);
+        for (int i = 0; i < 10000; i++) {
+            filter.add("user" + i);
+        }
+        for (int i = 0; i < 10000; i++) {
+            assertTrue(filter.mightContain("user" + i), "no false negative for user" + i);
+        }
+    }
+
+    static void falsePositiveRateIsNearTheConfiguredOne() {
+        BloomFilter filter = new BloomFilter(10000, 0.01);
+        for (int i = 0; i < 10000; i++) {
+            filter.add("user" + i);
+        }
+        int falsePositives = 0;
+        int probes = 100000;
+        for (int i = 0; i < probes; i++) {
+            if (filter.mightContain("other" + i)) {
+                falsePositives++;
+            }
+        }
+        double rate = (double) falsePositives / probes;
+        // generous bound, the hash is deterministic so this does not flake
+        assertTrue(rate < 0.03, "false positive rate " + rate + " is close to 0.01");
+    }
+
+    static void invalidSizesAreRejected() {
+        assertThrows(IllegalArgumentException.class, () -> new BloomFilter(0, 0.01), "zero capacity");
+        assertThrows(IllegalArgumentException.class, () -> new BloomFilter(-1, 0.01), "negative capacity");
+        assertThrows(IllegalArgumentException.class, () -> new BloomFilter(100, 0), "zero false positive rate");
+        assertThrows(IllegalArgumentException.class, () -> new BloomFilter(100, 1), "false positive rate of one");
+    }
+}
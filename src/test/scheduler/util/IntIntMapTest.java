@@ -0,0 +1,63 @@
+package scheduler.util;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static scheduler.Assertions.*;
+
+public class IntIntMapTest {
+
+    public static void main(String[] args) {
+        getPutAndOverwrite();
+        matchesHashMapThroughResizes();
+        rejectsTheEmptyMarker();
+        System.out.println("IntIntMapTest passed");
+    }
+
+    static void getPutAndOverwrite() {
+        IntIntMap map = new IntIntMap();
+        assertEquals(-1, map.get(5, -1), "missing key");
+        assertFalse(map.containsKey(5), "missing key is not contained");
+        map.put(5, 50);
+        map.put(0, 0);
+        map.put(-3, 30);
+        assertEquals(50, map.get(5, -1), "value of 5");
+        assertEquals(0, map.get(0, -1), "zero is a valid key and value");
+        assertEquals(30, map.get(-3, -1), "negative keys");
+        map.put(5, 55);
+        assertEquals(55, map.get(5, -1), "overwritten value");
+        assertEquals(3, map.size(), "overwriting does not grow the map");
+    }
+
+    static void matchesHashMapThroughResizes() {
+        IntIntMap map = new IntIntMap(4);
+        Map<Integer, Integer> expected = new HashMap<>();
+        // consecutive ids, the case the mixing is there for, then random ones
+        for (int key = 1; key <= 5000; key++) {
+            map.put(key, key * 2);
+            expected.put(key, key * 2);
+        }
+        Random random = new Random(11);
+        for (int i = 0; i < 5000; i++) {
+            int key = random.nextInt();
+            if (key == Integer.MIN_VALUE) {
+                continue;
+            }
+            map.put(key, i);
+            expected.put(key, i);
+        }
+        assertEquals(expected.size(), map.size(), "size");
+        for (Map.Entry<Integer, Integer> entry : expected.entrySet()) {
+            assertEquals(entry.getValue(), map.get(entry.getKey(), -1), "value of " + entry.getKey());
+            assertTrue(map.containsKey(entry.getKey()), "contains " + entry.getKey());
+        }
+        assertFalse(map.containsKey(10001), "key that was never put");
+    }
+
+    static void rejectsTheEmptyMarker() {
+        IntIntMap map = new IntIntMap();
+        assertThrows(IllegalArgumentException.class, () -> map.put(Integer.MIN_VALUE, 1), "Integer.MIN_VALUE key");
+        assertEquals(0, map.size(), "nothing was added");
+    }
+}
@@ -0,0 +1,63 @@
+package scheduler.util;
+
+import static scheduler.Assertions.*;
+
+public class LruCacheTest {
+
+    public static void main(String[] args) {
+        evictsLeastRecentlyUsed();
+        getRefreshesAnEntry();
+        removeAndClear();
+        countsHitsAndMisses();
+        System.out.println("LruCacheTest passed");
+    }
+
+    static void evictsLeastRecentlyUsed() {
+        LruCache<String, Integer> cache = new LruCache<>(2);
+        cache.put("a", 1);
+        cache.put("b", 2);
+        cache.put("c", 3);
+        assertEquals(2, cache.size(), "size is bounded by the capacity");
+        assertEquals(null, cache.get("a"), "oldest entry was evicted");
+        assertEquals(2, cache.get("b"), "b stays");
+        assertEquals(3, cache.get("c"), "c stays");
+        assertTrue(cache.stats().contains("evictions=1"), "eviction is counted: " + cache.stats());
+    }
+
+    static void getRefreshesAnEntry() {
+        LruCache<String, Integer> cache = new LruCache<>(2);
+        cache.put("a", 1);
+        cache.put("b", 2);
+        // a is now the most recently used, so b goes next
+        cache.get("a");
+        cache.put("c", 3);
+        assertEquals(1, cache.get("a"), "refreshed entry stays");
+        assertEquals(null, cache.get("b"), "least recently used entry was evicted");
+    }
+
+    static void removeAndClear() {
+        LruCache<String, Integer> cache = new LruCache<>(4);
+        cache.put("a", 1);
+        cache.put("b", 2);
+        cache.remove("a");
+        assertEquals(null, cache.get("a"), "removed entry");
+        assertEquals(1, cache.size(), "size after remove");
+        cache.clear();
+        assertEquals(0, cache.size(), "size after clear");
+    }
+
+    static void countsHitsAndMisses() {
+        LruCache<String, Integer> cache = new LruCache<>(4);
+        assertEquals(0.0, cache.hitRatio(), "hit ratio without lookups");
+        cache.put("a", 1);
+        cache.get("a");
+        cache.get("a");
+        cache.get("a");
+        cache.get("b");
+        assertEquals(0.75, cache.hitRatio(), "hit ratio");
+        // a capacity below one still holds one entry
+        LruCache<String, Integer> tiny = new LruCache<>(0);
+        tiny.put("a", 1);
+        assertEquals(1, tiny.get("a"), "capacity is at least one");
+    }
+}
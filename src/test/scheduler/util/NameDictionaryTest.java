@@ -0,0 +1,60 @@
+package scheduler.util;
+
+import static scheduler.Assertions.*;
+
+public class NameDictionaryTest {
+
+    public static void main(String[] args) {
+        mapsBothWays();
+        firstSpellingIsKept();
+        growsPastItsInitialSize();
+        rejectsNonPositiveIds();
+        System.out.println("NameDictionaryTest passed");
+    }
+
+    static void mapsBothWays() {
+        NameDictionary dictionary = new NameDictionary();
+        assertEquals(0, dictionary.id("alice"), "unknown name");
+        assertEquals(null, dictionary.name(1), "unknown id");
+        assertEquals(null, dictionary.name(0), "id zero is never used");
+        dictionary.put(1, "alice");
+        dictionary.put(2, "bob");
+        assertEquals(1, dictionary.id("alice"), "id of alice");
+        assertEquals("bob", dictionary.name(2), "name of 2");
+        assertEquals(2, dictionary.size(), "size");
+        // putting the same pair again changes nothing
+        dictionary.put(1, "alice");
+        assertEquals(2, dictionary.size(), "size after a repeated put");
+    }
+
+    static void firstSpellingIsKept() {
+        NameDictionary dictionary = new NameDictionary();
+        dictionary.put(7, "Alice");
+        dictionary.put(7, "alice");
+        assertEquals("Alice", dictionary.name(7), "the first spelling is printed");
+        assertEquals(7, dictionary.id("Alice"), "first spelling maps to the id");
+        assertEquals(7, dictionary.id("alice"), "other spelling maps to the same id");
+    }
+
+    static void growsPastItsInitialSize() {
+        NameDictionary dictionary = new NameDictionary();
+        for (int id = 1; id <= 10000; id++) {
+            dictionary.put(id, "user" + id);
+        }
+        // a sparse id far beyond the others
+        dictionary.put(1_000_000, "late");
+        assertEquals(10001, dictionary.size(), "size");
+        for (int id = 1; id <= 10000; id++) {
+            assertEquals(id, dictionary.id("user" + id), "id of user" + id);
+            assertEquals("user" + id, dictionary.name(id), "name of " + id);
+        }
+        assertEquals(1_000_000, dictionary.id("late"), "id of the sparse entry");
+        assertEquals("late", dictionary.name(1_000_000), "name of the sparse entry");
+    }
+
+    static void rejectsNonPositiveIds() {
+        NameDictionary dictionary = new NameDictionary();
+        assertThrows(IllegalArgumentException.class, () -> dictionary.put(0, "zero"), "id zero");
+        assertThrows(IllegalArgumentException.class, () -> dictionary.put(-1, "negative"), "negative id");
+    }
+}
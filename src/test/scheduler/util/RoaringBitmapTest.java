@@ -0,0 +1,98 @@
+package scheduler.util;
+
+import java.util.BitSet;
+import java.util.Random;
+
+import static scheduler.Assertions.*;
+
+public class RoaringBitmapTest {
+
+    public static void main(String[] args) {
+        emptyBitmap();
+        addAndRemoveAcrossChunks();
+        denseChunkSwitchesToBitmapAndBack();
+        matchesBitSetUnderRandomChanges();
+        System.out.println("RoaringBitmapTest passed");
+    }
+
+    static void emptyBitmap() {
+        RoaringBitmap bitmap = new RoaringBitmap();
+        assertTrue(bitmap.isEmpty(), "a new bitmap is empty");
+        assertEquals(0, bitmap.cardinality(), "cardinality of a new bitmap");
+        assertFalse(bitmap.contains(0), "a new bitmap contains nothing");
+        // removing a value that is not there is a no-op
+        bitmap.remove(42);
+        assertTrue(bitmap.isEmpty(), "still empty after removing a missing value");
+    }
+
+    static void addAndRemoveAcrossChunks() {
+        RoaringBitmap bitmap = new RoaringBitmap();
+        int[] values = {0, 1, 65535, 65536, 65537, 1 << 20, Integer.MAX_VALUE};
+        for (int value : values) {
+            bitmap.add(value);
+            // adding twice changes nothing
+            bitmap.add(value);
+        }
+        assertEquals(values.length, bitmap.cardinality(), "cardinality after adds");
+        for (int value : values) {
+            assertTrue(bitmap.contains(value), "contains " + value);
+        }
+        assertFalse(bitmap.contains(2), "neighbour in the same chunk");
+        assertFalse(bitmap.contains(65538), "neighbour in the next chunk");
+
+        bitmap.remove(65536);
+        assertFalse(bitmap.contains(65536), "removed value");
+        assertTrue(bitmap.contains(65537), "other value of the chunk stays");
+        for (int value : values) {
+            bitmap.remove(value);
+        }
+        assertTrue(bitmap.isEmpty(), "empty chunks are dropped");
+    }
+
+    static void denseChunkSwitchesToBitmapAndBack() {
+        RoaringBitmap bitmap = new RoaringBitmap();
+        // past 4096 values a chunk is cheaper as a bitmap
+        for (int value = 0; value < 10000; value++) {
+            bitmap.add(value * 2);
+        }
+        assertEquals(10000, bitmap.cardinality(), "cardinality of the dense chunk");
+        assertTrue(bitmap.sizeInBytes() < 10000 * Character.BYTES, "a dense chunk is stored as a bitmap");
+        for (int value = 0; value < 20000; value++) {
+            assertEquals(value % 2 == 0, bitmap.contains(value), "contains " + value);
+        }
+        // back below the threshold the chunk turns into an array again and keeps every value
+        for (int value = 0; value < 6000; value++) {
+            bitmap.remove(value * 2);
+        }
+        assertEquals(4000, bitmap.cardinality(), "cardinality after thinning out");
+        for (int value = 0; value < 20000; value++) {
+            assertEquals(value % 2 == 0 && value >= 12000, bitmap.contains(value), "contains " + value);
+        }
+        bitmap.add(1);
+        assertTrue(bitmap.contains(1), "the array chunk still takes values");
+        assertEquals(4001, bitmap.cardinality(), "cardinality after adding to the array chunk");
+    }
+
+    static void matchesBitSetUnderRandomChanges() {
+        RoaringBitmap bitmap = new RoaringBitmap();
+        BitSet expected = new BitSet();
+        Random random = new Random(7);
+        for (int i = 0; i < 200000; i++) {
+            // three chunks, dense enough to cross the container threshold both ways
+            int value = random.nextInt(3 * 65536);
+            if (random.nextInt(3) == 0) {
+                bitmap.remove(value);
+                expected.clear(value);
+            } else {
+                bitmap.add(value);
+                expected.set(value);
+            }
+        }
+        assertEquals(expected.cardinality(), bitmap.cardinality(), "cardinality");
+        for (int value = 0; value < 3 * 65536; value++) {
+            if (expected.get(value) != bitmap.contains(value)) {
+                throw new AssertionError("contains " + value + " differs from BitSet");
+            }
+        }
+    }
+}
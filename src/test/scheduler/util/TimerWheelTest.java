@@ -0,0 +1,83 @@
+package scheduler.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static scheduler.Assertions.*;
+
+public class TimerWheelTest {
+
+    // long ticks, so building the wheel and scheduling happen within its first tick
+    private static final long TICK = 1000;
+
+    public static void main(String[] args) {
+        firesOnceTheDeadlinePasses();
+        laterRoundsStayInTheirSlot();
+        cancelledTimeoutsDoNotFire();
+        callbacksMayScheduleMore();
+        System.out.println("TimerWheelTest passed");
+    }
+
+    static void firesOnceTheDeadlinePasses() {
+        long before = System.currentTimeMillis();
+        TimerWheel<String> wheel = new TimerWheel<>(TICK, 8);
+        wheel.schedule("a", 3 * TICK);
+        wheel.schedule("b", 5 * TICK);
+        assertEquals(2, wheel.pending(), "pending after scheduling");
+
+        List<String> fired = new ArrayList<>();
+        wheel.advance(before + 2 * TICK, fired::add);
+        assertEquals(List.of(), fired, "nothing is due after two ticks");
+        wheel.advance(before + 4 * TICK, fired::add);
+        assertEquals(List.of("a"), fired, "a is due after its three ticks");
+        // at most one tick late
+        wheel.advance(before + 7 * TICK, fired::add);
+        assertEquals(List.of("a", "b"), fired, "b is due after its five ticks");
+        assertEquals(0, wheel.pending(), "pending after firing");
+        wheel.advance(before + 20 * TICK, fired::add);
+        assertEquals(2, fired.size(), "a timeout fires only once");
+    }
+
+    static void laterRoundsStayInTheirSlot() {
+        long before = System.currentTimeMillis();
+        TimerWheel<String> wheel = new TimerWheel<>(TICK, 8);
+        // ten ticks on an eight-slot wheel shares slot 2 with a two-tick timeout
+        wheel.schedule("near", 2 * TICK);
+        wheel.schedule("far", 10 * TICK);
+        List<String> fired = new ArrayList<>();
+        wheel.advance(before + 3 * TICK, fired::add);
+        assertEquals(List.of("near"), fired, "only the first round is due");
+        wheel.advance(before + 9 * TICK, fired::add);
+        assertEquals(List.of("near"), fired, "the second round is not due yet");
+        wheel.advance(before + 12 * TICK, fired::add);
+        assertEquals(List.of("near", "far"), fired, "the second round fires a round later");
+    }
+
+    static void cancelledTimeoutsDoNotFire() {
+        long before = System.currentTimeMillis();
+        TimerWheel<String> wheel = new TimerWheel<>(TICK, 8);
+        TimerWheel.Timeout<String> a = wheel.schedule("a", 2 * TICK);
+        TimerWheel.Timeout<String> b = wheel.schedule("b", 2 * TICK);
+        assertTrue(a.cancel(), "first cancel succeeds");
+        assertFalse(a.cancel(), "second cancel reports it was already cancelled");
+        assertEquals(1, wheel.pending(), "pending after cancelling");
+
+        List<String> fired = new ArrayList<>();
+        wheel.advance(before + 4 * TICK, fired::add);
+        assertEquals(List.of("b"), fired, "the cancelled timeout did not fire");
+        assertFalse(b.cancel(), "a fired timeout cannot be cancelled");
+    }
+
+    static void callbacksMayScheduleMore() {
+        long before = System.currentTimeMillis();
+        TimerWheel<String> wheel = new TimerWheel<>(TICK, 8);
+        wheel.schedule("a", TICK);
+        List<String> fired = new ArrayList<>();
+        wheel.advance(before + 3 * TICK, item -> {
+            fired.add(item);
+            wheel.schedule("again", TICK);
+        });
+        assertEquals(List.of("a"), fired, "the callback ran");
+        assertEquals(1, wheel.pending(), "the timeout scheduled from the callback is pending");
+    }
+}